@@ -0,0 +1,35 @@
+package net.eureka.couchcast;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the bridge protocol benchmarks and writes the results as JSON, so runs before and after a change can be
+ * compared. Allocation per operation comes from the GC profiler (gc.alloc.rate.norm).
+ * <br>
+ * Usage: Benchmarks [regex] [results file], runs every benchmark into jmh-results.json by default.
+ */
+public final class Benchmarks
+{
+	private static final String DEFAULT_RESULTS = "jmh-results.json";
+
+	public static void main(String[] args) throws RunnerException
+	{
+		final String include = (args.length > 0) ? args[0] : "net.eureka.couchcast.*";
+		final String results = (args.length > 1) ? args[1] : DEFAULT_RESULTS;
+		Options options = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.forks(1)
+				.resultFormat(ResultFormatType.JSON)
+				.result(results)
+				.build();
+		new Runner(options).run();
+	}
+}
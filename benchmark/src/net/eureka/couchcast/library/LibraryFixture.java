@@ -0,0 +1,29 @@
+package net.eureka.couchcast.library;
+
+import java.util.ArrayList;
+
+/**
+ * Seeds the {@link MediaLibrary} with a made up index for the benchmarks, which run without media directories.
+ */
+public final class LibraryFixture
+{
+	private LibraryFixture()
+	{
+	}
+
+	/**
+	 * Publishes an index of media files under one directory, with ids in the order given.
+	 * @param String directory - Directory the files are in.
+	 * @param Integer count - Number of files.
+	 * @return {@link LibraryIndex} - Published index.
+	 */
+	public static LibraryIndex seed(String directory, int count)
+	{
+		ArrayList<LibraryEntry> entries = new ArrayList<LibraryEntry>(count);
+		for(int id = 0; id < count; id ++)
+			entries.add(new LibraryEntry(id, directory+"Benchmark "+id+".mkv", 1L << 30, 0L, 5400000L, LibraryEntry.TYPE_VIDEO));
+		LibraryIndex index = new LibraryIndex(entries, count, 1L, 1L, null);
+		MediaLibrary.seed(index);
+		return index;
+	}
+}
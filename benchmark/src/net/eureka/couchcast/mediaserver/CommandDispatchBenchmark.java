@@ -0,0 +1,156 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.eureka.couchcast.library.LibraryFixture;
+import net.eureka.couchcast.player.SimulatedPlayer;
+
+/**
+ * Latency of parsing and dispatching one command of each opcode, from raw bytes through the {@link CommandDecoder},
+ * into a {@link PlayerCommand} and through BridgeIO.validateCommand() onto a {@link SimulatedPlayer}. No socket or
+ * executor thread is involved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandDispatchBenchmark
+{
+	/**
+	 * Opcode to dispatch, named after the BridgeIO sequences.
+	 */
+	@Param({"PLAY_FILE", "RESUME_FILE", "QUEUE_FILES", "PLAY_LIBRARY", "PLAY_TUBE", "PLAY_PAUSE", "STOP_FILE", "FAST_FORWARD", "FAST_REWIND", "SHOW_FRAME", "HIDE_FRAME", "SKIP", "VOLUME", "UNKNOWN"})
+	public String opcode;
+
+	/**
+	 * Whether the command is sent framed or as a legacy opcode.
+	 */
+	@Param({"false", "true"})
+	public boolean framed;
+
+	/**
+	 * Size of the seeded library, and the id PLAY_LIBRARY plays from the middle of it.
+	 */
+	private static final int LIBRARY_SIZE = 10000, LIBRARY_ID = LIBRARY_SIZE / 2;
+
+	private BridgeConnection connection = null;
+
+	private ByteBuffer commandBytes = null;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		Bridge.BridgeIO.setPlayer(new SimulatedPlayer());
+		// Resolving a library id is a lookup in the published snapshot, run with the GC profiler to check it allocates nothing.
+		LibraryFixture.seed("C:\\Users\\Public\\Videos\\", LIBRARY_SIZE);
+		connection = new BridgeConnection(null, 1, null);
+		connection.setPath("C:\\Users\\Public\\Videos\\Benchmark.mkv");
+		connection.setIndex(3);
+		commandBytes = ByteBuffer.wrap(encode(sequence(opcode), framed));
+	}
+
+	@Benchmark
+	public boolean dispatch() throws IOException
+	{
+		CommandDecoder decoder = connection.getDecoder();
+		commandBytes.rewind();
+		decoder.feed(commandBytes);
+		decoder.next();
+		return Bridge.BridgeIO.validateCommand(new PlayerCommand(connection));
+	}
+
+	/**
+	 * Looks up the opcode of a command name.
+	 * @param String name - Command name.
+	 * @return byte[] - Two byte opcode.
+	 */
+	private static byte[] sequence(String name)
+	{
+		if(name.equals("PLAY_FILE"))
+			return Bridge.BridgeIO.PLAY_FILE_SEQUENCE;
+		if(name.equals("RESUME_FILE"))
+			return Bridge.BridgeIO.RESUME_FILE_SEQUENCE;
+		if(name.equals("QUEUE_FILES"))
+			return Bridge.BridgeIO.QUEUE_FILES_SEQUENCE;
+		if(name.equals("PLAY_LIBRARY"))
+			return Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE;
+		if(name.equals("PLAY_TUBE"))
+			return Bridge.BridgeIO.PLAY_TUBE_SEQUENCE;
+		if(name.equals("PLAY_PAUSE"))
+			return Bridge.BridgeIO.PLAY_PAUSE_SEQUENCE;
+		if(name.equals("STOP_FILE"))
+			return Bridge.BridgeIO.STOP_FILE_SEQUENCE;
+		if(name.equals("FAST_FORWARD"))
+			return Bridge.BridgeIO.FAST_FORWARD_SEQUENCE;
+		if(name.equals("FAST_REWIND"))
+			return Bridge.BridgeIO.FAST_REWIND_SEQUENCE;
+		if(name.equals("SHOW_FRAME"))
+			return Bridge.BridgeIO.SHOW_FRAME_SEQUENCE;
+		if(name.equals("HIDE_FRAME"))
+			return Bridge.BridgeIO.HIDE_FRAME_SEQUENCE;
+		if(name.equals("SKIP"))
+			return new byte[]{ PlayerCommand.SKIP_COMMAND, 50};
+		if(name.equals("VOLUME"))
+			return new byte[]{ PlayerCommand.VOLUME_COMMAND, 50};
+		return new byte[]{ 1, 1};
+	}
+
+	/**
+	 * Encodes a command the way a client sends it, without the object stream wrapping.
+	 * @param byte[] command - Two byte opcode.
+	 * @param Boolean framed - True for a framed command with a request id.
+	 * @return byte[] - Command bytes.
+	 * @throws IOException - Never, written to memory.
+	 */
+	static byte[] encode(byte[] command, boolean framed) throws IOException
+	{
+		ByteArrayOutputStream payload_bytes = new ByteArrayOutputStream();
+		DataOutputStream payload = new DataOutputStream(payload_bytes);
+		if(command == Bridge.BridgeIO.PLAY_FILE_SEQUENCE || command == Bridge.BridgeIO.RESUME_FILE_SEQUENCE)
+		{
+			payload.writeUTF("C:\\Users\\Public\\Videos\\Benchmark.mkv");
+			payload.writeInt(3);
+		}
+		else if(command == Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE)
+		{
+			payload.writeInt(LIBRARY_ID);
+			payload.writeInt(3);
+		}
+		else if(command == Bridge.BridgeIO.QUEUE_FILES_SEQUENCE)
+		{
+			// The file and the two after it on the client's play-list.
+			payload.writeShort(3);
+			for(int i = 0; i < 3; i ++)
+			{
+				payload.writeUTF("C:\\Users\\Public\\Videos\\Benchmark "+(i + 1)+".mkv");
+				payload.writeInt(3 + i);
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		if(framed)
+		{
+			output.writeByte(StatusFrame.MAGIC);
+			output.writeByte(StatusFrame.VERSION);
+			output.writeShort(2 + 4 + payload_bytes.size());
+			output.write(command);
+			output.writeInt(1);
+		}
+		else
+			output.write(command);
+		output.write(payload_bytes.toByteArray());
+		return bytes.toByteArray();
+	}
+}
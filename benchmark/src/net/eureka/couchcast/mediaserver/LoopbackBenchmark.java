@@ -0,0 +1,168 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import net.eureka.couchcast.foundation.init.NetworkGlobals;
+
+/**
+ * End to end round trip through a running {@link Bridge} on the simulated player: a framed volume command goes out
+ * over TCP, through the decoder, the {@link CommandExecutor} and the player, and the time is taken once its
+ * acknowledgement comes back. Status frames pushed in between are read and skipped, as a client would.
+ * <br>
+ * The bridge runs persistent and the socket is kept open for the whole forked JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackBenchmark
+{
+	/**
+	 * Milliseconds to wait for the bridge to start listening.
+	 */
+	private static final long STARTUP_TIMEOUT = 10000L;
+
+	private static Socket socket = null;
+
+	private static DataInputStream input = null;
+
+	private static DataOutputStream output = null;
+
+	private int requestId = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException
+	{
+		if(socket != null)
+			return;
+		startBridge();
+		socket = connect();
+		socket.setTcpNoDelay(true);
+		input = new DataInputStream(socket.getInputStream());
+		output = new DataOutputStream(socket.getOutputStream());
+		// Start playing so volume commands reach the player.
+		roundTrip(Bridge.BridgeIO.PLAY_TUBE_SEQUENCE);
+	}
+
+	@Benchmark
+	public int volumeRoundTrip() throws IOException
+	{
+		return roundTrip(new byte[]{ PlayerCommand.VOLUME_COMMAND, (byte) (requestId % 100)});
+	}
+
+	/**
+	 * Sends a framed command and waits for its acknowledgement.
+	 * @param byte[] command - Two byte opcode.
+	 * @return Integer - Result of the acknowledgement.
+	 * @throws IOException - Bridge closed the connection.
+	 */
+	private int roundTrip(byte[] command) throws IOException
+	{
+		final int request_id = ++requestId;
+		output.writeByte(StatusFrame.MAGIC);
+		output.writeByte(StatusFrame.VERSION);
+		output.writeShort(2 + 4);
+		output.write(command);
+		output.writeInt(request_id);
+		output.flush();
+		while(true)
+		{
+			// Skip the header, MAGIC and VERSION.
+			input.readShort();
+			final byte type = input.readByte();
+			if(type == StatusFrame.TYPE_ACK)
+			{
+				final int acknowledged = input.readInt();
+				final short result = input.readShort();
+				if(acknowledged == request_id)
+					return result;
+			}
+			else if(type == StatusFrame.TYPE_STATUS)
+				input.skipBytes(StatusFrame.FRAME_SIZE - StatusFrame.HEADER_SIZE);
+			else
+				skipDelta(input.readByte());
+		}
+	}
+
+	/**
+	 * Skips the fields of a delta frame.
+	 * @param Byte mask - Changed field mask of the delta.
+	 * @throws IOException - Bridge closed the connection.
+	 */
+	private static void skipDelta(byte mask) throws IOException
+	{
+		int size = 0;
+		if((mask & StatusFrame.FIELD_FLAGS) != 0)
+			size += 1;
+		if((mask & StatusFrame.FIELD_VOLUME) != 0)
+			size += 1;
+		if((mask & StatusFrame.FIELD_LENGTH) != 0)
+			size += 8;
+		if((mask & StatusFrame.FIELD_TIME) != 0)
+			size += 8;
+		if((mask & StatusFrame.FIELD_INDEX) != 0)
+			size += 4;
+		input.skipBytes(size);
+	}
+
+	/**
+	 * Starts a persistent bridge on the simulated player in this JVM.
+	 */
+	static void startBridge()
+	{
+		Thread bridge = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Bridge.main(new String[]{ Bridge.SIMULATED_PLAYER_ARGUMENT, Bridge.PERSISTENT_ARGUMENT });
+			}
+		}, "Bridge");
+		bridge.setDaemon(true);
+		bridge.start();
+	}
+
+	/**
+	 * Connects to the bridge, retrying until it is listening.
+	 * @return {@link Socket} - Connected socket.
+	 * @throws IOException - Bridge never started listening.
+	 * @throws InterruptedException - Interrupted while waiting.
+	 */
+	static Socket connect() throws IOException, InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while(true)
+		{
+			// No configured interface means the bridge binds to all of them.
+			InetAddress address = NetworkGlobals.getDHCPInterface();
+			if(address == null)
+				address = InetAddress.getLoopbackAddress();
+			try
+			{
+				Socket connection = new Socket();
+				connection.connect(new InetSocketAddress(address, Bridge.PORT));
+				return connection;
+			}
+			catch (IOException e)
+			{
+				if(System.currentTimeMillis() > deadline)
+					throw e;
+			}
+			Thread.sleep(50L);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Throughput of encoding and decoding the status sent to the clients. The serialized benchmark is the old
+ * output.reset() + writeObject(info) path, kept as the baseline the binary {@link StatusFrame} is compared against.
+ * Run with the GC profiler (see {@link net.eureka.couchcast.Benchmarks}) for bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatusFrameBenchmark
+{
+	private final NetworkInfo info = new NetworkInfo(5400000L, 1000L, true, false, false, (byte) 25, 12);
+
+	/**
+	 * Same as info one time tick earlier.
+	 */
+	private final NetworkInfo lastSent = new NetworkInfo(5400000L, 0L, true, false, false, (byte) 25, 12);
+
+	private final NetworkInfo.Builder decoded = new NetworkInfo.Builder();
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(StatusFrame.MAXIMUM_FRAME_SIZE);
+
+	private final ByteBuffer keyframe = ByteBuffer.allocate(StatusFrame.FRAME_SIZE);
+
+	private final ByteArrayOutputStream serializedBytes = new ByteArrayOutputStream(512);
+
+	private ObjectOutputStream serializedOutput = null;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		serializedOutput = new ObjectOutputStream(serializedBytes);
+		StatusFrame.encode(info, keyframe);
+	}
+
+	@Benchmark
+	public int serializedObject() throws IOException
+	{
+		serializedBytes.reset();
+		serializedOutput.reset();
+		serializedOutput.writeObject(info);
+		serializedOutput.flush();
+		return serializedBytes.size();
+	}
+
+	@Benchmark
+	public int encodeKeyframe()
+	{
+		StatusFrame.encode(info, buffer);
+		return buffer.limit();
+	}
+
+	@Benchmark
+	public int encodeTimeDelta()
+	{
+		// Every frame during playback is a time tick.
+		StatusFrame.encodeDelta(info, lastSent, buffer);
+		return buffer.limit();
+	}
+
+	@Benchmark
+	public NetworkInfo.Builder decodeKeyframe()
+	{
+		keyframe.rewind();
+		return StatusFrame.decode(keyframe, decoded);
+	}
+}
@@ -0,0 +1,350 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * Replays a trace written with the --capture launch argument against a {@link Bridge} on the simulated player, started
+ * in this JVM as the {@link LoopbackBenchmark} does. Each captured connection gets a socket of its own, opened, fed its
+ * commands and closed at the captured times divided by the speed, or as fast as possible at max speed.
+ * <br>
+ * Framed commands are timed from being sent to their acknowledgement, or to the metrics or library frame answering
+ * them. Legacy commands are never acknowledged, they are timed to the next frame the bridge sends on the connection,
+ * which is the status frame their change pushes, and left out if none comes within LEGACY_RESPONSE_TIMEOUT. Frames
+ * captured are only counted, the simulated player is not the player the trace was captured against so their contents
+ * differ.
+ * <br>
+ * Usage: TrafficReplay trace [1 | N | max]
+ *
+ * @see TrafficCapture
+ */
+public final class TrafficReplay
+{
+	/**
+	 * Longest wait for a frame after a legacy command for it to count as the response.
+	 */
+	private static final long LEGACY_RESPONSE_TIMEOUT = 1000000000L;
+
+	/**
+	 * Milliseconds a connection waits for outstanding acknowledgements before it is closed.
+	 */
+	private static final long DRAIN_TIMEOUT = 5000L;
+
+	private static final LatencyHistogram acknowledged = Metrics.histogram("replay.acknowledged"),
+										  legacyResponse = Metrics.histogram("replay.legacy_response");
+
+	private static final LongAdder framesReceived = Metrics.counter("replay.frames_received");
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length < 1)
+		{
+			System.err.println("Usage: TrafficReplay trace [1 | N | max]");
+			System.exit(1);
+		}
+		// Zero replays as fast as possible.
+		final String speed_argument = (args.length > 1) ? args[1] : "1";
+		final double speed = speed_argument.equals("max") ? 0D : Double.parseDouble(speed_argument);
+		final ArrayList<TrafficCapture.Record> records = read(new File(args[0]));
+		LoopbackBenchmark.startBridge();
+		// Bridge start up is not part of the replay.
+		LoopbackBenchmark.connect().close();
+		replay(records, speed);
+		System.exit(0);
+	}
+
+	/**
+	 * Reads every record of a trace.
+	 * @param {@link File} file - Trace file.
+	 * @return ArrayList - Records in order.
+	 * @throws IOException - If the file is not a readable trace.
+	 */
+	private static ArrayList<TrafficCapture.Record> read(File file) throws IOException
+	{
+		ArrayList<TrafficCapture.Record> records = new ArrayList<TrafficCapture.Record>();
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			TrafficCapture.readHeader(input);
+			long time = 0L;
+			TrafficCapture.Record record;
+			while((record = TrafficCapture.readRecord(input, time)) != null)
+			{
+				records.add(record);
+				time = record.getTime();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return records;
+	}
+
+	/**
+	 * Replays the records and prints the report.
+	 * @param ArrayList records - Records in order.
+	 * @param Double speed - Multiple of the captured speed, zero for as fast as possible.
+	 * @throws IOException - If the bridge can't be reached.
+	 * @throws InterruptedException - Interrupted while connecting.
+	 */
+	private static void replay(ArrayList<TrafficCapture.Record> records, double speed) throws IOException, InterruptedException
+	{
+		HashMap<Integer, ReplayConnection> open = new HashMap<Integer, ReplayConnection>();
+		ArrayList<ReplayConnection> replayed = new ArrayList<ReplayConnection>();
+		long commands = 0L, frames_captured = 0L;
+		// Time before the first record is the bridge waiting for its first client, nothing to replay.
+		final long first = records.isEmpty() ? 0L : records.get(0).getTime(), started = System.nanoTime();
+		for(TrafficCapture.Record record : records)
+		{
+			if(speed > 0D)
+			{
+				final long due = started + (long) ((record.getTime() - first) / speed);
+				long remaining;
+				while((remaining = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(remaining);
+			}
+			final ReplayConnection connection = open.get(record.getConnection());
+			switch(record.getType())
+			{
+				case TrafficCapture.RECORD_CONNECT:
+					ReplayConnection connected = new ReplayConnection(LoopbackBenchmark.connect(), record.getConnection());
+					open.put(record.getConnection(), connected);
+					replayed.add(connected);
+					break;
+				case TrafficCapture.RECORD_COMMAND:
+					// Commands of a connection captured part way through have nowhere to go.
+					if(connection != null)
+					{
+						connection.send(record.getData());
+						commands ++;
+					}
+					break;
+				case TrafficCapture.RECORD_FRAME:
+					frames_captured ++;
+					break;
+				case TrafficCapture.RECORD_DISCONNECT:
+					if(connection != null)
+					{
+						connection.close();
+						open.remove(record.getConnection());
+					}
+					break;
+			}
+		}
+		// Trace ended with clients still connected.
+		for(ReplayConnection connection : open.values())
+			connection.close();
+		final long elapsed = System.nanoTime() - started;
+		long unanswered = 0L;
+		for(ReplayConnection connection : replayed)
+			unanswered += connection.getUnanswered();
+		System.out.println("Replayed "+commands+" commands on "+replayed.size()+" connections in "+(elapsed / 1000000L)+" ms at "
+				+((speed > 0D) ? speed+"x" : "max")+" speed, "+(long) (commands * 1e9D / Math.max(1L, elapsed))+" commands/s");
+		System.out.println("Frames captured "+frames_captured+", received "+framesReceived.sum()+", unanswered commands "+unanswered);
+		System.out.print(Metrics.report());
+	}
+
+	/**
+	 * One replayed client connection, with a thread reading what the bridge sends back.
+	 */
+	private static final class ReplayConnection implements Runnable
+	{
+		private final Socket socket;
+
+		private final OutputStream output;
+
+		private final DataInputStream input;
+
+		private final Thread reader;
+
+		/**
+		 * System.nanoTime() each framed command was sent, by request id, until acknowledged.
+		 */
+		private final ConcurrentHashMap<Integer, Long> sentFramed = new ConcurrentHashMap<Integer, Long>();
+
+		/**
+		 * System.nanoTime() each legacy command was sent, oldest first, until a frame follows.
+		 */
+		private final ConcurrentLinkedQueue<Long> sentLegacy = new ConcurrentLinkedQueue<Long>();
+
+		/**
+		 * @param {@link Socket} socket - Socket connected to the bridge.
+		 * @param Integer number - Number of the captured connection.
+		 * @throws IOException - If the socket streams can't be opened.
+		 */
+		ReplayConnection(Socket socket, int number) throws IOException
+		{
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			this.output = socket.getOutputStream();
+			this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.reader = new Thread(this, "Replay Reader "+number);
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		/**
+		 * Sends a captured command as it was decoded.
+		 * @param byte[] command - Command bytes.
+		 * @throws IOException - If the bridge closed the connection.
+		 */
+		void send(byte[] command) throws IOException
+		{
+			final long now = System.nanoTime();
+			// Framed commands carry their request id after the header and opcode.
+			if(command[0] == StatusFrame.MAGIC && command.length >= 10)
+				sentFramed.put(((command[6] & 0xFF) << 24) | ((command[7] & 0xFF) << 16) | ((command[8] & 0xFF) << 8) | (command[9] & 0xFF), now);
+			else
+				sentLegacy.add(now);
+			output.write(command);
+			output.flush();
+		}
+
+		/**
+		 * Waits up to DRAIN_TIMEOUT for outstanding acknowledgements, then closes the socket.
+		 */
+		void close()
+		{
+			final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+			while(!sentFramed.isEmpty() && reader.isAlive() && System.currentTimeMillis() < deadline)
+				LockSupport.parkNanos(1000000L);
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * @return Integer - Framed commands never acknowledged.
+		 */
+		int getUnanswered()
+		{
+			return sentFramed.size();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(true)
+				{
+					readFrame();
+					final long now = System.nanoTime();
+					framesReceived.increment();
+					// The first frame after a legacy command is its response.
+					Long sent;
+					while((sent = sentLegacy.poll()) != null)
+						if(now - sent <= LEGACY_RESPONSE_TIMEOUT)
+						{
+							legacyResponse.record(now - sent);
+							break;
+						}
+				}
+			}
+			catch (IOException e)
+			{
+				// Closed by the replay or the bridge.
+			}
+		}
+
+		/**
+		 * Reads one frame, timing it if it acknowledges a framed command.
+		 * @throws IOException - If the connection closed or the frame is not recognised.
+		 */
+		private void readFrame() throws IOException
+		{
+			if(input.readByte() != StatusFrame.MAGIC || input.readByte() != StatusFrame.VERSION)
+				throw new StreamCorruptedException("Not a status frame.");
+			final byte type = input.readByte();
+			switch(type)
+			{
+				case StatusFrame.TYPE_STATUS:
+					skip(StatusFrame.FRAME_SIZE - StatusFrame.HEADER_SIZE);
+					break;
+				case StatusFrame.TYPE_DELTA:
+					final byte mask = input.readByte();
+					skip((((mask & StatusFrame.FIELD_FLAGS) != 0) ? 1 : 0) + (((mask & StatusFrame.FIELD_VOLUME) != 0) ? 1 : 0)
+						+ (((mask & StatusFrame.FIELD_LENGTH) != 0) ? 8 : 0) + (((mask & StatusFrame.FIELD_TIME) != 0) ? 8 : 0)
+						+ (((mask & StatusFrame.FIELD_INDEX) != 0) ? 4 : 0));
+					break;
+				case StatusFrame.TYPE_ACK:
+					answered(input.readInt());
+					input.readShort();
+					break;
+				case StatusFrame.TYPE_METRICS:
+					answered(input.readInt());
+					skip(input.readInt());
+					break;
+				case StatusFrame.TYPE_LIBRARY:
+					answered(input.readInt());
+					// Flags, epoch, generation and next id.
+					skip(1 + 8 + 8 + 4);
+					skip(4 * input.readInt());
+					final int added = input.readInt();
+					for(int i = 0; i < added; i ++)
+					{
+						input.readInt();
+						skip(input.readUnsignedShort());
+					}
+					break;
+				default:
+					throw new StreamCorruptedException("Unknown frame type: "+type);
+			}
+		}
+
+		/**
+		 * Times the framed command a frame answers. Metrics and library syncs are answered with their own frame rather
+		 * than an acknowledgement.
+		 * @param Integer request_id - Request id the frame answers.
+		 */
+		private void answered(int request_id)
+		{
+			final Long sent = sentFramed.remove(request_id);
+			if(sent != null)
+				acknowledged.recordSince(sent);
+		}
+
+		/**
+		 * Skips bytes of the input.
+		 * @param Integer count - Bytes to skip.
+		 * @throws IOException - If the connection closed first.
+		 */
+		private void skip(int count) throws IOException
+		{
+			while(count > 0)
+			{
+				final int skipped = input.skipBytes(count);
+				if(skipped <= 0)
+				{
+					// Skip reports nothing at the end of the stream, a read tells the two apart.
+					if(input.read() < 0)
+						throw new EOFException();
+					count --;
+				}
+				count -= Math.max(skipped, 0);
+			}
+		}
+	}
+}
@@ -1,64 +1,321 @@
 package net.eureka.couchcast;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import net.eureka.couchcast.foundation.init.ApplicationGlobals;
 
 /**
  * Server logger. Only needs to be instantiated once. Attempts to find the log file via application directory, if not found creates a new one.
  * After the log is set up, the only method needed to be called to write to it is append(StringBuffer... text) below.
- * 
+ * <br>
+ * append() never touches the disk. Records go into a lock-free ring buffer and a background thread writes them in
+ * batches through a single {@link FileChannel} that stays open for the life of the process. The log is rotated to
+ * log.1.txt once it grows past MAXIMUM_LOG_SIZE. Errors that are followed by an exit should use appendNow(), which
+ * writes everything queued before returning.
+ *
  * @author Owen McMonagle.
  *
  * @see ApplicationGlobals
  * @see InitialiseFoundation
  */
-public final class Logger 
+public final class Logger
 {
 	/**
 	 * Name of the log file.
 	 */
 	private static final StringBuffer LOGGING_FILE = new StringBuffer(File.separator+"log.txt");
-	
+
+	/**
+	 * Name the log file is rotated to.
+	 */
+	private static final String ROTATED_FILE = "log.1.txt";
+
+	/**
+	 * Size in bytes the log may grow to before it is rotated.
+	 */
+	private static final long MAXIMUM_LOG_SIZE = 1024L * 1024L;
+
+	/**
+	 * Number of records the ring buffer holds, must be a power of two. Records appended while it is full are dropped.
+	 */
+	private static final int RING_CAPACITY = 1024;
+
+	/**
+	 * Milliseconds the writer thread waits between batches.
+	 */
+	private static final long FLUSH_INTERVAL = 250L;
+
+	/**
+	 * Queued records, a null slot is one the writer has consumed.
+	 */
+	private static final AtomicReferenceArray<String> ring = new AtomicReferenceArray<String>(RING_CAPACITY);
+
+	/**
+	 * Next slot to claim (producers) and next slot to write (writer). Only the writer moves the head.
+	 */
+	private static final AtomicLong tail = new AtomicLong(0L), head = new AtomicLong(0L);
+
+	/**
+	 * Records dropped because the ring buffer was full, since the last time the writer noted it in the log.
+	 */
+	private static final AtomicLong dropped = new AtomicLong(0L);
+
+	/**
+	 * Guards the channel. Held by whoever is draining the ring buffer so there is only ever one consumer.
+	 */
+	private static final Object writeLock = new Object();
+
+	/**
+	 * Reused write buffer and encoder, guarded by writeLock.
+	 */
+	private static final ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+
+	private static final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	private static File logFile = null;
+
+	private static FileChannel channel = null;
+
+	private static volatile Thread writer = null;
+
 	/**
 	 * Appends new text log. Can accept any amount of StringBuffer parameters. Printing each object as a new line in the log.
+	 * Returns straight away, the text is written by the logger thread.
 	 * @param StringBuffer... text - Each StringBuffer is a line to print in log.
 	 */
 	public static void append(StringBuffer... text)
 	{
-		try 
+		// Signal new line before each line of text.
+		final StringBuilder record = new StringBuilder();
+		for(StringBuffer line_of_text : text)
+			record.append(System.lineSeparator()).append(line_of_text);
+		if(!offer(record.toString()))
+			dropped.incrementAndGet();
+		startWriter();
+		// Bursts wake the writer early rather than waiting out the flush interval.
+		if(tail.get() - head.get() >= RING_CAPACITY / 2)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Appends new text log and writes it, along with anything queued before it, to disk before returning. For fatal
+	 * errors, where the process is about to exit.
+	 * @param StringBuffer... text - Each StringBuffer is a line to print in log.
+	 */
+	public static void appendNow(StringBuffer... text)
+	{
+		append(text);
+		flush(true);
+	}
+
+	/**
+	 * Claims the next free slot of the ring buffer.
+	 * @param String record - Record to queue.
+	 * @return Boolean - False if the ring buffer is full.
+	 */
+	private static boolean offer(String record)
+	{
+		long slot;
+		do
+		{
+			slot = tail.get();
+			// Full, the writer has not consumed this slot yet.
+			if(slot - head.get() >= RING_CAPACITY)
+				return false;
+		}
+		while(!tail.compareAndSet(slot, slot + 1));
+		ring.lazySet((int) (slot & (RING_CAPACITY - 1)), record);
+		return true;
+	}
+
+	/**
+	 * Starts the logger thread on first use, and flushes what is left when the process exits.
+	 */
+	private static void startWriter()
+	{
+		if(writer != null)
+			return;
+		synchronized (writeLock)
 		{
-			// Retrieve the system drive directory.
-			String system_drive = System.getenv("SYSTEMDRIVE"),
-				   // Retrieve the default home path.
-				   home_path = System.getenv("HOME");
-			// If home path is null, try the updated renamed home path.
-			home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
-			
-			// Create default home/download directory path. 
-			final StringBuffer directory_path = new StringBuffer(system_drive+home_path+File.separator+ApplicationGlobals.getName());
-			directory_path.append(LOGGING_FILE);
-			// Open up a buffered stream to the log file, set encoding to UTF-8.
-			BufferedWriter buffered_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(directory_path.toString()), true), "UTF-8"));
-			// Iterate through each line to print...
-			for(StringBuffer line_of_text : text)
+			if(writer != null)
+				return;
+			writer = new Thread(new Runnable()
 			{
-				// Signal new line. \n
-				buffered_writer.newLine();
-				// Write new log text.
-				buffered_writer.write(line_of_text.toString());
+				@Override
+				public void run()
+				{
+					while(true)
+					{
+						LockSupport.parkNanos(FLUSH_INTERVAL * 1000000L);
+						flush(false);
+					}
+				}
+			}, "Logger");
+			writer.setDaemon(true);
+			writer.start();
+			// Daemon thread dies with System.exit(), write what it had not got to yet.
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					flush(true);
+				}
+			}, "Logger Shutdown"));
+		}
+	}
+
+	/**
+	 * Drains the ring buffer into the log file.
+	 * @param Boolean force - True to force the written bytes to the storage device.
+	 */
+	private static void flush(boolean force)
+	{
+		synchronized (writeLock)
+		{
+			try
+			{
+				long position = head.get();
+				while(position < tail.get())
+				{
+					final int index = (int) (position & (RING_CAPACITY - 1));
+					final String record = ring.get(index);
+					// Slot claimed but not filled in yet, pick it up on the next batch.
+					if(record == null)
+						break;
+					ring.set(index, null);
+					head.set(++position);
+					write(record);
+				}
+				final long lost = dropped.getAndSet(0L);
+				if(lost > 0)
+					write(System.lineSeparator()+"Logger dropped "+lost+" records.");
+				drainBuffer();
+				if(force && channel != null)
+					channel.force(false);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				closeChannel();
 			}
-			// Flush bytes down stream.
-			buffered_writer.flush();
-			// Close buffered stream.
-			buffered_writer.close();
 		}
-		catch (Exception e) 
+	}
+
+	/**
+	 * Encodes a record into the write buffer, writing the buffer out whenever it fills.
+	 * @param String record - Record to write.
+	 * @throws IOException - Log file could not be written.
+	 */
+	private static void write(String record) throws IOException
+	{
+		final CharBuffer characters = CharBuffer.wrap(record);
+		encoder.reset();
+		while(true)
+		{
+			final CoderResult result = encoder.encode(characters, writeBuffer, true);
+			if(!result.isOverflow())
+				break;
+			drainBuffer();
+		}
+	}
+
+	/**
+	 * Writes the write buffer to the log file, rotating it first if it is too big.
+	 * @throws IOException - Log file could not be written.
+	 */
+	private static void drainBuffer() throws IOException
+	{
+		writeBuffer.flip();
+		try
+		{
+			if(!writeBuffer.hasRemaining())
+				return;
+			openChannel();
+			if(channel.size() + writeBuffer.remaining() > MAXIMUM_LOG_SIZE)
+				rotate();
+			while(writeBuffer.hasRemaining())
+				channel.write(writeBuffer);
+		}
+		finally
+		{
+			writeBuffer.clear();
+		}
+	}
+
+	/**
+	 * Opens the log file for appending if it is not already open.
+	 * @throws IOException - Log file could not be opened.
+	 */
+	private static void openChannel() throws IOException
+	{
+		if(channel != null)
+			return;
+		if(logFile == null)
+			logFile = findLogFile();
+		channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Moves the current log to ROTATED_FILE, replacing the previous one, and starts a new log.
+	 * @throws IOException - Log file could not be moved or reopened.
+	 */
+	private static void rotate() throws IOException
+	{
+		closeChannel();
+		Files.move(logFile.toPath(), new File(logFile.getParentFile(), ROTATED_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		openChannel();
+	}
+
+	/**
+	 * Closes the log file, it is reopened by the next write.
+	 */
+	private static void closeChannel()
+	{
+		if(channel == null)
+			return;
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+		channel = null;
+	}
+
+	/**
+	 * Resolves the log file within the application directory.
+	 * @return {@link File} - Log file.
+	 */
+	private static File findLogFile()
+	{
+		// Retrieve the system drive directory.
+		String system_drive = System.getenv("SYSTEMDRIVE"),
+			   // Retrieve the default home path.
+			   home_path = System.getenv("HOME");
+		// If home path is null, try the updated renamed home path.
+		home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
+
+		// Create default home/download directory path.
+		final StringBuffer directory_path = new StringBuffer(system_drive+home_path+File.separator+ApplicationGlobals.getName());
+		directory_path.append(LOGGING_FILE);
+		return new File(directory_path.toString());
 	}
 }
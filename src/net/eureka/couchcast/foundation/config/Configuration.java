@@ -5,6 +5,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 
 import net.eureka.couchcast.Logger;
 import net.eureka.couchcast.foundation.init.ApplicationGlobals;
@@ -14,11 +21,16 @@ import net.eureka.couchcast.player.Static;
 
 /**
  * Handles the creation, writing and reading of the configuration file located within the application directory. The configuration file holds
- * values such as the server name, download directory and process ID of the current or last session.
- * 
+ * values such as the server name, media directories and process ID of the current or last session.
+ * <br>
+ * The file is read once into an immutable {@link ConfigurationSnapshot}, published through a volatile field so readers
+ * never lock or touch the disk. A {@link WatchService} on the application directory re-reads the file when it changes.
+ * Where the directory can not be watched, getSnapshot() falls back to checking the modification time of the file at
+ * most once every REFRESH_INTERVAL.
+ *
  * @author Owen McMonagle.
  *
- * @see InitialiseFoundation 
+ * @see InitialiseFoundation
  * @see ApplicationGlobals
  * @see NetworkGlobals
  * @see Logger
@@ -29,33 +41,82 @@ public final class Configuration
 	 * Name of the configuration file.
 	 */
 	private static final String CONFIG_FILE = "config.txt";
-	
-	public Configuration() 
+
+	/**
+	 * Milliseconds between modification time checks when the file can not be watched.
+	 */
+	private static final long REFRESH_INTERVAL = 1000L;
+
+	/**
+	 * Values last read from the configuration file, null until the first read.
+	 */
+	private static volatile ConfigurationSnapshot snapshot = null;
+
+	/**
+	 * True once the watcher thread is running.
+	 */
+	private static volatile boolean watching = false;
+
+	/**
+	 * Next time a modification time check is due, only used without the watcher.
+	 */
+	private static volatile long nextRefresh = 0L;
+
+	public Configuration()
 	{
 		checkConfigurationFile();
 	}
-	
+
+	/**
+	 * Retrieves the values of the configuration file. Reads the file on first use only.
+	 * @return {@link ConfigurationSnapshot} - Current configuration.
+	 */
+	public static ConfigurationSnapshot getSnapshot()
+	{
+		ConfigurationSnapshot current = snapshot;
+		if(current == null)
+			checkConfigurationFile();
+		// No watcher, poll the modification time instead.
+		else if(!watching && System.currentTimeMillis() >= nextRefresh)
+			refresh();
+		return snapshot;
+	}
+
 	/**
 	 * Attempts to retrieve and verify the existence of the configuration file. If the configuration file exists, then
-	 * the file is read from and data updated. If not the file is created and data is written to it. 
+	 * the file is read from and data updated, then watched for changes.
 	 */
-	private static void checkConfigurationFile()
+	private static synchronized void checkConfigurationFile()
 	{
+		if(snapshot != null)
+			return;
+		snapshot = ConfigurationSnapshot.DEFAULT;
+		refresh();
+		startWatching();
+	}
+
+	/**
+	 * Reads the configuration file again if it has changed since the current snapshot was read.
+	 */
+	private static synchronized void refresh()
+	{
+		nextRefresh = System.currentTimeMillis() + REFRESH_INTERVAL;
 		// Retrieve configuration file.
 		File configuration_file = getConfigurationFile();
-		// If configuration file exists...
-		if(configuration_file.exists())
+		// If configuration file exists and has changed...
+		if(configuration_file.exists() && snapshot.isStale(configuration_file.lastModified(), configuration_file.length()))
 			// read from it.
-			readFromConfigurationFile();
+			readFromConfigurationFile(configuration_file);
 	}
-	
+
 	/**
-	 * Reads from the configuration file then updates the data retrieved from it.
+	 * Reads from the configuration file then publishes the data retrieved from it.
+	 * @param {@link File} configuration_file - Configuration file of the server.
 	 */
-	private static void readFromConfigurationFile()
+	private static void readFromConfigurationFile(File configuration_file)
 	{
-		// Retrieve configuration file.
-		File configuration_file = getConfigurationFile();
+		// Note the file state before reading, a write during the read is picked up next time.
+		final long last_modified = configuration_file.lastModified(), length = configuration_file.length();
 		try
 		{
 			// Open a buffered stream to file, with encoding of UTF-8.
@@ -64,38 +125,106 @@ public final class Configuration
 			buffered_reader.readLine();
 			// Ignore server name.
 			buffered_reader.readLine();
-			// Ignore media directory.
-			buffered_reader.readLine();
+			// Get media directories.
+			String media_directories = buffered_reader.readLine();
 			// Ignore process id line.
 			buffered_reader.readLine();
 			// Get is minimised
 			boolean is_minimized = Boolean.parseBoolean(buffered_reader.readLine());
-			// Ignore deep search.
-			buffered_reader.readLine();
+			// Get deep search, on unless turned off.
+			boolean is_deep_search = !"false".equalsIgnoreCase(String.valueOf(buffered_reader.readLine()).trim());
 			boolean is_music_mode = Boolean.parseBoolean(buffered_reader.readLine());
-			// Ignore file/folder search delay.
-			buffered_reader.readLine();
+			// Get file/folder search delay.
+			long search_delay = parseDelay(buffered_reader.readLine());
 			// Ignore update media delay.
 			buffered_reader.readLine();
 			// Get name of network interface.
 			String network_interface_name = buffered_reader.readLine();
+			// Close file stream.
+			buffered_reader.close();
 			if(NetworkGlobals.getDHCPInterface() == null)
 				// Set DHCP interface and name.
 				NetworkGlobals.setDhcpNetwork(Static.getInetAddressFromName(network_interface_name));
-			// Set minimised.
-			ApplicationGlobals.setMinimizeWindows(is_minimized);
-			ApplicationGlobals.setMusicMode(is_music_mode);
-			// Close file stream.
-			buffered_reader.close();
-		} 
-		catch (IOException e) 
+			// Publish the new values.
+			snapshot = new ConfigurationSnapshot(media_directories, is_minimized, is_deep_search, is_music_mode, search_delay, network_interface_name,
+					last_modified, length);
+		}
+		catch (IOException e)
 		{
 			e.printStackTrace();
 			// Append to log if error.
 			Logger.append(new StringBuffer(e.getMessage()));
 		}
 	}
-	
+
+	/**
+	 * Parses a delay line of the configuration file.
+	 * @param String line - Delay in milliseconds.
+	 * @return Long - Delay, zero if missing or not a number.
+	 */
+	private static long parseDelay(String line)
+	{
+		try
+		{
+			return (line == null) ? 0L : Math.max(0L, Long.parseLong(line.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			return 0L;
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that re-reads the configuration file whenever it is created or modified.
+	 */
+	private static void startWatching()
+	{
+		final Path directory = getConfigurationFile().getParentFile().toPath();
+		final WatchService watch_service;
+		try
+		{
+			watch_service = FileSystems.getDefault().newWatchService();
+			directory.register(watch_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		catch (IOException e)
+		{
+			// Directory missing or not watchable, getSnapshot() polls instead.
+			return;
+		}
+		Thread watcher = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while(true)
+					{
+						WatchKey key = watch_service.take();
+						boolean changed = false;
+						for(WatchEvent<?> event : key.pollEvents())
+							if(event.kind() == StandardWatchEventKinds.OVERFLOW || CONFIG_FILE.equals(String.valueOf(event.context())))
+								changed = true;
+						// Several events arrive per save, the file state check reads it once.
+						if(changed)
+							refresh();
+						// Directory gone, fall back to polling.
+						if(!key.reset())
+							break;
+					}
+				}
+				catch (InterruptedException | ClosedWatchServiceException e)
+				{
+					e.printStackTrace();
+				}
+				watching = false;
+			}
+		}, "Configuration Watcher");
+		watcher.setDaemon(true);
+		watching = true;
+		watcher.start();
+	}
+
 	/**
 	 * Retrieves the configuration file from the application directory.
 	 * @return File - Configuration file of the server.
@@ -108,8 +237,8 @@ public final class Configuration
 			   home_path = System.getenv("HOME");
 		// If home path is null, try the updated renamed home path.
 		home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
-		
-		// Create default home/download directory path. 
+
+		// Create default home/download directory path.
 		final StringBuffer directory_path = new StringBuffer(system_drive+home_path+File.separator+ApplicationGlobals.getName()+File.separator);
 		return new File(directory_path+CONFIG_FILE.toString());
 	}
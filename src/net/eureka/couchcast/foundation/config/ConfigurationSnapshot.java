@@ -0,0 +1,111 @@
+package net.eureka.couchcast.foundation.config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable copy of the values the player reads from the configuration file, along with the modification time and
+ * size of the file it was read from so an unchanged file is never parsed twice. A new snapshot is published by
+ * {@link Configuration} whenever the file changes.
+ *
+ * @see Configuration
+ */
+public final class ConfigurationSnapshot
+{
+	/**
+	 * Values used while there is no configuration file.
+	 */
+	static final ConfigurationSnapshot DEFAULT = new ConfigurationSnapshot(null, true, true, false, 0L, null, 0L, -1L);
+
+	private final List<String> mediaDirectories;
+
+	private final boolean minimizeWindows, deepSearch, musicMode;
+
+	private final long searchDelay;
+
+	private final String networkInterfaceName;
+
+	private final long lastModified, length;
+
+	/**
+	 * @param String media_directories - Media directories, separated by File.pathSeparator.
+	 * @param Boolean minimize_windows - Minimize all other desktop windows when playing.
+	 * @param Boolean deep_search - Search the sub directories of the media directories too.
+	 * @param Boolean music_mode - Hide the video frame when playing.
+	 * @param Long search_delay - Milliseconds between searches of media directories that can't be watched.
+	 * @param String network_interface_name - Name of the network interface to bind to.
+	 * @param Long last_modified - Modification time of the file the values were read from.
+	 * @param Long length - Size of the file the values were read from.
+	 */
+	ConfigurationSnapshot(String media_directories, boolean minimize_windows, boolean deep_search, boolean music_mode, long search_delay,
+			String network_interface_name, long last_modified, long length)
+	{
+		this.mediaDirectories = splitDirectories(media_directories);
+		this.minimizeWindows = minimize_windows;
+		this.deepSearch = deep_search;
+		this.musicMode = music_mode;
+		this.searchDelay = search_delay;
+		this.networkInterfaceName = network_interface_name;
+		this.lastModified = last_modified;
+		this.length = length;
+	}
+
+	/**
+	 * Splits the media directory line into its directories.
+	 * @param String media_directories - Media directories, separated by File.pathSeparator.
+	 * @return List - Non empty directories, unmodifiable.
+	 */
+	private static List<String> splitDirectories(String media_directories)
+	{
+		if(media_directories == null)
+			return Collections.emptyList();
+		ArrayList<String> directories = new ArrayList<String>();
+		for(String directory : media_directories.split(File.pathSeparator))
+			if(!directory.trim().isEmpty())
+				directories.add(directory.trim());
+		return Collections.unmodifiableList(directories);
+	}
+
+	public List<String> getMediaDirectories()
+	{
+		return mediaDirectories;
+	}
+
+	public boolean isMinimizeWindows()
+	{
+		return minimizeWindows;
+	}
+
+	public boolean isDeepSearch()
+	{
+		return deepSearch;
+	}
+
+	public boolean isMusicMode()
+	{
+		return musicMode;
+	}
+
+	public long getSearchDelay()
+	{
+		return searchDelay;
+	}
+
+	public String getNetworkInterfaceName()
+	{
+		return networkInterfaceName;
+	}
+
+	/**
+	 * Checks whether the file this snapshot was read from has changed since.
+	 * @param Long last_modified - Current modification time of the file.
+	 * @param Long file_length - Current size of the file.
+	 * @return Boolean - True if the file needs to be read again.
+	 */
+	boolean isStale(long last_modified, long file_length)
+	{
+		return last_modified != lastModified || file_length != length;
+	}
+}
@@ -15,11 +15,10 @@ public final class ApplicationGlobals
 {
 	
 	/**
-	 * Used by the {@link MediaPlayer} to decide whether or not to minimize all other desktop windows when the play button is pressed. 
+	 * Keeps the OOP player process, VLC and the video frame alive between media and clients instead of exiting on stop
+	 * or when the last client disconnects.
 	 */
-	private static boolean minimizeWindows = true;
-	
-	private static boolean musicMode = false;
+	private static volatile boolean persistent = false;
 	
 	/**
 	 * Name of the program.
@@ -39,26 +38,28 @@ public final class ApplicationGlobals
 		return new String(name);
 	}
 
+	/**
+	 * Used by the {@link MediaPlayer} to decide whether or not to minimize all other desktop windows when the play button is pressed.
+	 * Read from the cached {@link Configuration}, never from disk.
+	 */
 	public static boolean isMinimizeWindows() 
 	{
-		new Configuration();
-		return minimizeWindows;
+		return Configuration.getSnapshot().isMinimizeWindows();
 	}
 
-	public static void setMinimizeWindows(boolean minimizeWindows) 
+	public static boolean isMusicMode() 
 	{
-		ApplicationGlobals.minimizeWindows = minimizeWindows;
+		return Configuration.getSnapshot().isMusicMode();
 	}
-
-	public static boolean isMusicMode() 
+	
+	public static boolean isPersistent()
 	{
-		new Configuration();
-		return musicMode;
+		return persistent;
 	}
 
-	public static void setMusicMode(boolean musicMode)
+	public static void setPersistent(boolean persistent)
 	{
-		ApplicationGlobals.musicMode = musicMode;
+		ApplicationGlobals.persistent = persistent;
 	}
 	
 	public static String getInstallPath()
@@ -8,6 +8,17 @@ public final class NetworkGlobals
 	
 	private static InetAddress dhcpNetwork = null;
 	
+	/**
+	 * Used by the {@link Bridge} to decide whether status updates are sent as Java serialized {@link NetworkInfo} objects
+	 * (old clients) instead of binary status frames.
+	 */
+	private static boolean legacyStatus = false;
+	
+	/**
+	 * Milliseconds between the heartbeat status updates the {@link Bridge} sends while media is playing.
+	 */
+	private static long statusHeartbeat = 1000L;
+	
 	public static void setDhcpNetwork(InetAddress dhcp_network)
 	{
 		NetworkGlobals.dhcpNetwork = dhcp_network;
@@ -17,5 +28,26 @@ public final class NetworkGlobals
 	{
 		return dhcpNetwork;
 	}
+	
+	public static boolean isLegacyStatus()
+	{
+		return legacyStatus;
+	}
+	
+	public static void setLegacyStatus(boolean legacy_status)
+	{
+		NetworkGlobals.legacyStatus = legacy_status;
+	}
+	
+	public static long getStatusHeartbeat()
+	{
+		return statusHeartbeat;
+	}
+	
+	public static void setStatusHeartbeat(long status_heartbeat)
+	{
+		// Anything below 100ms would be polling again.
+		NetworkGlobals.statusHeartbeat = Math.max(100L, status_heartbeat);
+	}
 
 }
@@ -0,0 +1,144 @@
+package net.eureka.couchcast.library;
+
+import java.util.Locale;
+
+/**
+ * Immutable record of one media file in the {@link MediaLibrary}. The id is given once when the file is first indexed
+ * and kept for as long as the file stays at the same path, even when it changes, so clients can hold on to it.
+ *
+ * @see MediaLibrary
+ * @see LibraryIndex
+ */
+public final class LibraryEntry
+{
+	/**
+	 * Type of media, judged by the file extension.
+	 */
+	public static final byte TYPE_VIDEO = 0, TYPE_AUDIO = 1;
+
+	/**
+	 * Id of an entry found by a scan that has not been given an id yet.
+	 */
+	static final int NO_ID = -1;
+
+	private static final String[] VIDEO_EXTENSIONS = { "3gp", "avi", "divx", "flv", "m2ts", "m4v", "mkv", "mov", "mp4", "mpeg", "mpg", "mts",
+			"ogv", "ts", "vob", "webm", "wmv" },
+								  AUDIO_EXTENSIONS = { "aac", "aiff", "alac", "ape", "flac", "m4a", "mka", "mp3", "oga", "ogg", "opus",
+			"wav", "wma" };
+
+	private final int id;
+
+	private final String path;
+
+	private final long size, modified, duration;
+
+	private final byte type;
+
+	/**
+	 * @param Integer id - Library id, NO_ID until given one.
+	 * @param String path - Absolute path of the media file.
+	 * @param Long size - Size of the file in bytes.
+	 * @param Long modified - Modification time of the file.
+	 * @param Long duration - Length of the media in milliseconds, zero until known.
+	 * @param Byte type - TYPE_VIDEO or TYPE_AUDIO.
+	 */
+	LibraryEntry(int id, String path, long size, long modified, long duration, byte type)
+	{
+		this.id = id;
+		this.path = path;
+		this.size = size;
+		this.modified = modified;
+		this.duration = duration;
+		this.type = type;
+	}
+
+	/**
+	 * Works out the type of media of a file from its extension.
+	 * @param String name - File name.
+	 * @return Byte - TYPE_VIDEO, TYPE_AUDIO or -1 if not a media file.
+	 */
+	static byte typeOf(String name)
+	{
+		final int dot = name.lastIndexOf('.');
+		if(dot < 0)
+			return -1;
+		String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+		for(String video : VIDEO_EXTENSIONS)
+			if(video.equals(extension))
+				return TYPE_VIDEO;
+		for(String audio : AUDIO_EXTENSIONS)
+			if(audio.equals(extension))
+				return TYPE_AUDIO;
+		return -1;
+	}
+
+	/**
+	 * Checks if the file still has the size and modification time it was indexed with.
+	 * @param Long file_size - Current size of the file.
+	 * @param Long file_modified - Current modification time of the file.
+	 * @return Boolean - True if unchanged.
+	 */
+	boolean isCurrent(long file_size, long file_modified)
+	{
+		return size == file_size && modified == file_modified;
+	}
+
+	/**
+	 * Copies the entry with a new id.
+	 * @param Integer new_id - Library id.
+	 * @return {@link LibraryEntry} - Copy with the id.
+	 */
+	LibraryEntry withId(int new_id)
+	{
+		return new LibraryEntry(new_id, path, size, modified, duration, type);
+	}
+
+	/**
+	 * Copies the entry with a known duration.
+	 * @param Long new_duration - Length of the media in milliseconds.
+	 * @return {@link LibraryEntry} - Copy with the duration.
+	 */
+	LibraryEntry withDuration(long new_duration)
+	{
+		return new LibraryEntry(id, path, size, modified, new_duration, type);
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Retrieves the file name of the entry, the part of the path after the last separator.
+	 * @return String - File name.
+	 */
+	public String getName()
+	{
+		return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	public long getModified()
+	{
+		return modified;
+	}
+
+	public long getDuration()
+	{
+		return duration;
+	}
+
+	public byte getType()
+	{
+		return type;
+	}
+}
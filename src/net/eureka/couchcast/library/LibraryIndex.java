@@ -0,0 +1,338 @@
+package net.eureka.couchcast.library;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of every {@link LibraryEntry} in the {@link MediaLibrary}. A new snapshot is built off to the side
+ * whenever the library changes and published whole, so queries never lock, never touch the disk and never wait on a
+ * scan. Entries are held sorted by path, so the contents of a directory is a binary search away, and by id.
+ * <br>
+ * The snapshot is also the path table clients sync so they can play media by id rather than sending its path. Every path
+ * is held once more as UTF-8 in a single byte arena, indexed by id, so a path is copied to the wire as it is rather than
+ * encoded per request. Each snapshot has a generation, one more than the last, and logs the ids removed in the last
+ * MAXIMUM_REMOVALS changes, so a client that gives the generation it has and the next id it knows is only sent the ids
+ * removed and the paths added since. Ids are only ever given out in increasing order and never reused, so every path
+ * added since has an id of at least the client's next id. The epoch identifies the index file the ids come from, a
+ * client with another epoch has to start over.
+ *
+ * @see MediaLibrary
+ */
+public final class LibraryIndex
+{
+	/**
+	 * Snapshot of an empty library.
+	 */
+	static final LibraryIndex EMPTY = new LibraryIndex(Collections.<LibraryEntry>emptyList(), 0, 0L, 0L, null);
+
+	/**
+	 * Most removed ids logged for syncing clients.
+	 */
+	private static final int MAXIMUM_REMOVALS = 4096;
+
+	/**
+	 * Entries sorted by path.
+	 */
+	private final LibraryEntry[] sorted;
+
+	/**
+	 * Lower case file names, in the order of sorted.
+	 */
+	private final String[] names;
+
+	/**
+	 * Entries by id, null where an id is no longer used.
+	 */
+	private final LibraryEntry[] byId;
+
+	private final HashMap<String, LibraryEntry> byPath;
+
+	/**
+	 * Id the next new entry will be given.
+	 */
+	private final int nextId;
+
+	private final long epoch, generation;
+
+	/**
+	 * UTF-8 bytes of every path, in id order. The path of an id runs from its offset to the offset of the next id, and
+	 * is empty where the id is no longer used.
+	 */
+	private final byte[] arena;
+
+	private final int[] offsets;
+
+	/**
+	 * Ids removed, and the generations they were removed in, oldest first.
+	 */
+	private final int[] removedIds;
+
+	private final long[] removedGenerations;
+
+	/**
+	 * Oldest generation a client can sync from, every id removed after it is logged.
+	 */
+	private final long syncableFrom;
+
+	/**
+	 * @param Collection entries - Every entry in the library, each with an id below next_id.
+	 * @param Integer next_id - Id the next new entry will be given.
+	 * @param Long epoch - Identifies the index file the ids come from.
+	 * @param Long generation - Generation of the snapshot.
+	 * @param {@link LibraryIndex} previous - Last snapshot published, its paths and removal log are carried on. May be null.
+	 */
+	LibraryIndex(Collection<LibraryEntry> entries, int next_id, long epoch, long generation, LibraryIndex previous)
+	{
+		this.sorted = entries.toArray(new LibraryEntry[entries.size()]);
+		Arrays.sort(sorted, new Comparator<LibraryEntry>()
+		{
+			@Override
+			public int compare(LibraryEntry first, LibraryEntry second)
+			{
+				return first.getPath().compareTo(second.getPath());
+			}
+		});
+		this.names = new String[sorted.length];
+		this.byId = new LibraryEntry[next_id];
+		this.byPath = new HashMap<String, LibraryEntry>(sorted.length * 2);
+		for(int i = 0; i < sorted.length; i ++)
+		{
+			names[i] = sorted[i].getName().toLowerCase(Locale.ROOT);
+			byId[sorted[i].getId()] = sorted[i];
+			byPath.put(sorted[i].getPath(), sorted[i]);
+		}
+		this.nextId = next_id;
+		this.epoch = epoch;
+		this.generation = generation;
+		// Ids of another epoch mean nothing here.
+		if(previous != null && previous.epoch != epoch)
+			previous = null;
+		// Build the arena, copying paths already encoded by the last snapshot.
+		this.offsets = new int[next_id + 1];
+		byte[][] encoded = new byte[next_id][];
+		int size = 0;
+		for(int id = 0; id < next_id; id ++)
+		{
+			offsets[id] = size;
+			if(byId[id] == null)
+				continue;
+			if(previous != null && previous.get(id) != null)
+				size += previous.getPathLength(id);
+			else
+			{
+				encoded[id] = byId[id].getPath().getBytes(StandardCharsets.UTF_8);
+				size += encoded[id].length;
+			}
+		}
+		offsets[next_id] = size;
+		this.arena = new byte[size];
+		for(int id = 0; id < next_id; id ++)
+			if(encoded[id] != null)
+				System.arraycopy(encoded[id], 0, arena, offsets[id], encoded[id].length);
+			else if(byId[id] != null)
+				System.arraycopy(previous.arena, previous.offsets[id], arena, offsets[id], previous.getPathLength(id));
+		// Log the ids removed since the last snapshot.
+		int kept = 0, removed = 0;
+		if(previous != null)
+		{
+			kept = previous.removedIds.length;
+			for(int id = 0; id < previous.nextId; id ++)
+				if(previous.byId[id] != null && get(id) == null)
+					removed ++;
+		}
+		final int dropped = Math.max(0, kept + removed - MAXIMUM_REMOVALS);
+		this.removedIds = new int[kept + removed - dropped];
+		this.removedGenerations = new long[removedIds.length];
+		int position = 0;
+		for(int i = dropped; i < kept; i ++, position ++)
+		{
+			removedIds[position] = previous.removedIds[i];
+			removedGenerations[position] = previous.removedGenerations[i];
+		}
+		if(previous != null)
+			for(int id = 0; id < previous.nextId && position < removedIds.length; id ++)
+				if(previous.byId[id] != null && get(id) == null)
+				{
+					removedIds[position] = id;
+					removedGenerations[position ++] = generation;
+				}
+		// Clients from before a dropped removal can't tell it happened.
+		long syncable_from = (previous == null) ? generation : previous.syncableFrom;
+		if(dropped > 0)
+			syncable_from = Math.max(syncable_from, (dropped <= kept) ? previous.removedGenerations[dropped - 1] : generation);
+		this.syncableFrom = syncable_from;
+	}
+
+	/**
+	 * Retrieves an entry by id.
+	 * @param Integer id - Library id.
+	 * @return {@link LibraryEntry} - Entry, null if there is none with that id.
+	 */
+	public LibraryEntry get(int id)
+	{
+		return (id >= 0 && id < byId.length) ? byId[id] : null;
+	}
+
+	/**
+	 * Retrieves an entry by path.
+	 * @param String path - Absolute path of the media file.
+	 * @return {@link LibraryEntry} - Entry, null if the file is not in the library.
+	 */
+	public LibraryEntry get(String path)
+	{
+		return byPath.get(path);
+	}
+
+	/**
+	 * Retrieves every entry within a directory and its sub directories.
+	 * @param String directory - Absolute path of the directory, with or without a trailing separator.
+	 * @return List - Entries sorted by path, unmodifiable.
+	 */
+	public List<LibraryEntry> list(String directory)
+	{
+		final char separator = (directory.indexOf('\\') >= 0) ? '\\' : '/';
+		final String prefix = (directory.endsWith("/") || directory.endsWith("\\")) ? directory : directory+separator;
+		// Every path starting with the prefix sorts between the prefix and the prefix followed by the highest character.
+		final int from = search(prefix), to = search(prefix+Character.MAX_VALUE);
+		return Collections.unmodifiableList(Arrays.asList(sorted).subList(from, to));
+	}
+
+	/**
+	 * Finds the position of the first entry with a path not less than the key.
+	 * @param String key - Path to find.
+	 * @return Integer - Position within sorted.
+	 */
+	private int search(String key)
+	{
+		int low = 0, high = sorted.length;
+		while(low < high)
+		{
+			final int middle = (low + high) >>> 1;
+			if(sorted[middle].getPath().compareTo(key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Finds entries with file names containing the text, ignoring case.
+	 * @param String text - Text to find.
+	 * @param Integer limit - Most entries returned.
+	 * @return List - Matching entries sorted by path.
+	 */
+	public List<LibraryEntry> search(String text, int limit)
+	{
+		final String lower = text.toLowerCase(Locale.ROOT);
+		ArrayList<LibraryEntry> found = new ArrayList<LibraryEntry>();
+		for(int i = 0; i < names.length && found.size() < limit; i ++)
+			if(names[i].contains(lower))
+				found.add(sorted[i]);
+		return found;
+	}
+
+	/**
+	 * Retrieves every entry.
+	 * @return List - Entries sorted by path, unmodifiable.
+	 */
+	public List<LibraryEntry> getEntries()
+	{
+		return Collections.unmodifiableList(Arrays.asList(sorted));
+	}
+
+	public int size()
+	{
+		return sorted.length;
+	}
+
+	/**
+	 * Retrieves the id the next new entry will be given, one past the highest id in the path table.
+	 * @return Integer - Next id.
+	 */
+	public int getNextId()
+	{
+		return nextId;
+	}
+
+	public long getEpoch()
+	{
+		return epoch;
+	}
+
+	public long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Retrieves the length of the UTF-8 path of an id.
+	 * @param Integer id - Library id.
+	 * @return Integer - Length in bytes, zero if there is no entry with that id.
+	 */
+	public int getPathLength(int id)
+	{
+		return (id >= 0 && id < nextId) ? offsets[id + 1] - offsets[id] : 0;
+	}
+
+	/**
+	 * Copies the UTF-8 path of an id from the arena, allocating nothing.
+	 * @param Integer id - Library id of an entry.
+	 * @param {@link ByteBuffer} to - Buffer with at least getPathLength(id) bytes remaining.
+	 */
+	public void copyPath(int id, ByteBuffer to)
+	{
+		to.put(arena, offsets[id], getPathLength(id));
+	}
+
+	/**
+	 * Checks if a client's path table can be brought up to date from this snapshot, rather than sent again whole.
+	 * @param Long client_epoch - Epoch of the client's table.
+	 * @param Long client_generation - Generation of the client's table.
+	 * @return Boolean - True if every id removed since is logged.
+	 */
+	public boolean canSync(long client_epoch, long client_generation)
+	{
+		return client_epoch == epoch && client_generation >= syncableFrom && client_generation <= generation;
+	}
+
+	/**
+	 * Finds the first logged removal after a generation.
+	 * @param Long client_generation - Generation of the client's table.
+	 * @return Integer - Position of the first removal after it, getRemovedCount() if none.
+	 */
+	public int getRemovedAfter(long client_generation)
+	{
+		int position = removedIds.length;
+		while(position > 0 && removedGenerations[position - 1] > client_generation)
+			position --;
+		return position;
+	}
+
+	/**
+	 * Retrieves the number of logged removals.
+	 * @return Integer - Removals in the log.
+	 */
+	public int getRemovedCount()
+	{
+		return removedIds.length;
+	}
+
+	/**
+	 * Retrieves a logged removal.
+	 * @param Integer position - Position within the log, oldest first.
+	 * @return Integer - Id removed.
+	 */
+	public int getRemovedId(int position)
+	{
+		return removedIds[position];
+	}
+}
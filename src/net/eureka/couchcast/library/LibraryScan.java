@@ -0,0 +1,130 @@
+package net.eureka.couchcast.library;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.RecursiveTask;
+
+import net.eureka.couchcast.Logger;
+
+/**
+ * Fork/join scan of one media directory. Each sub directory is scanned by a task of its own, so a library spread over
+ * many directories is listed by every thread of the pool at once, which hides most of the round trip of a slow network
+ * mount. Files that still have the size and modification time they were indexed with keep their entry as it was, only
+ * new and changed files are read.
+ * <br>
+ * Entries of new files are returned with no id, the {@link MediaLibrary} gives them one when it merges the scan.
+ *
+ * @see MediaLibrary
+ */
+final class LibraryScan extends RecursiveTask<ArrayList<LibraryEntry>>
+{
+	private static final long serialVersionUID = 5406386212049125375L;
+
+	private final Path directory;
+
+	private final boolean deep;
+
+	/**
+	 * Library the scan is compared with.
+	 */
+	private final LibraryIndex previous;
+
+	/**
+	 * Every directory scanned, so they can be watched. Shared by every task of the scan.
+	 */
+	private final Collection<Path> directories;
+
+	/**
+	 * @param {@link Path} directory - Directory to scan.
+	 * @param Boolean deep - Scan sub directories too.
+	 * @param {@link LibraryIndex} previous - Library the scan is compared with.
+	 * @param Collection directories - Thread safe collection every scanned directory is added to.
+	 */
+	LibraryScan(Path directory, boolean deep, LibraryIndex previous, Collection<Path> directories)
+	{
+		this.directory = directory;
+		this.deep = deep;
+		this.previous = previous;
+		this.directories = directories;
+	}
+
+	@Override
+	protected ArrayList<LibraryEntry> compute()
+	{
+		ArrayList<LibraryEntry> found = new ArrayList<LibraryEntry>();
+		ArrayList<LibraryScan> children = new ArrayList<LibraryScan>();
+		directories.add(directory);
+		try
+		{
+			DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+			try
+			{
+				for(Path child : stream)
+				{
+					try
+					{
+						BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class);
+						if(attributes.isDirectory())
+						{
+							// Start listing the sub directory straight away.
+							if(deep)
+							{
+								LibraryScan scan = new LibraryScan(child, true, previous, directories);
+								scan.fork();
+								children.add(scan);
+							}
+						}
+						else if(attributes.isRegularFile())
+						{
+							LibraryEntry entry = read(child, attributes, previous.get(child.toString()));
+							if(entry != null)
+								found.add(entry);
+						}
+					}
+					catch (IOException e)
+					{
+						// File gone or unreadable since listed, leave it out.
+						Logger.append(new StringBuffer(e.toString()));
+					}
+				}
+			}
+			finally
+			{
+				stream.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// Directory gone or unreadable, whatever its sub directories found still counts.
+			Logger.append(new StringBuffer(e.toString()));
+		}
+		for(LibraryScan child : children)
+			found.addAll(child.join());
+		return found;
+	}
+
+	/**
+	 * Creates the entry of a media file, reusing the indexed one if the file has not changed.
+	 * @param {@link Path} file - Media file.
+	 * @param {@link BasicFileAttributes} attributes - Attributes of the file.
+	 * @param {@link LibraryEntry} indexed - Entry the file was indexed with, null if new.
+	 * @return {@link LibraryEntry} - Entry, null if not a media file.
+	 */
+	static LibraryEntry read(Path file, BasicFileAttributes attributes, LibraryEntry indexed)
+	{
+		final String path = file.toString();
+		final long size = attributes.size(), modified = attributes.lastModifiedTime().toMillis();
+		if(indexed != null && indexed.isCurrent(size, modified))
+			return indexed;
+		final byte type = LibraryEntry.typeOf(file.getFileName().toString());
+		if(type < 0)
+			return null;
+		// A changed file keeps its id, its duration is found again.
+		return new LibraryEntry((indexed == null) ? LibraryEntry.NO_ID : indexed.getId(), path, size, modified, 0L, type);
+	}
+}
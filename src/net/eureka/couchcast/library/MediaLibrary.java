@@ -0,0 +1,743 @@
+package net.eureka.couchcast.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.foundation.config.Configuration;
+import net.eureka.couchcast.foundation.config.ConfigurationSnapshot;
+import net.eureka.couchcast.foundation.init.ApplicationGlobals;
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * Index of every media file in the media directories of the configuration file, kept by the player process itself.
+ * The directories are scanned in parallel on a fork/join pool, see {@link LibraryScan}, then watched with a
+ * {@link WatchService} so later changes only touch the files and directories they name. Directories that can't be
+ * watched, such as some network mounts, are scanned again every search delay instead, which only reads new and changed
+ * files.
+ * <br>
+ * Each file's path, size, modification time, duration and type is kept in a compact index file within the application
+ * directory, so a restart is queryable straight away while the first scan catches up. Durations are filled in as the
+ * media is played, see setDuration(). The index file is rewritten after each full scan, but changes from watch events,
+ * searches and durations are gathered for SAVE_DELAY first so a burst of them costs one write. A corrupt index file is
+ * ignored, the scan rebuilds it.
+ * <br>
+ * Everything runs on low priority daemon threads. Queries read the current immutable {@link LibraryIndex} snapshot, so
+ * they never wait on a scan and never touch the disk.
+ * <br>
+ * <pre>
+ * <h2>INDEX FILE:</h2>
+ *
+ * 		MAGIC, VERSION, EPOCH, GENERATION, NEXT ID, DIRECTORY COUNT
+ * 		Per directory:	PATH, FILE COUNT
+ * 		Per file:		ID, NAME, SIZE, MODIFIED, DURATION, TYPE
+ * </pre>
+ *
+ * @see LibraryIndex
+ * @see LibraryEntry
+ * @see Configuration
+ */
+public final class MediaLibrary
+{
+	/**
+	 * Name of the index file.
+	 */
+	private static final String INDEX_FILE = "library_index.dat";
+
+	/**
+	 * Identifies an index file, "CCML".
+	 */
+	private static final int INDEX_MAGIC = 0x43434D4C;
+
+	private static final byte INDEX_VERSION = 2;
+
+	/**
+	 * Threads listing directories. Listing is bound by disk or network round trips rather than processor time.
+	 */
+	private static final int SCAN_THREADS = 8;
+
+	/**
+	 * Milliseconds watch events are gathered for before they are applied, a copy or save raises several at once.
+	 */
+	private static final long SETTLE_DELAY = 250L;
+
+	/**
+	 * Milliseconds changes are gathered for before the index file is rewritten.
+	 */
+	private static final long SAVE_DELAY = 30000L;
+
+	/**
+	 * Longest directory path or file name the index file can hold, the limit of DataOutputStream.writeUTF().
+	 */
+	private static final int MAXIMUM_UTF_LENGTH = 65535;
+
+	/**
+	 * Milliseconds between searches of directories that can't be watched, when the configuration file has no delay.
+	 */
+	private static final long DEFAULT_SEARCH_DELAY = 60000L;
+
+	/**
+	 * Most milliseconds the library thread waits for a watch event before checking the configuration and durations.
+	 */
+	private static final long IDLE_INTERVAL = 1000L;
+
+	private static final LatencyHistogram scanLatency = Metrics.histogram("library.scan"),
+										  updateLatency = Metrics.histogram("library.update");
+
+	/**
+	 * Low priority pool the directories are scanned on.
+	 */
+	private static final ForkJoinPool scanPool = new ForkJoinPool(SCAN_THREADS, new ForkJoinPool.ForkJoinWorkerThreadFactory()
+	{
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+		{
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("Library Scan "+thread.getPoolIndex());
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}, null, false);
+
+	/**
+	 * Current snapshot of the library, replaced whole by the library thread.
+	 */
+	private static volatile LibraryIndex index = LibraryIndex.EMPTY;
+
+	/**
+	 * Durations found by the player, waiting for the library thread.
+	 */
+	private static final ConcurrentHashMap<String, Long> pendingDurations = new ConcurrentHashMap<String, Long>();
+
+	private static Thread libraryThread = null;
+
+	/*
+	 * State below is only touched by the library thread.
+	 */
+
+	/**
+	 * Every entry by path, the working copy snapshots are built from.
+	 */
+	private static final HashMap<String, LibraryEntry> entries = new HashMap<String, LibraryEntry>();
+
+	private static int nextId = 0;
+
+	/**
+	 * Identifies the index file the ids come from, chosen when the library starts without one.
+	 */
+	private static long epoch = 0L;
+
+	/**
+	 * Generation of the next snapshot.
+	 */
+	private static long generation = 1L;
+
+	/**
+	 * Watched directories by watch key.
+	 */
+	private static final HashMap<WatchKey, Path> watchedDirectories = new HashMap<WatchKey, Path>();
+
+	/**
+	 * Media directories that could not be watched.
+	 */
+	private static final ArrayList<Path> unwatched = new ArrayList<Path>();
+
+	private static WatchService watchService = null;
+
+	/**
+	 * Configuration the library was last scanned with.
+	 */
+	private static ConfigurationSnapshot configuration = null;
+
+	private static long nextSearch = Long.MAX_VALUE;
+
+	/**
+	 * System.currentTimeMillis() the changes since the last save are due to be written, Long.MAX_VALUE if none. Also
+	 * read by the shutdown hook.
+	 */
+	private static volatile long nextSave = Long.MAX_VALUE;
+
+	static
+	{
+		Metrics.gauge("library.entries", new LongSupplier()
+		{
+			@Override
+			public long getAsLong()
+			{
+				return index.size();
+			}
+		});
+	}
+
+	private MediaLibrary()
+	{
+	}
+
+	/**
+	 * Starts the library thread, once. Reads the index file, scans the media directories and watches them.
+	 */
+	public static synchronized void start()
+	{
+		if(libraryThread != null)
+			return;
+		libraryThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runLibrary();
+			}
+		}, "Media Library");
+		libraryThread.setDaemon(true);
+		libraryThread.setPriority(Thread.MIN_PRIORITY);
+		libraryThread.start();
+		// Daemon thread dies with System.exit(), write the changes it was still gathering.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(nextSave != Long.MAX_VALUE)
+					save();
+			}
+		}, "Media Library Shutdown"));
+	}
+
+	/**
+	 * Retrieves the current snapshot of the library. Never blocks.
+	 * @return {@link LibraryIndex} - Library snapshot, empty until the index file is read.
+	 */
+	public static LibraryIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Publishes a snapshot built elsewhere in place of the scanned one. Only for the benchmarks, which run without media
+	 * directories or a library thread.
+	 * @param {@link LibraryIndex} seeded - Library snapshot.
+	 */
+	static void seed(LibraryIndex seeded)
+	{
+		index = seeded;
+	}
+
+	/**
+	 * Records the duration of a media file once the player knows it. Applied by the library thread, so it never blocks.
+	 * @param String path - Path of the media file.
+	 * @param Long duration - Length of the media in milliseconds.
+	 */
+	public static void setDuration(String path, long duration)
+	{
+		if(libraryThread != null && duration > 0)
+			pendingDurations.put(path, duration);
+	}
+
+	/**
+	 * Library thread. Publishes the index file, scans, then applies watch events until the process exits.
+	 */
+	private static void runLibrary()
+	{
+		try
+		{
+			watchService = FileSystems.getDefault().newWatchService();
+		}
+		catch (IOException e)
+		{
+			// Every directory is searched on a timer instead.
+			Logger.append(new StringBuffer(e.toString()));
+		}
+		boolean loaded = false;
+		while(true)
+		{
+			try
+			{
+				// Index file is only read once, a failure leaves the scan to rebuild the library.
+				if(!loaded)
+				{
+					loaded = true;
+					load();
+					publish();
+				}
+				// First run or media directories changed.
+				ConfigurationSnapshot current = Configuration.getSnapshot();
+				if(configuration == null || !current.getMediaDirectories().equals(configuration.getMediaDirectories())
+						|| current.isDeepSearch() != configuration.isDeepSearch())
+				{
+					configuration = current;
+					scanAll();
+				}
+				// Unwatched directories are due a search.
+				else if(System.currentTimeMillis() >= nextSearch)
+					searchUnwatched();
+				waitForChanges();
+				// Changes have been gathered long enough.
+				if(System.currentTimeMillis() >= nextSave)
+					save();
+			}
+			catch (InterruptedException | ClosedWatchServiceException e)
+			{
+				break;
+			}
+			catch (RuntimeException e)
+			{
+				// A failed update must not stop the thread.
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+				// Entries of a bad index file would fail the next snapshot too.
+				if(configuration == null)
+				{
+					entries.clear();
+					nextId = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans every media directory from scratch, keeping the entries of unchanged files, and watches them.
+	 */
+	private static void scanAll()
+	{
+		final long start = System.nanoTime();
+		for(WatchKey key : watchedDirectories.keySet())
+			key.cancel();
+		watchedDirectories.clear();
+		unwatched.clear();
+		ArrayList<Path> roots = new ArrayList<Path>();
+		for(String directory : configuration.getMediaDirectories())
+			roots.add(Paths.get(directory));
+		// Unchanged files keep their entry from the published snapshot, files no longer in a media directory go.
+		entries.clear();
+		for(Path root : roots)
+			for(LibraryEntry entry : scan(root))
+				entries.put(entry.getPath(), entry);
+		nextSearch = unwatched.isEmpty() ? Long.MAX_VALUE : System.currentTimeMillis() + getSearchDelay();
+		publish();
+		save();
+		scanLatency.recordSince(start);
+		Logger.append(new StringBuffer("Media library: "+entries.size()+" files in "+((System.nanoTime() - start) / 1000000L)+"ms"));
+	}
+
+	/**
+	 * Searches the media directories that could not be watched again.
+	 */
+	private static void searchUnwatched()
+	{
+		final long start = System.nanoTime();
+		boolean changed = false;
+		for(Path root : new ArrayList<Path>(unwatched))
+			changed |= rescan(root);
+		nextSearch = System.currentTimeMillis() + getSearchDelay();
+		if(changed)
+		{
+			publish();
+			saveLater();
+		}
+		scanLatency.recordSince(start);
+	}
+
+	/**
+	 * Scans a directory on the scan pool, giving new files an id and watching every directory found.
+	 * @param {@link Path} directory - Directory to scan.
+	 * @return List - Entries found.
+	 */
+	private static List<LibraryEntry> scan(Path directory)
+	{
+		ConcurrentLinkedQueue<Path> directories = new ConcurrentLinkedQueue<Path>();
+		ForkJoinTask<ArrayList<LibraryEntry>> task = scanPool.submit(new LibraryScan(directory, configuration.isDeepSearch(), index, directories));
+		ArrayList<LibraryEntry> found = task.join();
+		for(int i = 0; i < found.size(); i ++)
+			if(found.get(i).getId() == LibraryEntry.NO_ID)
+				found.set(i, found.get(i).withId(nextId ++));
+		for(Path scanned : directories)
+			watch(scanned);
+		return found;
+	}
+
+	/**
+	 * Scans a directory again, replacing every entry within it.
+	 * @param {@link Path} directory - Directory to scan.
+	 * @return Boolean - True if the library changed.
+	 */
+	private static boolean rescan(Path directory)
+	{
+		HashMap<String, LibraryEntry> removed = removeWithin(directory);
+		boolean changed = false;
+		for(LibraryEntry entry : scan(directory))
+		{
+			entries.put(entry.getPath(), entry);
+			changed |= removed.remove(entry.getPath()) != entry;
+		}
+		return changed || !removed.isEmpty();
+	}
+
+	/**
+	 * Removes every entry within a directory, or the entry of a file.
+	 * @param {@link Path} path - Directory or file.
+	 * @return HashMap - Removed entries by path.
+	 */
+	private static HashMap<String, LibraryEntry> removeWithin(Path path)
+	{
+		HashMap<String, LibraryEntry> removed = new HashMap<String, LibraryEntry>();
+		final String file = path.toString(), prefix = file+File.separator;
+		Iterator<Map.Entry<String, LibraryEntry>> iterator = entries.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, LibraryEntry> entry = iterator.next();
+			if(entry.getKey().equals(file) || entry.getKey().startsWith(prefix))
+			{
+				removed.put(entry.getKey(), entry.getValue());
+				iterator.remove();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Registers a directory with the watch service. A media directory that can't be watched is searched on a timer.
+	 * @param {@link Path} directory - Directory to watch.
+	 */
+	private static void watch(Path directory)
+	{
+		try
+		{
+			if(watchService == null)
+				throw new IOException("No watch service.");
+			WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			watchedDirectories.put(key, directory);
+		}
+		catch (IOException e)
+		{
+			Path root = getRoot(directory);
+			if(root != null && !unwatched.contains(root))
+			{
+				unwatched.add(root);
+				Logger.append(new StringBuffer("Media library searching "+root+" every "+getSearchDelay()+"ms: "+e.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Waits up to IDLE_INTERVAL for watch events, then applies every event raised within SETTLE_DELAY of the first
+	 * along with any durations found by the player.
+	 * @throws InterruptedException - If the library thread is interrupted.
+	 */
+	private static void waitForChanges() throws InterruptedException
+	{
+		HashSet<Path> changed_files = new HashSet<Path>(), changed_directories = new HashSet<Path>();
+		WatchKey key = (watchService == null) ? null : watchService.poll(IDLE_INTERVAL, TimeUnit.MILLISECONDS);
+		if(watchService == null)
+			Thread.sleep(IDLE_INTERVAL);
+		final long settled = System.currentTimeMillis() + SETTLE_DELAY;
+		while(key != null)
+		{
+			Path directory = watchedDirectories.get(key);
+			for(WatchEvent<?> event : key.pollEvents())
+			{
+				if(directory == null)
+					continue;
+				// Events were lost, read the whole directory again.
+				if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+					changed_directories.add(directory);
+				else
+					changed_files.add(directory.resolve((Path) event.context()));
+			}
+			// Directory gone, its parent's delete event removes its entries.
+			if(!key.reset())
+				watchedDirectories.remove(key);
+			final long remaining = settled - System.currentTimeMillis();
+			key = (remaining > 0) ? watchService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+		}
+		boolean changed = applyDurations();
+		final long start = System.nanoTime();
+		for(Path directory : changed_directories)
+			changed |= rescan(directory);
+		for(Path file : changed_files)
+			changed |= update(file);
+		if(changed)
+		{
+			publish();
+			saveLater();
+		}
+		updateLatency.recordSince(start);
+	}
+
+	/**
+	 * Applies a watch event on a single path.
+	 * @param {@link Path} path - Created, changed or deleted file or directory.
+	 * @return Boolean - True if the library changed.
+	 */
+	private static boolean update(Path path)
+	{
+		BasicFileAttributes attributes;
+		try
+		{
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		}
+		catch (IOException e)
+		{
+			// Deleted, or moved away.
+			return !removeWithin(path).isEmpty();
+		}
+		// New or moved in directory, scan and watch it.
+		if(attributes.isDirectory())
+			return configuration.isDeepSearch() && rescan(path);
+		if(!attributes.isRegularFile())
+			return false;
+		LibraryEntry previous = entries.get(path.toString()), entry = LibraryScan.read(path, attributes, previous);
+		if(entry == null || entry == previous)
+			return false;
+		if(entry.getId() == LibraryEntry.NO_ID)
+			entry = entry.withId(nextId ++);
+		entries.put(entry.getPath(), entry);
+		return true;
+	}
+
+	/**
+	 * Applies the durations found by the player since the last call.
+	 * @return Boolean - True if the library changed.
+	 */
+	private static boolean applyDurations()
+	{
+		boolean changed = false;
+		Iterator<Map.Entry<String, Long>> iterator = pendingDurations.entrySet().iterator();
+		while(iterator.hasNext())
+		{
+			Map.Entry<String, Long> duration = iterator.next();
+			iterator.remove();
+			LibraryEntry entry = entries.get(duration.getKey());
+			if(entry != null && entry.getDuration() != duration.getValue().longValue())
+			{
+				entries.put(entry.getPath(), entry.withDuration(duration.getValue().longValue()));
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Publishes a new snapshot of the working copy.
+	 */
+	private static void publish()
+	{
+		index = new LibraryIndex(entries.values(), nextId, epoch, generation ++, index);
+	}
+
+	/**
+	 * Schedules the index file to be written once SAVE_DELAY has passed since the first change not yet written.
+	 */
+	private static void saveLater()
+	{
+		if(nextSave == Long.MAX_VALUE)
+			nextSave = System.currentTimeMillis() + SAVE_DELAY;
+	}
+
+	/**
+	 * Finds the media directory a directory is within.
+	 * @param {@link Path} directory - Scanned directory.
+	 * @return {@link Path} - Media directory, null if none.
+	 */
+	private static Path getRoot(Path directory)
+	{
+		for(String root : configuration.getMediaDirectories())
+			if(directory.startsWith(Paths.get(root)))
+				return Paths.get(root);
+		return null;
+	}
+
+	private static long getSearchDelay()
+	{
+		return (configuration.getSearchDelay() > 0) ? configuration.getSearchDelay() : DEFAULT_SEARCH_DELAY;
+	}
+
+	/**
+	 * Reads the index file into the working copy.
+	 */
+	private static void load()
+	{
+		// New ids unless the index file is read.
+		epoch = new Random().nextLong();
+		File index_file = getIndexFile();
+		if(!index_file.exists())
+			return;
+		try
+		{
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index_file)));
+			try
+			{
+				// Ignore unknown or older formats, they are rewritten after the first scan.
+				if(input.readInt() != INDEX_MAGIC || input.readByte() != INDEX_VERSION)
+					return;
+				final long file_epoch = input.readLong(), file_generation = input.readLong();
+				nextId = input.readInt();
+				if(nextId < 0)
+					throw new StreamCorruptedException("Negative next library id: "+nextId);
+				final int directories = input.readInt();
+				for(int i = 0; i < directories; i ++)
+				{
+					final String directory = input.readUTF();
+					final int files = input.readInt();
+					for(int j = 0; j < files; j ++)
+					{
+						final int id = input.readInt();
+						// Every id indexes the snapshot's table, one outside it would fail every snapshot.
+						if(id < 0 || id >= nextId)
+							throw new StreamCorruptedException("Library id "+id+" outside 0 to "+nextId);
+						final String path = directory+File.separator+input.readUTF();
+						final long size = input.readLong(), modified = input.readLong(), duration = input.readLong();
+						entries.put(path, new LibraryEntry(id, path, size, modified, duration, input.readByte()));
+					}
+				}
+				// Carry on the ids, and the generation so clients in sync stay in sync.
+				epoch = file_epoch;
+				generation = file_generation;
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// Start from an empty library, the scan rebuilds it.
+			entries.clear();
+			nextId = 0;
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Writes the current snapshot to a temporary file, then replaces the index file with it. Files are grouped by
+	 * directory so each directory path is only written once. Run by the library thread, and by the shutdown hook.
+	 */
+	private static synchronized void save()
+	{
+		nextSave = Long.MAX_VALUE;
+		LinkedHashMap<String, ArrayList<LibraryEntry>> directories = new LinkedHashMap<String, ArrayList<LibraryEntry>>();
+		int skipped = 0;
+		for(LibraryEntry entry : index.getEntries())
+		{
+			final String path = entry.getPath(), directory = path.substring(0, path.length() - entry.getName().length() - 1);
+			// Too long to write, left to be found again by the next scan rather than losing the whole file.
+			if(encodedLength(directory) > MAXIMUM_UTF_LENGTH || encodedLength(entry.getName()) > MAXIMUM_UTF_LENGTH)
+			{
+				skipped ++;
+				continue;
+			}
+			ArrayList<LibraryEntry> files = directories.get(directory);
+			if(files == null)
+				directories.put(directory, files = new ArrayList<LibraryEntry>());
+			files.add(entry);
+		}
+		File index_file = getIndexFile(), temporary = new File(index_file.getPath()+".tmp");
+		try
+		{
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try
+			{
+				output.writeInt(INDEX_MAGIC);
+				output.writeByte(INDEX_VERSION);
+				output.writeLong(index.getEpoch());
+				output.writeLong(index.getGeneration());
+				output.writeInt(index.getNextId());
+				output.writeInt(directories.size());
+				for(Map.Entry<String, ArrayList<LibraryEntry>> directory : directories.entrySet())
+				{
+					output.writeUTF(directory.getKey());
+					output.writeInt(directory.getValue().size());
+					for(LibraryEntry entry : directory.getValue())
+					{
+						output.writeInt(entry.getId());
+						output.writeUTF(entry.getName());
+						output.writeLong(entry.getSize());
+						output.writeLong(entry.getModified());
+						output.writeLong(entry.getDuration());
+						output.writeByte(entry.getType());
+					}
+				}
+			}
+			finally
+			{
+				output.close();
+			}
+			Files.move(temporary.toPath(), index_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			if(skipped > 0)
+				Logger.append(new StringBuffer("Media library: "+skipped+" files with paths too long to save"));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Works out the length of a string as written by DataOutputStream.writeUTF(), without the length field.
+	 * @param String text - String to measure.
+	 * @return Integer - Bytes of modified UTF-8.
+	 */
+	private static int encodedLength(String text)
+	{
+		int length = 0;
+		for(int i = 0; i < text.length(); i ++)
+		{
+			final char c = text.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : ((c <= 0x07FF) ? 2 : 3);
+		}
+		return length;
+	}
+
+	/**
+	 * Retrieves the index file from the application directory.
+	 * @return File - Library index file.
+	 */
+	private static File getIndexFile()
+	{
+		// Retrieve the system drive directory.
+		String system_drive = System.getenv("SYSTEMDRIVE"),
+			   // Retrieve the default home path.
+			   home_path = System.getenv("HOME");
+		// If home path is null, try the updated renamed home path.
+		home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
+
+		// Create default home/download directory path.
+		return new File(system_drive+home_path+File.separator+ApplicationGlobals.getName()+File.separator+INDEX_FILE);
+	}
+}
@@ -1,407 +1,937 @@
 package net.eureka.couchcast.mediaserver;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 import net.eureka.couchcast.Logger;
 import net.eureka.couchcast.foundation.config.Configuration;
+import net.eureka.couchcast.foundation.init.ApplicationGlobals;
 import net.eureka.couchcast.foundation.init.NetworkGlobals;
+import net.eureka.couchcast.library.LibraryEntry;
+import net.eureka.couchcast.library.MediaLibrary;
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+import net.eureka.couchcast.player.MediaMetadataCache;
 import net.eureka.couchcast.player.MediaPlayer;
-import net.eureka.couchcast.player.Static;
+import net.eureka.couchcast.player.MediaStateListener;
+import net.eureka.couchcast.player.PlayerBackend;
+import net.eureka.couchcast.player.Playlist;
+import net.eureka.couchcast.player.ResumeJournal;
+import net.eureka.couchcast.player.SimulatedPlayer;
 
+/**
+ * Socket server between the controller clients (phones) and the {@link PlayerBackend}, the VLC {@link MediaPlayer} or,
+ * with the --simulated-player launch argument, the headless {@link SimulatedPlayer}. Runs a single non-blocking
+ * {@link Selector} event loop so any number of controllers can be connected at the same time. Each client has its own
+ * {@link BridgeConnection} holding its read state and write queue, while every client shares the one media player.
+ * Status updates are event driven, the media player publishes every state change through a {@link MediaStateListener}
+ * and the update is pushed to every client straight away, encoded once for all of them by the {@link StatusBroadcast}.
+ * A low rate heartbeat carries the time progress while media is playing.
+ * <br>
+ * With the --persistent launch argument the process outlives its clients and its media, so VLC, the video frame and
+ * the bound socket stay warm for the next phone to connect.
+ * <br>
+ * Commands never run on the selector thread. They are handed to the {@link CommandExecutor}, and once run the executor
+ * hands them back through commandCompleted() so their acknowledgements are written by the selector thread.
+ * <br>
+ * A client that stops reading never blocks the others, its status is replaced rather than queued and it is
+ * disconnected once it has stalled past its deadline, see {@link BridgeConnection}.
+ * <br>
+ * Command, status and socket latencies are recorded in {@link Metrics}. A client can fetch them with the
+ * METRICS_SEQUENCE opcode, which is answered straight from the selector thread.
+ *
+ * @see BridgeConnection
+ * @see CommandDecoder
+ * @see StatusFrame
+ */
 public final class Bridge
 {
-	
-	private static final int PORT = 63053, CONNECTION_BACKLOG = 1;
-	
-	private static ServerSocket server = null;
-	
-	private static Socket socket = null;
-	
+
+	static final int PORT = 63053, CONNECTION_BACKLOG = 16;
+
+	/**
+	 * 	Launch argument that makes the bridge fall back to Java serialized status updates for old clients.
+	 */
+	private static final String LEGACY_STATUS_ARGUMENT = "--legacy-status";
+
+	/**
+	 * 	Launch argument for the milliseconds between heartbeat status updates, e.g --status-heartbeat=1000
+	 */
+	private static final String STATUS_HEARTBEAT_ARGUMENT = "--status-heartbeat=";
+
+	/**
+	 * 	Launch argument that runs the bridge against the headless {@link SimulatedPlayer} instead of VLC.
+	 */
+	static final String SIMULATED_PLAYER_ARGUMENT = "--simulated-player";
+
+	/**
+	 * 	Launch argument that keeps the player process alive between media and clients, see {@link ApplicationGlobals}.
+	 */
+	static final String PERSISTENT_ARGUMENT = "--persistent";
+
+	/**
+	 * 	Launch argument that records every client's traffic to a trace file for replaying, e.g --capture=session.trace
+	 */
+	private static final String CAPTURE_ARGUMENT = "--capture=";
+
+	/**
+	 * 	Milliseconds between clock ticks of the simulated player.
+	 */
+	private static final long SIMULATED_CLOCK_TICK = 1000L;
+
+	private static boolean simulatedPlayer = false;
+
+	/**
+	 * 	Trace the traffic is captured to, null unless the --capture launch argument was given.
+	 */
+	private static TrafficCapture capture = null;
+
+	/**
+	 * 	Connections accepted since the bridge started, numbers them within a capture.
+	 */
+	private static int connectionCount = 0;
+
+	/**
+	 * 	Set by the media player whenever its state changes, cleared once the change has been pushed.
+	 */
+	private static final AtomicBoolean statusChanged = new AtomicBoolean(false);
+
+	/**
+	 * 	Wakes the selector to push a state change. Runs on the thread that changed the state so it must never block.
+	 */
+	private static final MediaStateListener stateListener = new MediaStateListener()
+	{
+		@Override
+		public void mediaStateChanged()
+		{
+			// Only the first change since the last push needs to wake the selector.
+			if(statusChanged.compareAndSet(false, true))
+				selector.wakeup();
+		}
+	};
+
+	private static ServerSocketChannel server = null;
+
+	private static Selector selector = null;
+
+	/**
+	 * 	Every client currently connected.
+	 */
+	private static final ArrayList<BridgeConnection> connections = new ArrayList<BridgeConnection>();
+
+	/**
+	 * 	Runs client commands on the media player off the selector thread.
+	 */
+	private static final CommandExecutor executor = new CommandExecutor();
+
+	/**
+	 * 	Commands run by the executor that still need acknowledging.
+	 */
+	private static final ConcurrentLinkedQueue<PlayerCommand> completedCommands = new ConcurrentLinkedQueue<PlayerCommand>();
+
+	/**
+	 * 	Time from a framed command being received to its acknowledgement being queued.
+	 */
+	private static final LatencyHistogram roundTrip = Metrics.histogram("command.round_trip");
+
+	/**
+	 * 	Encodes each status update once for every client.
+	 */
+	private static final StatusBroadcast broadcast = new StatusBroadcast();
+
+	/**
+	 * 	Time to encode a status update and queue and write it to every client.
+	 */
+	private static final LatencyHistogram statusPush = Metrics.histogram("status.push");
+
+	/**
+	 * 	Clients disconnected for not reading.
+	 */
+	private static final LongAdder slowDisconnects = Metrics.counter("bridge.slow_disconnects");
+
+	static
+	{
+		Metrics.gauge("bridge.connections", new LongSupplier()
+		{
+			@Override
+			public long getAsLong()
+			{
+				return connections.size();
+			}
+		});
+	}
+
 	public static void main(String[] args)
 	{
+		checkArguments(args);
 		new Configuration();
+		// Index the media directories in the background.
+		MediaLibrary.start();
+		// Replay the resume positions in the background.
+		ResumeJournal.start();
+		// Read the media lengths in the background.
+		MediaMetadataCache.start();
 		new Bridge();
 	}
-	
+
 	Bridge()
 	{
 		startServer();
 		startListening();
 	}
-	
+
+	/**
+	 * Reads the launch arguments of the bridge.
+	 * @param String[] args - Launch arguments.
+	 */
+	private static void checkArguments(String[] args)
+	{
+		for(String argument : args)
+			// Check if old clients need the serialized status object.
+			if(argument.equals(LEGACY_STATUS_ARGUMENT))
+				NetworkGlobals.setLegacyStatus(true);
+			// Check if running headless.
+			else if(argument.equals(SIMULATED_PLAYER_ARGUMENT))
+				simulatedPlayer = true;
+			// Check if the player should outlive its clients.
+			else if(argument.equals(PERSISTENT_ARGUMENT))
+				ApplicationGlobals.setPersistent(true);
+			// Check for a heartbeat interval.
+			else if(argument.startsWith(STATUS_HEARTBEAT_ARGUMENT))
+				try
+				{
+					NetworkGlobals.setStatusHeartbeat(Long.parseLong(argument.substring(STATUS_HEARTBEAT_ARGUMENT.length())));
+				}
+				catch (NumberFormatException e)
+				{
+					System.err.println("Invalid status heartbeat: "+argument);
+				}
+			// Check if the traffic should be captured.
+			else if(argument.startsWith(CAPTURE_ARGUMENT))
+				startCapture(new File(argument.substring(CAPTURE_ARGUMENT.length())));
+	}
+
+	/**
+	 * Creates the capture trace file, written out by its own thread as records gather and finished when the process exits.
+	 * @param {@link File} file - Trace file.
+	 */
+	private static void startCapture(File file)
+	{
+		try
+		{
+			capture = new TrafficCapture(file);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+			System.err.println("Unable to capture to: "+file);
+			return;
+		}
+		final TrafficCapture closing = capture;
+		Runtime.getRuntime().addShutdownHook(new Thread("Capture Close")
+		{
+			@Override
+			public void run()
+			{
+				closing.close();
+			}
+		});
+	}
+
+	/**
+	 * Opens the selector and binds the non-blocking server channel to the configured network interface.
+	 */
 	private static void startServer()
 	{
 		try
 		{
-			server = new ServerSocket(PORT, CONNECTION_BACKLOG, NetworkGlobals.getDHCPInterface());
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.configureBlocking(false);
+			server.bind(new InetSocketAddress(NetworkGlobals.getDHCPInterface(), PORT), CONNECTION_BACKLOG);
+			server.register(selector, SelectionKey.OP_ACCEPT);
 		}
-		catch (IOException e) 
+		catch (IOException e)
 		{
 			e.printStackTrace();
+			Logger.appendNow(new StringBuffer(e.toString()));
+			System.exit(1);
 		}
 	}
-	
+
+	/**
+	 * Selector event loop. Accepts new clients, reads and runs their commands, writes their queued output and pushes
+	 * status updates to all of them whenever the media player state changes or the heartbeat is due.
+	 */
 	private static void startListening()
 	{
+		Thread.currentThread().setName("Bridge Selector");
+		System.out.println("Waiting....");
+		final long heartbeat = NetworkGlobals.getStatusHeartbeat();
+		long next_heartbeat = System.currentTimeMillis() + heartbeat;
+		while(true)
+		{
+			try
+			{
+				// Wait for network events, a state change or the next heartbeat.
+				selector.select(Math.max(1L, next_heartbeat - System.currentTimeMillis()));
+				processSelectedKeys();
+				// Acknowledge commands the executor has finished.
+				processCompletedCommands();
+				// Push state changes straight away.
+				if(statusChanged.getAndSet(false))
+					BridgeIO.processOutput(false);
+				if(System.currentTimeMillis() >= next_heartbeat)
+				{
+					// Heartbeat only carries time progress, so idle clients get nothing.
+					BridgeIO.processOutput(true);
+					// Drop clients that have stopped reading.
+					disconnectStalled();
+					next_heartbeat = System.currentTimeMillis() + heartbeat;
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Handles each key the selector has marked as ready.
+	 * @throws IOException - If accepting a client fails.
+	 */
+	private static void processSelectedKeys() throws IOException
+	{
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while(keys.hasNext())
+		{
+			SelectionKey key = keys.next();
+			keys.remove();
+			if(!key.isValid())
+				continue;
+			if(key.isAcceptable())
+				accept();
+			else
+			{
+				BridgeConnection connection = (BridgeConnection) key.attachment();
+				try
+				{
+					if(key.isReadable())
+						BridgeIO.processInput(connection);
+					if(key.isValid() && key.isWritable())
+						connection.flush();
+				}
+				catch (IOException e)
+				{
+					// Client gone, drop its connection.
+					Logger.append(new StringBuffer(e.toString()));
+					disconnect(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Called by the {@link CommandExecutor} once a command has run. Wakes the selector to acknowledge it.
+	 * @param {@link PlayerCommand} command - Command that ran, its result already set.
+	 */
+	static void commandCompleted(PlayerCommand command)
+	{
+		// Legacy commands are never acknowledged.
+		if(!command.isFramed() && command.getSuperseded() == null)
+			return;
+		completedCommands.add(command);
+		selector.wakeup();
+	}
+
+	/**
+	 * Queues the acknowledgement of every completed framed command, and of each command it superseded, on its client.
+	 */
+	private static void processCompletedCommands()
+	{
+		ArrayDeque<PlayerCommand> chain = new ArrayDeque<PlayerCommand>();
+		PlayerCommand completed;
+		while((completed = completedCommands.poll()) != null)
+		{
+			byte[] result = completed.isSuccess() ? BridgeIO.PLAYER_SUCCESS_SEQUENCE : BridgeIO.PLAYER_FAILURE_SEQUENCE;
+			// Superseded commands share the result of the command that replaced them.
+			for(PlayerCommand command = completed; command != null; command = command.getSuperseded())
+				chain.push(command);
+			// Oldest first so acknowledgements stay in order.
+			while(!chain.isEmpty())
+				acknowledge(chain.pop(), result);
+		}
+	}
+
+	/**
+	 * Queues the acknowledgement of a framed command on its client.
+	 * @param {@link PlayerCommand} command - Command that ran.
+	 * @param byte[] result - PLAYER_SUCCESS_SEQUENCE or PLAYER_FAILURE_SEQUENCE.
+	 */
+	private static void acknowledge(PlayerCommand command, byte[] result)
+	{
+		BridgeConnection connection = command.getConnection();
+		// Client may have gone while the command ran.
+		if(!command.isFramed() || !connection.isOpen())
+			return;
 		try
 		{
-			System.out.println("Waiting....");
-			socket = server.accept();
-			new BridgeIO();
+			connection.queueAck(command.getRequestId(), result);
+			roundTrip.recordSince(command.getReceived());
+			connection.flush();
 		}
-		catch (IOException e) 
+		catch (IOException e)
 		{
-			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+			disconnect(connection);
 		}
 	}
-	
-	
-	private static final class BridgeIO
+
+	/**
+	 * Disconnects every client that has accepted nothing for its write deadline, see {@link BridgeConnection}.
+	 */
+	private static void disconnectStalled()
+	{
+		final long now = System.currentTimeMillis();
+		for(BridgeConnection connection : new ArrayList<BridgeConnection>(connections))
+			if(connection.isStalled(now))
+			{
+				slowDisconnects.increment();
+				Logger.append(new StringBuffer("Client stopped reading: "+connection));
+				disconnect(connection);
+			}
+	}
+
+	/**
+	 * Accepts a pending client, registers it with the selector and sends it the current status straight away.
+	 * @throws IOException - If the client can't be accepted.
+	 */
+	private static void accept() throws IOException
+	{
+		SocketChannel channel = server.accept();
+		if(channel == null)
+			return;
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		BridgeConnection connection = new BridgeConnection(channel, ++connectionCount, capture);
+		connection.register(selector);
+		connections.add(connection);
+		System.out.println("Connected: "+connection+" ("+connections.size()+" clients)");
+		final PlayerBackend current_player = BridgeIO.player;
+		// Media player is created for the first client by the executor, its first state change is pushed to everyone.
+		if(current_player == null)
+		{
+			executor.requestPlayer();
+			return;
+		}
+		final NetworkInfo info = current_player.getNetworkInfo();
+		// Nothing to send if media info was reset.
+		if(info == null)
+			return;
+		broadcast.update(info);
+		BridgeIO.writeStatus(connection, info);
+	}
+
+	/**
+	 * Closes and forgets a client connection. The OOP player exits once the last client has disconnected, unless it is
+	 * persistent, in which case the media carries on and the bridge keeps accepting.
+	 * @param {@link BridgeConnection} connection - Client to drop.
+	 */
+	private static void disconnect(BridgeConnection connection)
+	{
+		connection.close();
+		connections.remove(connection);
+		System.out.println("Disconnected: "+connection+" ("+connections.size()+" clients)");
+		if(connections.isEmpty() && !ApplicationGlobals.isPersistent())
+			System.exit(0);
+	}
+
+
+	static final class BridgeIO
 	{
 		/**
-		 *	 Returned to client when a command has been successful.
+		 *	 Returned to client when a framed command has been successful.
 		 */
-		//private static final byte[] PLAYER_SUCCESS_SEQUENCE = new byte[]{ 120, 45};
+		static final byte[] PLAYER_SUCCESS_SEQUENCE = new byte[]{ 120, 45};
 
 		/**
-		 * 	Returned to client when a command has failed.
+		 * 	Returned to client when a framed command has failed.
 		 */
-		//private static final byte[] PLAYER_FAILURE_SEQUENCE = new byte[]{ 120, 80};
-		
+		static final byte[] PLAYER_FAILURE_SEQUENCE = new byte[]{ 120, 80};
+
 		/**
 		 *	Sets the OOP video frame to invisible.
 		 */
-		private static final byte[] HIDE_FRAME_SEQUENCE = new byte[]{ 80, 10};
+		static final byte[] HIDE_FRAME_SEQUENCE = new byte[]{ 80, 10};
 
 		/**
 		 * 	Sets the OOP video frame to visible.
 		 */
-		private static final byte[] SHOW_FRAME_SEQUENCE = new byte[]{ 80, 20};
-		
+		static final byte[] SHOW_FRAME_SEQUENCE = new byte[]{ 80, 20};
+
 		/**
 		 * 	Play media file.
 		 */
-		private static final byte[] PLAY_FILE_SEQUENCE = new byte[] { 110, 40};
-		
+		static final byte[] PLAY_FILE_SEQUENCE = new byte[] { 110, 40};
+
+		/**
+		 * 	Play media file from its last recorded position. Same payload as PLAY_FILE_SEQUENCE.
+		 */
+		static final byte[] RESUME_FILE_SEQUENCE = new byte[] { 110, 41};
+
+		/**
+		 * 	Play a media file by its id in the library path table, see {@link MediaLibrary}.
+		 */
+		static final byte[] PLAY_LIBRARY_SEQUENCE = new byte[] { 110, 42};
+
+		/**
+		 * 	Replace the server play queue and play its first media file, see {@link Playlist}.
+		 */
+		static final byte[] QUEUE_FILES_SEQUENCE = new byte[] { 110, 50};
+
 		/**
 		 * 	Play media file.
 		 */
-		private static final byte[] PLAY_TUBE_SEQUENCE = new byte[] { 120, 40};
-		
+		static final byte[] PLAY_TUBE_SEQUENCE = new byte[] { 120, 40};
+
 		/**
 		 * 	Plays or Pauses media
 		 */
-		private static final byte[] PLAY_PAUSE_SEQUENCE = new byte[]{ 40, 21};
-		
+		static final byte[] PLAY_PAUSE_SEQUENCE = new byte[]{ 40, 21};
+
 		/**
 		 * 	Stops current media.
 		 */
-		private static final byte[] STOP_FILE_SEQUENCE = new byte[]{ 25, 55};
-		
+		static final byte[] STOP_FILE_SEQUENCE = new byte[]{ 25, 55};
+
 		/**
 		 * 	Enable/Disable Fast forward.
 		 */
-		private static final byte[] FAST_FORWARD_SEQUENCE = new byte[]{ 58, 35};
-		
+		static final byte[] FAST_FORWARD_SEQUENCE = new byte[]{ 58, 35};
+
 		/**
 		 * 	Rewind back 5 seconds.
 		 */
-		private static final byte[] FAST_REWIND_SEQUENCE = new byte[]{ 57, 34};
-		
-		
-		
-		private static final int BUFFER_SIZE = 2;
-		private static final String SOCKET_NOT_INITIALIZED_ERROR = "Socket is not initialized. Exiting...";
-		private static byte[] read = new byte[BUFFER_SIZE];
+		static final byte[] FAST_REWIND_SEQUENCE = new byte[]{ 57, 34};
+
+		/**
+		 * 	Sends the {@link Metrics} report back in a metrics frame, see {@link StatusFrame}.
+		 */
+		static final byte[] METRICS_SEQUENCE = new byte[]{ 109, 40};
+
+		/**
+		 * 	Sync the client's copy of the library path table, answered with a library frame (See {@link StatusFrame}).
+		 */
+		static final byte[] LIBRARY_SYNC_SEQUENCE = new byte[]{ 109, 41};
+
+
+
 		private static boolean runCommand = false;
-		private static int index = -1;
-		private static ObjectOutputStream output = null;
-		private static ObjectInputStream input = null;
-		private static MediaPlayer player = null;
-		private static String path = null;
-		
-		BridgeIO()
+
+		/**
+		 * Shared media player, only created on the {@link CommandExecutor} thread. Read by the selector thread.
+		 */
+		private static volatile PlayerBackend player = null;
+
+		/**
+		 * Uses the passed player instead of creating one on the first client. Lets the benchmarks dispatch commands
+		 * against a stub player without a running bridge.
+		 * @param {@link PlayerBackend} backend - Player to run commands on.
+		 */
+		static void setPlayer(PlayerBackend backend)
 		{
-			if(socket != null)
-			{
-				player = new MediaPlayer();
-				initialiseStreams();
-				inputProcessingThread();
-				outputProcessingThread();
-			}
-			else
+			player = backend;
+		}
+
+		/**
+		 * Creates the shared media player if it doesn't exist yet. Runs on the {@link CommandExecutor} thread, creating
+		 * VLC and its frame takes seconds and must never hold up the selector.
+		 */
+		static void checkPlayerCreated()
+		{
+			if(player == null)
 			{
-				System.err.println(SOCKET_NOT_INITIALIZED_ERROR);
-				System.exit(1);
+				PlayerBackend created;
+				if(simulatedPlayer)
+				{
+					SimulatedPlayer simulated_player = new SimulatedPlayer();
+					simulated_player.startClock(SIMULATED_CLOCK_TICK);
+					created = simulated_player;
+				}
+				else
+					created = new MediaPlayer();
+				// Push state changes as they happen.
+				created.addStateListener(stateListener);
+				player = created;
+				// Clients connected while it was created are waiting for their first status.
+				stateListener.mediaStateChanged();
 			}
 		}
-		
-		private static void inputProcessingThread()
+
+		/**
+		 * Reads what the client has sent and queues every whole command received on the {@link CommandExecutor}.
+		 * @param {@link BridgeConnection} connection - Readable client connection.
+		 * @throws IOException - Will throw error if client connection is CLOSED/DISCONNECTED or sent a corrupt stream.
+		 */
+		private static void processInput(BridgeConnection connection) throws IOException
 		{
-			new Thread(new Runnable()
+			if(!connection.read())
+				throw new IOException("Client closed connection.");
+			ByteBuffer read_buffer = connection.getReadBuffer();
+			CommandDecoder decoder = connection.getDecoder();
+			read_buffer.flip();
+			try
 			{
-				
-				
-				@Override
-				public void run() 
+				// Unwrap received bytes into commands.
+				decoder.feed(read_buffer);
+				while(decoder.next())
 				{
-					Thread.currentThread().setName("Asynchronous Input Bridge");
-					boolean connected = true;
-					while(connected)
+					System.out.println("Bytes read: "+decoder.getCommand()[0] +", "+decoder.getCommand()[1]);
+					// Metrics don't touch the player, answer them straight away.
+					if(decoder.isCommand(METRICS_SEQUENCE))
+					{
+						connection.queueMetrics(decoder.getRequestId(), Metrics.report());
+						connection.flush();
+						decoder.feed(read_buffer);
+						continue;
+					}
+					// Nor does the library, its snapshot never blocks.
+					if(decoder.isCommand(LIBRARY_SYNC_SEQUENCE))
 					{
-						try {
-							processInput();
-						} catch (IOException e)
-						{
-							connected = false;
-							// TODO Auto-generated catch block
-							Logger.append(new StringBuffer(e.getMessage()));
-							e.printStackTrace();
-						}
+						connection.queueLibrary(decoder.getRequestId(), MediaLibrary.getIndex(), decoder.getSyncEpoch(), decoder.getSyncGeneration(),
+								decoder.getSyncNextId());
+						connection.flush();
+						decoder.feed(read_buffer);
+						continue;
 					}
-					System.exit(0);
+					// Check for file associated with command. NOTE: Would only happen if command was PLAY_FILE_SEQUENCE.
+					checkForFilePath(connection);
+					// Hand the command to the executor, it is validated and acknowledged once run.
+					executor.submit(new PlayerCommand(connection));
+					// Unwrap anything that didn't fit before.
+					decoder.feed(read_buffer);
 				}
-			}).start();
-		}
-		
-		private static void processInput() throws IOException
-		{
-			// For checking number of bytes read.
-			int bytes_read = 0;
-			// Check if client connection has been received, if so ..
-			try 
-			{
-				System.out.println("Inputing...");
-				// Read the first two bytes into array.
-				bytes_read = input.read(read, 0, BUFFER_SIZE);
-				//Logger.append(new StringBuffer("Bytes read: "+read[0] +", "+read[1]));
-				System.out.println("Bytes read: "+read[0] +", "+read[1]);
-				// Check for file associated with command. NOTE: Would only happen if command was PLAY_FILE_SEQUENCE.
-				checkForFilePath();
-				//System.out.println("");
-				// Check for string associated with command. NOTE: Would only happen if command was PLAY_TUBE_SEQUENCE.
-				//checkForMRL();
-				//System.out.println("Path:"+path);
-			}
-			catch (ClassNotFoundException e)
-			{
-				e.printStackTrace();
-				Logger.append(new StringBuffer(e.getMessage()));
 			}
 			finally
 			{
-				// Check if number of bytes read equals 2, if so...
-				if(bytes_read == 2)
-					// Proceed to validate address and command.
-					validateCommand();
+				read_buffer.compact();
 			}
 		}
-		
-		private static void outputProcessingThread()
+
+		/**
+		 * Pushes the current media info to every connected client.
+		 * @param Boolean heartbeat - True if this is a heartbeat update, which is only sent while media is playing.
+		 */
+		private static void processOutput(boolean heartbeat)
 		{
-			new Thread(new Runnable()
-			{
-				
-				@Override
-				public void run()
-				{
-					Thread.currentThread().setName("Asynchronous Output Bridge");
-					processOutput();
-					System.exit(0);
-				}
-			}).start();
-				
+			final PlayerBackend current_player = player;
+			// No player until the first client.
+			if(current_player == null)
+				return;
+			NetworkInfo info = current_player.getNetworkInfo();
+			// Nothing to send if media info was reset.
+			if(info == null)
+				return;
+			// Nothing progressing, skip heartbeat.
+			if(heartbeat && !info.isPlaying())
+				return;
+			// The snapshot's time is only as fresh as the player's last update, send where the media has got to by now.
+			if(info.isPlaying())
+				info = info.withTime(current_player.getTime());
+			final long start = System.nanoTime();
+			// Encode once for everyone.
+			broadcast.update(info);
+			// Copy so a client dropped while writing doesn't upset iteration.
+			for(BridgeConnection connection : new ArrayList<BridgeConnection>(connections))
+				writeStatus(connection, info);
+			statusPush.recordSince(start);
 		}
-		
-		private static void processOutput()
-		{
-			boolean connected = true, first_write = true;
-			while(connected)
-				try 
-				{
-					if(!first_write)
-						waitForOppositeRead();
-					output.reset();
-					NetworkInfo info = MediaPlayer.getMediaInfo();
-					output.writeObject(info);
-					output.flush();
-					first_write = false;
-				}
-				catch (IOException e) 
-				{
-					connected = false;
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					Logger.append(new StringBuffer(e.getMessage()));	
-				}
-		}
-		
-		private static void waitForOppositeRead()
+
+		/**
+		 * Queues the current broadcast status on the connection and writes as much as the socket accepts.
+		 * @param {@link BridgeConnection} connection - Client to send to.
+		 * @param {@link NetworkInfo} info - Media info the broadcast was updated with, for old clients.
+		 */
+		private static void writeStatus(BridgeConnection connection, NetworkInfo info)
 		{
-			synchronized (Thread.currentThread()) 
+			try
 			{
-				try
-				{
-					Thread.currentThread().wait(910);
-				}
-				catch(InterruptedException e)
-				{
-					e.printStackTrace();
-				}
+				connection.queueStatus(broadcast, info);
+				connection.flush();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+				disconnect(connection);
 			}
 		}
-		
+
 		/**
 		 * Goes through each command sequence trying to match what was read so it will know which command
-		 * to run through the media player.
+		 * to run through the media player. Runs on the {@link CommandExecutor} thread.
+		 * @param {@link PlayerCommand} command - Command received from a client.
+		 * @return Boolean - True if the command was recognised and run, false otherwise.
 		 */
-		private static void validateCommand()
+		static boolean validateCommand(PlayerCommand command)
 		{
+			byte[] read = command.getCommand();
 			// Check if bytes read equal PLAY_FILE_SEQUENCE...
-			if(Static.compareBytes(read, PLAY_FILE_SEQUENCE))
+			if(command.isCommand(PLAY_FILE_SEQUENCE))
 			{
 				runCommand = true;
 				// Play file read in.
-				play();
+				return play(command);
+			}
+			// Check if bytes read equal RESUME_FILE_SEQUENCE...
+			else if(command.isCommand(RESUME_FILE_SEQUENCE))
+			{
+				runCommand = true;
+				// Play file read in from where it was left.
+				return resume(command);
+			}
+			// Check if bytes read equal PLAY_LIBRARY_SEQUENCE...
+			else if(command.isCommand(PLAY_LIBRARY_SEQUENCE))
+			{
+				runCommand = true;
+				// Play the library entry.
+				return playEntry(command);
+			}
+			// Check if bytes read equal QUEUE_FILES_SEQUENCE...
+			else if(command.isCommand(QUEUE_FILES_SEQUENCE))
+			{
+				runCommand = true;
+				// Play the queue read in.
+				return queue(command);
 			}
 			// Check if bytes read equal PLAY_PAUSE_SEQUENCE...
-			else if(Static.compareBytes(read, PLAY_PAUSE_SEQUENCE))
+			else if(command.isCommand(PLAY_PAUSE_SEQUENCE))
 			{
 				runCommand = true;
 				// Play or pause what is playing.
-				pausePlay();
+				return pausePlay(command);
 			}
 			// Check if bytes read equal STOP_FILE_SEQUENCE...
-			else if(Static.compareBytes(read, STOP_FILE_SEQUENCE))
+			else if(command.isCommand(STOP_FILE_SEQUENCE))
 			{
 				runCommand = true;
 				// Stop current media from playing.
-				stopPlaying();
+				return stopPlaying();
 			}
 			// Check if bytes read equal FAST_FORWARD_SEQUENCE...
-			else if(Static.compareBytes(read, FAST_FORWARD_SEQUENCE))
+			else if(command.isCommand(FAST_FORWARD_SEQUENCE))
 			{
 				runCommand = true;
 				// Enable/Disable fast forward on current media.
-				fastForward();
+				return fastForward();
 			}
 			// Check if bytes read equal FAST_REWIND_SEQUENCE...
-			else if(Static.compareBytes(read, FAST_REWIND_SEQUENCE))
+			else if(command.isCommand(FAST_REWIND_SEQUENCE))
 			{
 				runCommand = true;
 				// Skip back 5 seconds on current media.
-				fastRewind();
+				return fastRewind();
 			}
-			else if(Static.compareBytes(read, PLAY_TUBE_SEQUENCE))
+			else if(command.isCommand(PLAY_TUBE_SEQUENCE))
 			{
 				runCommand = true;
-				play(path);
+				return play(command.getPath());
 			}
-			else if(Static.compareBytes(read, SHOW_FRAME_SEQUENCE))
+			else if(command.isCommand(SHOW_FRAME_SEQUENCE))
 			{
 				runCommand = true;
-				setVideoVisible();
+				return setVideoVisible();
 			}
-			else if(Static.compareBytes(read, HIDE_FRAME_SEQUENCE))
+			else if(command.isCommand(HIDE_FRAME_SEQUENCE))
 			{
 				runCommand = true;
-				setVideoInvisible();
+				return setVideoInvisible();
 			}
 			// Check if bytes read equal ADJUST MEDIA TIME LOCATION...
-			else if(read[0] == 98)
+			else if(read[0] == PlayerCommand.SKIP_COMMAND)
 			{
 				runCommand = true;
 				// Will skip current media time to whatever percentage was passed as second byte in read array.(MAX: 100%)
-				skip(read[1]);
+				return skip(read[1]);
 			}
 			// Check if bytes read equal ADJUST VOLUME...
-			else if(read[0] == 99)
+			else if(read[0] == PlayerCommand.VOLUME_COMMAND)
 			{
 				runCommand = true;
 				// Will adjust volume of media player by using the second byte in read array as percentage.(MAX: 100%)
-				adjustVolume(read[1]);
+				return adjustVolume(read[1]);
 			}
+			// Unknown command.
+			return false;
 		}
-		
+
 		/**
 		 * Skips time using a percentage.
 		 * @param Integer percentage - Percentage of time you what to skip to.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void skip(int percentage)
+		private static boolean skip(int percentage)
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					// Skip to location in media.
 					player.skip(percentage);
 				}
+				return true;
+			}
+			return false;
 		}
-		
+
 		/**
 		 * Enables/Disables fast forward.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void fastForward()
+		private static boolean fastForward()
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					// Enable/Disable fast forward.
 					player.forward();
 				}
+				return true;
+			}
+			return false;
 		}
-		
+
 		/**
 		 * Skips back five seconds in current media.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void fastRewind()
+		private static boolean fastRewind()
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					// Skip back five seconds.
 					player.rewind();
 				}
+				return true;
+			}
+			return false;
 		}
-		
+
 		/**
-		 * Plays the received media file.
+		 * Plays the last media file received from the client.
+		 * @param {@link PlayerCommand} command - Command carrying the client's media file.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void play()
+		private static boolean play(PlayerCommand command)
 		{
-			// If command is enabled to run..
-			if(runCommand)
+			// If command is enabled to run and media file not null....
+			if(runCommand && command.getPath() != null)
 			{
-				// If media file not null....
-				if(path != null)
-					synchronized (player) {
-						// Run media file.
-						player.play(path.toCharArray(), index);
-					}
+				synchronized (player) {
+					// Run media file.
+					player.play(command.getPath().toCharArray(), command.getIndex());
+				}
+				return true;
 			}
+			return false;
 		}
-		
+
+		/**
+		 * Plays the media file of a RESUME_FILE_SEQUENCE from its recorded position.
+		 * @param {@link PlayerCommand} command - Command carrying the path and play-list index.
+		 * @return Boolean - True if the media file was started.
+		 */
+		private static boolean resume(PlayerCommand command)
+		{
+			// If command is enabled to run and media file not null....
+			if(runCommand && command.getPath() != null)
+			{
+				synchronized (player) {
+					// Run media file from its position.
+					player.resume(command.getPath().toCharArray(), command.getIndex());
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Plays the library entry a PLAY_LIBRARY_SEQUENCE named, its path is passed down as it is held by the library.
+		 * @param {@link PlayerCommand} command - Command carrying the entry.
+		 * @return Boolean - False if the id is not in the library.
+		 */
+		private static boolean playEntry(PlayerCommand command)
+		{
+			if(runCommand && player != null && command.getEntry() != null)
+			{
+				synchronized (player) {
+					player.play(command.getEntry(), command.getIndex());
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Replaces the play queue with the media files of a QUEUE_FILES_SEQUENCE and plays the first.
+		 * @param {@link PlayerCommand} command - Command carrying the queue.
+		 * @return Boolean - True if the queue was started.
+		 */
+		private static boolean queue(PlayerCommand command)
+		{
+			// If command is enabled to run and the queue has something in it....
+			if(runCommand && player != null && !command.getQueue().isEmpty())
+			{
+				synchronized (player) {
+					// Run the queue.
+					player.queue(command.getQueue());
+				}
+				return true;
+			}
+			return false;
+		}
+
 		/**
 		 * Plays media at the given link. Intended for YouTube.
 		 * @param mrl - MRL of the file to play.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void play(String mrl)
+		private static boolean play(String mrl)
 		{
 			System.out.println("Starting mrl:"+mrl);
-			if(player == null)
-				
-				player = new MediaPlayer();
-			if(mrl != null)
-				player.play(mrl);
+			checkPlayerCreated();
+			if(mrl == null)
+				return false;
+			player.play(mrl);
+			return true;
 		}
-		
+
 		/**
 		 * Attempts to play/pause current media.
+		 * @param {@link PlayerCommand} command - Command received from a client.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void pausePlay()
+		private static boolean pausePlay(PlayerCommand command)
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
@@ -411,110 +941,100 @@ public final class Bridge
 						// Pause/play media.
 						player.pauseOrPlay();
 					}
+					return true;
 				}
 				catch (Exception e)
 				{
 					// If can't play/pause, attempt to play last received media file.
-					play();
+					return play(command);
 				}
+			return false;
 		}
-		
+
 		/**
 		 * Attempts to stop current media.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void stopPlaying()
+		private static boolean stopPlaying()
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					// Stop currently playing media.
 					player.stop();
 				}
+				return true;
+			}
+			return false;
 		}
-		
+
 		/**
 		 * Adjusts volume via the passed parameter. It accepts it as a percentage with 100 being the max volume.
 		 * @param Integer volume_level - Percentage of volume out of 100.
+		 * @return Boolean - True if the command ran.
 		 */
-		private static void adjustVolume(int volume_level)
+		private static boolean adjustVolume(int volume_level)
 		{
 			// If command is enabled to run and media player not null....
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					// Adjust volume.
 					player.volume(volume_level);
 				}
+				return true;
+			}
+			return false;
 		}
-		
-		private static void setVideoInvisible()
+
+		private static boolean setVideoInvisible()
 		{
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					player.setFrameInvisible();
 				}
+				return true;
+			}
+			return false;
 		}
-		
-		private static void setVideoVisible()
+
+		private static boolean setVideoVisible()
 		{
 			if(runCommand && player != null)
+			{
 				synchronized (player) {
 					player.setFrameActive();
 				}
-		}
-		
-		/**
-		 * Checks if the read byte array is equal to the PLAY_FILE_SEQUENCE, if so. This means that a media file wrapper object
-		 * will be sent through the stream straight after the command. The file will be read and kept for use in running the command.
-		 * @throws ClassNotFoundException
-		 * @throws IOException
-		 */
-		private static void checkForFilePath() throws ClassNotFoundException, IOException
-		{
-			Logger.append(new StringBuffer("Checking for file path..."));
-			// Check if read equals PLAY_FILE_SEQUENCE, if so...
-			if(Static.compareBytes(read, PLAY_FILE_SEQUENCE))
-			{
-				// Read in MediaFile path from client.
-				path = input.readUTF();
-				index = input.readInt();
-			}
-		}
-		
-		/**
-		 * Checks if the read byte array is equal to the PLAY_TUBE_SEQUENCE, if so. This means that a MRL string object
-		 * will be sent through the stream straight after the command. The string will be read and kept for use in running the command.
-		 * @throws IOException
-		 */
-		@SuppressWarnings("unused")
-		private static void checkForMRL() throws IOException
-		{
-			Logger.append(new StringBuffer("Checking for MRL path..."));
-			// Check if read equals PLAY_FILE_SEQUENCE, if so...
-			if(Static.compareBytes(read, PLAY_TUBE_SEQUENCE))
-			{
-				// Read in string from client.
-				path =  input.readUTF();
-				index = -2;
+				return true;
 			}
+			return false;
 		}
-		
+
 		/**
-		 * Initializes Object out/in(put) streams. Object output stream must be initialized first.
-		 * @throws IOException - Will throw error if client connection is NULL/CLOSED/DISCONNECTED.
+		 * Checks if the decoded command is equal to the PLAY_FILE_SEQUENCE, if so. This means that a media file path and
+		 * play-list index were sent through the stream straight after the command. They are kept on the connection for use
+		 * in running the command. A framed PLAY_TUBE_SEQUENCE may carry its MRL the same way.
+		 * @param {@link BridgeConnection} connection - Client the command was received from.
 		 */
-		private static void initialiseStreams()
+		private static void checkForFilePath(BridgeConnection connection)
 		{
-			try
+			Logger.append(new StringBuffer("Checking for file path..."));
+			CommandDecoder decoder = connection.getDecoder();
+			// Check if read equals PLAY_FILE_SEQUENCE, RESUME_FILE_SEQUENCE or a PLAY_TUBE_SEQUENCE that may have carried a MRL, if so...
+			if(decoder.isCommand(PLAY_FILE_SEQUENCE) || decoder.isCommand(RESUME_FILE_SEQUENCE) || decoder.isCommand(PLAY_TUBE_SEQUENCE))
 			{
-				output = new ObjectOutputStream(socket.getOutputStream());
-				input = new ObjectInputStream(socket.getInputStream());
+				// Keep MediaFile path from client.
+				connection.setPath(decoder.getPath());
+				connection.setIndex(decoder.getIndex());
 			}
-			catch(IOException e)
+			// Keep the library entry's path for a play/pause with nothing playing.
+			else if(decoder.isCommand(PLAY_LIBRARY_SEQUENCE))
 			{
-				e.printStackTrace();
-				System.err.println();
-				Logger.append(new StringBuffer("Disconnected or closed"));
-				Logger.append(new StringBuffer(e.getMessage()));
+				LibraryEntry entry = MediaLibrary.getIndex().get(decoder.getLibraryId());
+				connection.setPath((entry == null) ? null : entry.getPath());
+				connection.setIndex(decoder.getIndex());
 			}
 		}
 	}
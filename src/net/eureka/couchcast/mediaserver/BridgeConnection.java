@@ -0,0 +1,412 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.foundation.init.NetworkGlobals;
+import net.eureka.couchcast.library.LibraryIndex;
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * State of a single controller client connected to the {@link Bridge}. Each connection has its own read buffer, command
+ * decoder and write queue so any number of phones can control the shared media player at the same time. All methods are
+ * called from the bridge selector thread.
+ * <br>
+ * Status frames are not queued with the rest. A connection holds at most one pending status frame, a view of the
+ * frames encoded once for every client by the {@link StatusBroadcast}. A newer status replaces the pending one rather
+ * than queueing behind it, so a client that reads slowly only ever falls behind by one status.
+ * <br>
+ * Acknowledgements are never dropped. The write queue holds at most MAXIMUM_QUEUED buffers, a client that lets it
+ * overflow, or that accepts no bytes for WRITE_DEADLINE while it has something to send, is disconnected by the
+ * {@link Bridge} rather than left to hold memory or stale state. Writes never block, so a stalled client can't hold up
+ * the others or the media player.
+ * <br>
+ * Every socket write, the bytes written and the status frames replaced before they were written are recorded in
+ * {@link Metrics}.
+ *
+ * @see Bridge
+ * @see CommandDecoder
+ * @see StatusBroadcast
+ */
+final class BridgeConnection
+{
+	/**
+	 * Size of the raw read buffer.
+	 */
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * Milliseconds between status keyframes, deltas are sent in between.
+	 */
+	private static final long KEYFRAME_INTERVAL = 10000L;
+
+	/**
+	 * Most buffers on the write queue before the client is disconnected.
+	 */
+	private static final int MAXIMUM_QUEUED = 256;
+
+	/**
+	 * Milliseconds a client may accept no bytes while it has something to send.
+	 */
+	private static final long WRITE_DEADLINE = 10000L;
+
+	private static final LatencyHistogram socketWrite = Metrics.histogram("socket.write"),
+										  legacyEncode = Metrics.histogram("status.legacy_encode");
+
+	private static final LongAdder bytesWritten = Metrics.counter("socket.bytes_written"),
+								   statusReplaced = Metrics.counter("status.replaced"),
+								   queueOverflows = Metrics.counter("bridge.queue_overflows");
+
+	private final SocketChannel channel;
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	private final CommandDecoder decoder = new CommandDecoder();
+
+	/**
+	 * Buffers waiting to be written to the channel, in order.
+	 */
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Status frame waiting to be written once the write queue is empty, null if none.
+	 */
+	private ByteBuffer pendingStatus = null;
+
+	/**
+	 * Buffer part way through being written, it has to be finished before anything else is written.
+	 */
+	private ByteBuffer writing = null;
+
+	/**
+	 * Time the channel last accepted bytes, or last had nothing to send.
+	 */
+	private long lastProgress = System.currentTimeMillis();
+
+	/**
+	 * Broadcast generation of the last status frame queued, deltas can only follow the generation before them.
+	 */
+	private long statusGeneration = -1L;
+
+	/**
+	 * Time the last keyframe was queued, zero until the first one so a new connection always starts with a keyframe.
+	 */
+	private long lastKeyframe = 0L;
+
+	/**
+	 * Object output stream used for old clients, only created with the --legacy-status launch argument.
+	 */
+	private ObjectOutputStream legacyOutput = null;
+
+	private ByteArrayOutputStream legacyBytes = null;
+
+	private SelectionKey key = null;
+
+	/**
+	 * Last media file received with PLAY_FILE_SEQUENCE.
+	 */
+	private String path = null;
+
+	/**
+	 * Play-list index of the last media file received.
+	 */
+	private int index = -1;
+
+	/**
+	 * Capture the connection's traffic is recorded to, null if not capturing.
+	 */
+	private final TrafficCapture capture;
+
+	/**
+	 * Number of the connection within the capture.
+	 */
+	private final int number;
+
+	/**
+	 * Creates the connection state. For old clients the object stream header is queued straight away, their
+	 * ObjectInputStream blocks until it is received.
+	 * @param {@link SocketChannel} channel - Accepted non-blocking client channel.
+	 * @param Integer number - Number of the connection, counting from one since the bridge started.
+	 * @param {@link TrafficCapture} capture - Capture to record the connection's traffic to, null if not capturing.
+	 * @throws IOException - If the object stream header can't be created.
+	 */
+	BridgeConnection(SocketChannel channel, int number, TrafficCapture capture) throws IOException
+	{
+		this.channel = channel;
+		this.number = number;
+		this.capture = capture;
+		if(capture != null)
+		{
+			capture.recordConnect(number);
+			decoder.setCapture(capture, number);
+		}
+		if(NetworkGlobals.isLegacyStatus())
+		{
+			legacyBytes = new ByteArrayOutputStream();
+			legacyOutput = new ObjectOutputStream(legacyBytes);
+			legacyOutput.flush();
+			// Header must never be dropped.
+			writeQueue.add(takeLegacyBytes());
+		}
+	}
+
+	/**
+	 * Registers the channel for reading with the passed selector.
+	 * @param {@link Selector} selector - Bridge selector.
+	 * @throws ClosedChannelException - If the client already disconnected.
+	 */
+	void register(Selector selector) throws ClosedChannelException
+	{
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Reads whatever is available from the channel into the read buffer.
+	 * @return Boolean - False if the client has closed the connection.
+	 * @throws IOException - Will throw error if client connection is CLOSED/DISCONNECTED.
+	 */
+	boolean read() throws IOException
+	{
+		return channel.read(readBuffer) >= 0;
+	}
+
+	/**
+	 * Retrieves the raw read buffer, in write mode.
+	 * @return {@link ByteBuffer} - Read buffer.
+	 */
+	ByteBuffer getReadBuffer()
+	{
+		return readBuffer;
+	}
+
+	CommandDecoder getDecoder()
+	{
+		return decoder;
+	}
+
+	/**
+	 * Queues the current broadcast generation for sending. A keyframe is sent first on every connection and then every
+	 * KEYFRAME_INTERVAL, otherwise the delta is queued if this client was sent the generation before, or nothing if it
+	 * already has the current one. A pending status frame that has not started writing is replaced, with a keyframe as
+	 * the changes of the replaced frame would otherwise be lost.
+	 * @param {@link StatusBroadcast} broadcast - Frames of the current status, already updated.
+	 * @param {@link NetworkInfo} info - Media info, serialized for old clients.
+	 * @throws IOException - If the legacy object can't be serialized.
+	 */
+	void queueStatus(StatusBroadcast broadcast, NetworkInfo info) throws IOException
+	{
+		if(legacyOutput != null)
+		{
+			final long start = System.nanoTime();
+			// Each update follows a reset so it stands alone, and can replace an unsent one like a keyframe.
+			legacyOutput.reset();
+			legacyOutput.writeObject(info);
+			legacyOutput.flush();
+			if(pendingStatus != null)
+				statusReplaced.increment();
+			pendingStatus = takeLegacyBytes();
+			legacyEncode.recordSince(start);
+			return;
+		}
+		final long generation = broadcast.getGeneration(), now = System.currentTimeMillis();
+		final boolean keyframe_due = now - lastKeyframe >= KEYFRAME_INTERVAL;
+		// Already has the current status.
+		if(generation == 0 || (generation == statusGeneration && !keyframe_due))
+			return;
+		if(pendingStatus != null)
+			statusReplaced.increment();
+		// Only in sync if the previous generation was queued and is still to be, or has been, written.
+		ByteBuffer delta = (pendingStatus == null && !keyframe_due && generation == statusGeneration + 1) ? broadcast.getDelta() : null;
+		if(delta != null)
+			pendingStatus = delta;
+		else
+		{
+			pendingStatus = broadcast.getKeyframe();
+			lastKeyframe = now;
+		}
+		statusGeneration = generation;
+	}
+
+	/**
+	 * Queues the acknowledgement of a framed command.
+	 * @param Integer request_id - Request id of the command.
+	 * @param byte[] result - PLAYER_SUCCESS_SEQUENCE or PLAYER_FAILURE_SEQUENCE.
+	 * @throws IOException - If the write queue is full.
+	 */
+	void queueAck(int request_id, byte[] result) throws IOException
+	{
+		ByteBuffer ack = ByteBuffer.allocate(StatusFrame.ACK_SIZE);
+		StatusFrame.encodeAck(request_id, result, ack);
+		queue(ack);
+	}
+
+	/**
+	 * Queues a metrics report, see {@link StatusFrame}.
+	 * @param Integer request_id - Request id of the metrics command.
+	 * @param String report - Metrics report.
+	 * @throws IOException - If the write queue is full.
+	 */
+	void queueMetrics(int request_id, String report) throws IOException
+	{
+		queue(StatusFrame.encodeMetrics(request_id, report));
+	}
+
+	/**
+	 * Queues the changes to the client's copy of the library path table, see {@link StatusFrame}.
+	 * @param Integer request_id - Request id of the library sync command.
+	 * @param {@link LibraryIndex} index - Current library snapshot.
+	 * @param Long epoch - Epoch of the client's table.
+	 * @param Long generation - Generation of the client's table.
+	 * @param Integer next_id - Next id of the client's table.
+	 * @throws IOException - If the write queue is full.
+	 */
+	void queueLibrary(int request_id, LibraryIndex index, long epoch, long generation, int next_id) throws IOException
+	{
+		queue(StatusFrame.encodeLibrary(request_id, index, epoch, generation, next_id));
+	}
+
+	/**
+	 * Adds a buffer to the write queue. Nothing on the queue may be dropped, so a full queue fails the connection.
+	 * @param {@link ByteBuffer} buffer - Buffer ready to be written.
+	 * @throws IOException - If the write queue is full.
+	 */
+	private void queue(ByteBuffer buffer) throws IOException
+	{
+		if(writeQueue.size() >= MAXIMUM_QUEUED)
+		{
+			queueOverflows.increment();
+			throw new IOException("Client write queue full.");
+		}
+		writeQueue.add(buffer);
+	}
+
+	/**
+	 * Takes the serialized bytes of the legacy output stream.
+	 * @return {@link ByteBuffer} - Serialized bytes, ready to be written.
+	 */
+	private ByteBuffer takeLegacyBytes()
+	{
+		ByteBuffer bytes = ByteBuffer.wrap(legacyBytes.toByteArray());
+		legacyBytes.reset();
+		return bytes;
+	}
+
+	/**
+	 * Writes as much of the write queue, then the pending status frame, as the channel accepts. Write interest is only
+	 * kept on the key while there is something left to send.
+	 * @throws IOException - Will throw error if client connection is CLOSED/DISCONNECTED.
+	 */
+	void flush() throws IOException
+	{
+		while(true)
+		{
+			// Take the next buffer once the last one is finished.
+			if(writing == null)
+			{
+				writing = writeQueue.poll();
+				if(writing == null)
+				{
+					writing = pendingStatus;
+					pendingStatus = null;
+				}
+				// Nothing left.
+				if(writing == null)
+					break;
+				if(capture != null)
+					capture.recordFrame(number, writing);
+			}
+			final long start = System.nanoTime();
+			final int written = channel.write(writing);
+			socketWrite.recordSince(start);
+			if(written > 0)
+			{
+				bytesWritten.add(written);
+				lastProgress = System.currentTimeMillis();
+			}
+			// Socket buffer full, wait until writable.
+			if(writing.hasRemaining())
+				break;
+			writing = null;
+		}
+		// Nothing to send counts as keeping up.
+		if(writing == null)
+			lastProgress = System.currentTimeMillis();
+		if(key != null && key.isValid())
+			key.interestOps((writing == null) ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Checks if the client has accepted no bytes for WRITE_DEADLINE while having something to send.
+	 * @param Long now - Current time in milliseconds.
+	 * @return Boolean - True if the client should be disconnected.
+	 */
+	boolean isStalled(long now)
+	{
+		return writing != null && now - lastProgress >= WRITE_DEADLINE;
+	}
+
+	/**
+	 * Checks if the client channel is still open.
+	 * @return Boolean - True if open.
+	 */
+	boolean isOpen()
+	{
+		return channel.isOpen();
+	}
+
+	/**
+	 * Closes the client channel.
+	 */
+	void close()
+	{
+		if(capture != null)
+			capture.recordDisconnect(number);
+		try
+		{
+			if(key != null)
+				key.cancel();
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	String getPath()
+	{
+		return path;
+	}
+
+	void setPath(String path)
+	{
+		this.path = path;
+	}
+
+	int getIndex()
+	{
+		return index;
+	}
+
+	void setIndex(int index)
+	{
+		this.index = index;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+}
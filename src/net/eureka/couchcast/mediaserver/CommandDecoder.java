@@ -0,0 +1,585 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.eureka.couchcast.player.Playlist;
+import net.eureka.couchcast.player.Static;
+
+/**
+ * Incremental decoder for the commands sent by a controller client over a non-blocking channel. Bytes are fed in as they
+ * arrive and whole commands are taken out with next().
+ * <br>
+ * Clients write their commands through an ObjectOutputStream, so the wire carries the object stream header followed by
+ * block data records. The decoder strips these records and parses the commands from the block data, which is exactly
+ * what ObjectInputStream.read()/readUTF()/readInt() did for the old blocking bridge. Clients that write raw bytes without
+ * the object stream header are also accepted.
+ * <br>
+ * Two command formats can be mixed on the same connection. Legacy commands are a bare two byte opcode. Framed commands
+ * start with the {@link StatusFrame} MAGIC byte, which no legacy opcode starts with, and carry a request id the bridge
+ * acknowledges once the command has run. Clients can pipeline any number of framed commands without waiting.
+ * <br>
+ * <pre>
+ * <h2>LEGACY COMMANDS:</h2>
+ *
+ * 		Two byte opcode, see {@link Bridge}.
+ * 		PLAY_FILE_SEQUENCE and RESUME_FILE_SEQUENCE are followed by a UTF path (readUTF) and a play-list index (readInt).
+ * 		QUEUE_FILES_SEQUENCE is followed by an item count (readUnsignedShort), then a path and index per item.
+ * 		PLAY_LIBRARY_SEQUENCE is followed by a library id and a play-list index (readInt each).
+ * 		LIBRARY_SYNC_SEQUENCE is followed by the epoch and generation (readLong each) and next id (readInt) of the
+ * 		client's path table.
+ *
+ * <h2>FRAMED COMMANDS (Big endian):</h2>
+ *
+ * 		[0]		MAGIC		- Always 67 ('C').
+ * 		[1]		VERSION		- Frame version, StatusFrame.VERSION.
+ * 		[2-3]	LENGTH		- Number of bytes following this field.
+ * 		[4-5]	OPCODE		- Two byte opcode, as legacy.
+ * 		[6-9]	REQUEST ID	- Chosen by the client, echoed back in the acknowledgement.
+ * 		[10-]	PAYLOAD		- PLAY_FILE_SEQUENCE, RESUME_FILE_SEQUENCE: UTF path and play-list index,
+ * 							  PLAY_TUBE_SEQUENCE: optional UTF MRL,
+ * 							  QUEUE_FILES_SEQUENCE: item count, then a UTF path and play-list index per item,
+ * 							  PLAY_LIBRARY_SEQUENCE, LIBRARY_SYNC_SEQUENCE: as legacy.
+ * </pre>
+ *
+ * @see BridgeConnection
+ */
+final class CommandDecoder
+{
+	/**
+	 * Object stream header magic and version, along with the block data record type codes.
+	 */
+	private static final short STREAM_MAGIC = (short) 0xACED;
+	private static final int STREAM_HEADER_SIZE = 4;
+	private static final byte TC_BLOCKDATA = 0x77, TC_BLOCKDATALONG = 0x7A, TC_RESET = 0x79;
+
+	/**
+	 * Size of a command opcode.
+	 */
+	private static final int COMMAND_SIZE = 2;
+
+	/**
+	 * Size of the framed command header (MAGIC, VERSION, LENGTH) and of the fixed part of its body (OPCODE, REQUEST ID).
+	 */
+	private static final int FRAME_HEADER_SIZE = 4, FRAME_BODY_SIZE = COMMAND_SIZE + 4;
+
+	/**
+	 * Largest possible command, a framed command with a maximum LENGTH.
+	 */
+	private static final int MAXIMUM_COMMAND_SIZE = FRAME_HEADER_SIZE + 65535;
+
+	/**
+	 * Request id of legacy commands, which are never acknowledged.
+	 */
+	static final int NO_REQUEST = -1;
+
+	/**
+	 * Stream modes, unknown until the first bytes have been seen.
+	 */
+	private static final int MODE_UNKNOWN = 0, MODE_OBJECT_STREAM = 1, MODE_RAW = 2;
+
+	/**
+	 * Unwrapped command bytes waiting to be parsed. Always left in write mode.
+	 */
+	private final ByteBuffer pending = ByteBuffer.allocate(MAXIMUM_COMMAND_SIZE);
+
+	/**
+	 * Opcode of the last decoded command.
+	 */
+	private final byte[] command = new byte[COMMAND_SIZE];
+
+	private int mode = MODE_UNKNOWN;
+
+	/**
+	 * Bytes left in the current block data record.
+	 */
+	private int blockRemaining = 0;
+
+	private String path = null;
+
+	private int index = -1;
+
+	/**
+	 * Items of the last decoded QUEUE_FILES_SEQUENCE.
+	 */
+	private List<Playlist.Item> queue = Collections.emptyList();
+
+	/**
+	 * Library id of the last decoded PLAY_LIBRARY_SEQUENCE.
+	 */
+	private int libraryId = -1;
+
+	/**
+	 * Client's path table as sent with the last decoded LIBRARY_SYNC_SEQUENCE.
+	 */
+	private long syncEpoch = 0L, syncGeneration = 0L;
+
+	private int syncNextId = 0;
+
+	/**
+	 * Whether the last command was framed, and its request id.
+	 */
+	private boolean framed = false;
+
+	private int requestId = NO_REQUEST;
+
+	/**
+	 * Capture every decoded command is recorded to, null unless the --capture launch argument was given.
+	 */
+	private TrafficCapture capture = null;
+
+	private int connection = 0;
+
+	/**
+	 * Consumes as many bytes from the input as possible. Any partial record header is left in the input for the next call.
+	 * @param {@link ByteBuffer} input - Bytes read from the channel, in read mode.
+	 * @throws StreamCorruptedException - If the client sent object stream content other than block data.
+	 */
+	void feed(final ByteBuffer input) throws StreamCorruptedException
+	{
+		while(true)
+		{
+			if(mode == MODE_UNKNOWN)
+			{
+				// Need two bytes to detect the object stream magic.
+				if(input.remaining() < 2)
+					return;
+				if(input.getShort(input.position()) == STREAM_MAGIC)
+				{
+					// Wait for the whole header.
+					if(input.remaining() < STREAM_HEADER_SIZE)
+						return;
+					input.position(input.position() + STREAM_HEADER_SIZE);
+					mode = MODE_OBJECT_STREAM;
+				}
+				else
+					mode = MODE_RAW;
+			}
+			else if(mode == MODE_RAW)
+			{
+				transfer(input, input.remaining());
+				return;
+			}
+			else if(blockRemaining > 0)
+			{
+				int transferred = transfer(input, blockRemaining);
+				blockRemaining -= transferred;
+				// No progress, either the input is empty or pending commands must be taken out first.
+				if(transferred == 0)
+					return;
+			}
+			else if(!readRecordHeader(input))
+				return;
+		}
+	}
+
+	/**
+	 * Reads the next object stream record header.
+	 * @param {@link ByteBuffer} input - Bytes read from the channel, in read mode.
+	 * @return Boolean - True if a header was consumed, false if more bytes are needed.
+	 * @throws StreamCorruptedException - If the record is not block data.
+	 */
+	private boolean readRecordHeader(final ByteBuffer input) throws StreamCorruptedException
+	{
+		if(!input.hasRemaining())
+			return false;
+		byte type_code = input.get(input.position());
+		if(type_code == TC_BLOCKDATA)
+		{
+			if(input.remaining() < 2)
+				return false;
+			input.get();
+			blockRemaining = input.get() & 0xFF;
+		}
+		else if(type_code == TC_BLOCKDATALONG)
+		{
+			if(input.remaining() < 5)
+				return false;
+			input.get();
+			blockRemaining = input.getInt();
+			if(blockRemaining < 0)
+				throw new StreamCorruptedException("Negative block data length: "+blockRemaining);
+		}
+		// Client side reset, nothing to do.
+		else if(type_code == TC_RESET)
+			input.get();
+		else
+			throw new StreamCorruptedException("Unsupported object stream content: "+type_code);
+		return true;
+	}
+
+	/**
+	 * Moves bytes from the input to the pending command buffer.
+	 * @param {@link ByteBuffer} input - Source bytes, in read mode.
+	 * @param Integer limit - Maximum number of bytes to move.
+	 * @return Integer - Number of bytes moved.
+	 */
+	private int transfer(final ByteBuffer input, int limit)
+	{
+		int length = Math.min(limit, Math.min(input.remaining(), pending.remaining()));
+		pending.put(input.array(), input.arrayOffset() + input.position(), length);
+		input.position(input.position() + length);
+		return length;
+	}
+
+	/**
+	 * Records every command decoded from now on.
+	 * @param {@link TrafficCapture} to - Capture to record to.
+	 * @param Integer connection_number - Number of the connection within the capture.
+	 */
+	void setCapture(TrafficCapture to, int connection_number)
+	{
+		capture = to;
+		connection = connection_number;
+	}
+
+	/**
+	 * Attempts to decode the next whole command from the pending bytes.
+	 * @return Boolean - True if a command was decoded and is available through getCommand(), false if more bytes are needed.
+	 * @throws IOException - If a framed command is malformed or a path is not valid UTF.
+	 */
+	boolean next() throws IOException
+	{
+		pending.flip();
+		try
+		{
+			if(pending.remaining() < COMMAND_SIZE)
+				return false;
+			final int start = pending.position();
+			// Check for a framed command.
+			final boolean decoded = (pending.get(start) == StatusFrame.MAGIC) ? nextFrame() : nextLegacy();
+			// Record exactly the bytes the command was decoded from.
+			if(decoded && capture != null)
+				capture.recordCommand(connection, pending, start, pending.position() - start);
+			return decoded;
+		}
+		finally
+		{
+			pending.compact();
+		}
+	}
+
+	/**
+	 * Decodes a legacy command, a bare opcode that may be followed by a path and index.
+	 * @return Boolean - True if a whole command was decoded.
+	 * @throws IOException - If the path is not valid UTF, or the path or queue is too long to ever fit.
+	 */
+	private boolean nextLegacy() throws IOException
+	{
+		int start = pending.position(), size = COMMAND_SIZE;
+		// Check if command carries a file path.
+		if(carriesFilePath(pending.get(start), pending.get(start + 1)))
+		{
+			// Wait for the UTF length.
+			if(pending.remaining() < COMMAND_SIZE + 2)
+				return false;
+			size = COMMAND_SIZE + 2 + (pending.getShort(start + COMMAND_SIZE) & 0xFFFF) + 4;
+			// A path this long can never fit, waiting for it would stall the connection for good.
+			if(size > pending.capacity())
+				throw new StreamCorruptedException("File path too long: "+(size - COMMAND_SIZE - 6));
+			// Wait for the whole path and index.
+			if(pending.remaining() < size)
+				return false;
+			readFilePath(start + COMMAND_SIZE, size - COMMAND_SIZE);
+		}
+		// Check if command carries a play queue.
+		else if(isQueue(pending.get(start), pending.get(start + 1)))
+		{
+			final int queue_size = measureQueue(start + COMMAND_SIZE, pending.limit());
+			// Wait for the whole queue, unless it can never fit.
+			if(queue_size < 0)
+			{
+				if(pending.remaining() == pending.capacity())
+					throw new StreamCorruptedException("Queue too long.");
+				return false;
+			}
+			size = COMMAND_SIZE + queue_size;
+			readQueue(start + COMMAND_SIZE, queue_size);
+		}
+		// Check if command carries fixed size fields.
+		else if(getFixedPayload(pending.get(start), pending.get(start + 1)) > 0)
+		{
+			size = COMMAND_SIZE + getFixedPayload(pending.get(start), pending.get(start + 1));
+			// Wait for every field.
+			if(pending.remaining() < size)
+				return false;
+			readFixed(pending.get(start + 1), start + COMMAND_SIZE);
+		}
+		pending.get(command);
+		pending.position(start + size);
+		framed = false;
+		requestId = NO_REQUEST;
+		return true;
+	}
+
+	/**
+	 * Decodes a framed command.
+	 * @return Boolean - True if a whole frame was decoded.
+	 * @throws IOException - If the frame is malformed or a path is not valid UTF.
+	 */
+	private boolean nextFrame() throws IOException
+	{
+		int start = pending.position();
+		if(pending.remaining() < FRAME_HEADER_SIZE)
+			return false;
+		if(pending.get(start + 1) != StatusFrame.VERSION)
+			throw new StreamCorruptedException("Unsupported command frame version: "+pending.get(start + 1));
+		int length = pending.getShort(start + 2) & 0xFFFF;
+		if(length < FRAME_BODY_SIZE)
+			throw new StreamCorruptedException("Command frame too short: "+length);
+		// Wait for the whole frame.
+		if(pending.remaining() < FRAME_HEADER_SIZE + length)
+			return false;
+		int body = start + FRAME_HEADER_SIZE, payload = body + FRAME_BODY_SIZE, payload_length = length - FRAME_BODY_SIZE;
+		command[0] = pending.get(body);
+		command[1] = pending.get(body + 1);
+		requestId = pending.getInt(body + COMMAND_SIZE);
+		framed = true;
+		// Read payloads.
+		if(carriesFilePath(command[0], command[1]))
+			readFilePath(payload, payload_length);
+		else if(isCommand(Bridge.BridgeIO.PLAY_TUBE_SEQUENCE) && payload_length > 0)
+		{
+			path = readUTF(payload, payload_length);
+			index = -2;
+		}
+		else if(isQueue(command[0], command[1]))
+			readQueue(payload, payload_length);
+		else if(getFixedPayload(command[0], command[1]) > 0)
+		{
+			if(payload_length < getFixedPayload(command[0], command[1]))
+				throw new StreamCorruptedException("Command payload too short: "+payload_length);
+			readFixed(command[1], payload);
+		}
+		pending.position(start + FRAME_HEADER_SIZE + length);
+		return true;
+	}
+
+	/**
+	 * Checks if an opcode is followed by a file path and play-list index.
+	 * @param Byte first - First byte of the opcode.
+	 * @param Byte second - Second byte of the opcode.
+	 * @return Boolean - True for PLAY_FILE_SEQUENCE and RESUME_FILE_SEQUENCE.
+	 */
+	private static boolean carriesFilePath(byte first, byte second)
+	{
+		return first == Bridge.BridgeIO.PLAY_FILE_SEQUENCE[0]
+				&& (second == Bridge.BridgeIO.PLAY_FILE_SEQUENCE[1] || second == Bridge.BridgeIO.RESUME_FILE_SEQUENCE[1]);
+	}
+
+	/**
+	 * Checks if an opcode is followed by a play queue.
+	 * @param Byte first - First byte of the opcode.
+	 * @param Byte second - Second byte of the opcode.
+	 * @return Boolean - True for QUEUE_FILES_SEQUENCE.
+	 */
+	private static boolean isQueue(byte first, byte second)
+	{
+		return first == Bridge.BridgeIO.QUEUE_FILES_SEQUENCE[0] && second == Bridge.BridgeIO.QUEUE_FILES_SEQUENCE[1];
+	}
+
+	/**
+	 * Retrieves the size of the fields following an opcode that carries fixed size fields.
+	 * @param Byte first - First byte of the opcode.
+	 * @param Byte second - Second byte of the opcode.
+	 * @return Integer - Size of the fields, zero for other opcodes.
+	 */
+	private static int getFixedPayload(byte first, byte second)
+	{
+		if(first == Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE[0] && second == Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE[1])
+			return 4 + 4;
+		if(first == Bridge.BridgeIO.LIBRARY_SYNC_SEQUENCE[0] && second == Bridge.BridgeIO.LIBRARY_SYNC_SEQUENCE[1])
+			return 8 + 8 + 4;
+		return 0;
+	}
+
+	/**
+	 * Reads the fixed size fields following an opcode.
+	 * @param Byte second - Second byte of the opcode, which tells them apart.
+	 * @param Integer offset - Position of the first field.
+	 */
+	private void readFixed(byte second, int offset)
+	{
+		if(second == Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE[1])
+		{
+			libraryId = pending.getInt(offset);
+			index = pending.getInt(offset + 4);
+		}
+		else
+		{
+			syncEpoch = pending.getLong(offset);
+			syncGeneration = pending.getLong(offset + 8);
+			syncNextId = pending.getInt(offset + 16);
+		}
+	}
+
+	/**
+	 * Works out the size of a legacy play queue without decoding it.
+	 * @param Integer offset - Position of the item count.
+	 * @param Integer end - End of the pending bytes.
+	 * @return Integer - Size of the queue in bytes, -1 if it hasn't all arrived yet.
+	 */
+	private int measureQueue(int offset, int end)
+	{
+		if(offset + 2 > end)
+			return -1;
+		final int count = pending.getShort(offset) & 0xFFFF;
+		int position = offset + 2;
+		for(int i = 0; i < count; i ++)
+		{
+			if(position + 2 > end)
+				return -1;
+			position += 2 + (pending.getShort(position) & 0xFFFF) + 4;
+			if(position > end)
+				return -1;
+		}
+		return position - offset;
+	}
+
+	/**
+	 * Reads an item count followed by a UTF path and play-list index per item.
+	 * @param Integer offset - Position of the item count.
+	 * @param Integer length - Bytes available for the queue.
+	 * @throws IOException - If the queue is too long, truncated or a path is not valid UTF.
+	 */
+	private void readQueue(int offset, int length) throws IOException
+	{
+		if(length < 2)
+			throw new StreamCorruptedException("Missing queue item count.");
+		final int count = pending.getShort(offset) & 0xFFFF, end = offset + length;
+		if(count > Playlist.MAXIMUM_ITEMS)
+			throw new StreamCorruptedException("Queue too long: "+count);
+		ArrayList<Playlist.Item> items = new ArrayList<Playlist.Item>(count);
+		int position = offset + 2;
+		for(int i = 0; i < count; i ++)
+		{
+			readFilePath(position, end - position);
+			items.add(new Playlist.Item(path, index));
+			position += 2 + (pending.getShort(position) & 0xFFFF) + 4;
+		}
+		queue = Collections.unmodifiableList(items);
+	}
+
+	/**
+	 * Reads a UTF path followed by a play-list index.
+	 * @param Integer offset - Position of the UTF length.
+	 * @param Integer length - Bytes available for the path and index.
+	 * @throws IOException - If the path is not valid UTF or doesn't fit.
+	 */
+	private void readFilePath(int offset, int length) throws IOException
+	{
+		path = readUTF(offset, length);
+		int index_offset = offset + 2 + (pending.getShort(offset) & 0xFFFF);
+		if(index_offset + 4 > offset + length)
+			throw new StreamCorruptedException("Missing play-list index.");
+		index = pending.getInt(index_offset);
+	}
+
+	/**
+	 * Reads a modified UTF-8 string, as written by DataOutput.writeUTF().
+	 * @param Integer offset - Position of the UTF length.
+	 * @param Integer length - Bytes available for the string.
+	 * @return String - Decoded string.
+	 * @throws IOException - If the string is not valid UTF or doesn't fit.
+	 */
+	private String readUTF(int offset, int length) throws IOException
+	{
+		if(length < 2 || 2 + (pending.getShort(offset) & 0xFFFF) > length)
+			throw new StreamCorruptedException("Truncated UTF string.");
+		return new DataInputStream(new ByteArrayInputStream(pending.array(), pending.arrayOffset() + offset, length)).readUTF();
+	}
+
+	/**
+	 * Retrieves the opcode of the last decoded command.
+	 * @return byte[] - Two byte opcode, reused between commands.
+	 */
+	byte[] getCommand()
+	{
+		return command;
+	}
+
+	/**
+	 * Checks if the last decoded command was the passed sequence.
+	 * @param byte[] sequence - Two byte opcode.
+	 * @return Boolean - True if matching.
+	 */
+	boolean isCommand(final byte[] sequence)
+	{
+		return Static.compareBytes(command, sequence);
+	}
+
+	/**
+	 * Retrieves the path of the last decoded PLAY_FILE_SEQUENCE.
+	 * @return String - Path of the media file.
+	 */
+	String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Retrieves the items of the last decoded QUEUE_FILES_SEQUENCE.
+	 * @return List - Queued media files, in play order.
+	 */
+	List<Playlist.Item> getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * Retrieves the library id of the last decoded PLAY_LIBRARY_SEQUENCE.
+	 * @return Integer - Library id.
+	 */
+	int getLibraryId()
+	{
+		return libraryId;
+	}
+
+	long getSyncEpoch()
+	{
+		return syncEpoch;
+	}
+
+	long getSyncGeneration()
+	{
+		return syncGeneration;
+	}
+
+	int getSyncNextId()
+	{
+		return syncNextId;
+	}
+
+	/**
+	 * Retrieves the play-list index of the last decoded PLAY_FILE_SEQUENCE.
+	 * @return Integer - Play-list index.
+	 */
+	int getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Checks if the last decoded command was framed and so needs acknowledging.
+	 * @return Boolean - True if framed.
+	 */
+	boolean isFramed()
+	{
+		return framed;
+	}
+
+	/**
+	 * Retrieves the request id of the last decoded command.
+	 * @return Integer - Request id, NO_REQUEST for legacy commands.
+	 */
+	int getRequestId()
+	{
+		return requestId;
+	}
+}
@@ -0,0 +1,188 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * Single consumer queue in front of the media player. The bridge selector thread submits commands and goes straight back
+ * to reading sockets, while a dedicated thread runs them one at a time in order. A slow startMedia or minimizeAll() can
+ * no longer stall reads from any client.
+ * <br>
+ * Dragging a seek or volume slider floods the bridge with commands. A seek or volume submitted while the previous queued
+ * command is of the same kind replaces it, so a run of them collapses to the latest value. Everything else keeps its order.
+ * <br>
+ * The media player is created on this thread too, when the bridge asks for it on the first client, so building VLC and
+ * its frame never stalls the selector. The request is taken ahead of any command.
+ * <br>
+ * Each command's time in the queue and time running are recorded in {@link Metrics}, the latter per opcode.
+ *
+ * @see PlayerCommand
+ * @see Bridge
+ */
+final class CommandExecutor implements Runnable
+{
+	/**
+	 * Commands waiting to run, guarded by itself. The lock is never held while a command runs.
+	 */
+	private final ArrayDeque<PlayerCommand> queue = new ArrayDeque<PlayerCommand>();
+
+	/**
+	 * Set when the bridge needs the media player created, guarded by the queue.
+	 */
+	private boolean playerRequested = false;
+
+	/**
+	 * Time from a command being received to it starting to run.
+	 */
+	private static final LatencyHistogram queueWait = Metrics.histogram("command.queue_wait");
+
+	/**
+	 * Seek and volume commands replaced before they ran.
+	 */
+	private static final LongAdder coalesced = Metrics.counter("command.coalesced");
+
+	/**
+	 * Starts the executor thread.
+	 */
+	CommandExecutor()
+	{
+		Thread thread = new Thread(this, "Player Command Executor");
+		thread.setDaemon(true);
+		thread.start();
+		Metrics.gauge("command.queue_depth", new LongSupplier()
+		{
+			@Override
+			public long getAsLong()
+			{
+				return size();
+			}
+		});
+	}
+
+	/**
+	 * Queues a command, collapsing it into the last queued command if both are the same seek or volume kind.
+	 * @param {@link PlayerCommand} command - Command to run.
+	 */
+	void submit(PlayerCommand command)
+	{
+		synchronized (queue)
+		{
+			PlayerCommand last = queue.peekLast();
+			// Replace a stale seek/volume of the same kind.
+			if(last != null && command.supersede(last))
+			{
+				queue.pollLast();
+				coalesced.increment();
+			}
+			queue.addLast(command);
+			queue.notify();
+		}
+	}
+
+	/**
+	 * Asks for the media player to be created on the executor thread, ahead of any queued command.
+	 */
+	void requestPlayer()
+	{
+		synchronized (queue)
+		{
+			playerRequested = true;
+			queue.notify();
+		}
+	}
+
+	/**
+	 * Executor loop, takes each command in order and runs it on the media player.
+	 */
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			PlayerCommand command = take();
+			// Player was asked for.
+			if(command == null)
+			{
+				createPlayer();
+				continue;
+			}
+			final long start = System.nanoTime();
+			queueWait.record(start - command.getReceived());
+			boolean success;
+			try
+			{
+				success = Bridge.BridgeIO.validateCommand(command);
+			}
+			catch (RuntimeException e)
+			{
+				// Player failure must not take down the executor.
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+				success = false;
+			}
+			Metrics.histogram(command.getMetricName()).recordSince(start);
+			command.setSuccess(success);
+			Bridge.commandCompleted(command);
+		}
+	}
+
+	/**
+	 * Creates the media player if it doesn't exist yet.
+	 */
+	private void createPlayer()
+	{
+		try
+		{
+			Bridge.BridgeIO.checkPlayerCreated();
+		}
+		catch (RuntimeException e)
+		{
+			// Tried again on the next client.
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Retrieves the number of commands waiting to run.
+	 * @return Long - Queue depth.
+	 */
+	private long size()
+	{
+		synchronized (queue)
+		{
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Waits for the next command, or a request for the media player.
+	 * @return {@link PlayerCommand} - Oldest queued command, null if the media player was requested.
+	 */
+	private PlayerCommand take()
+	{
+		synchronized (queue)
+		{
+			while(queue.isEmpty() && !playerRequested)
+				try
+				{
+					queue.wait();
+				}
+				catch (InterruptedException e)
+				{
+					e.printStackTrace();
+				}
+			if(playerRequested)
+			{
+				playerRequested = false;
+				return null;
+			}
+			return queue.pollFirst();
+		}
+	}
+}
@@ -9,6 +9,10 @@ import java.io.Serializable;
  * Used by MediaPlayer object for updating.
  * </br>
  * Used by MediaBroadcaster object for sending info about the player to client.
+ * </br>
+ * An info object is immutable, players publish each new state as a new snapshot and swap it in atomically, so readers
+ * on any thread get a consistent view without locking. The mutable {@link Builder} is only used to build up the state
+ * decoded from status frames.
  * 
  * @author Owen McMonagle
  * 
@@ -26,29 +30,29 @@ public final class NetworkInfo implements Serializable
 	/**
 	 *	Boolean used to determine the play/pause status.
 	 */
-	private boolean playing = false; 
+	private final boolean playing; 
 			
 	/**
 	 * Boolean used to determine the fast forward status. 
 	 */
-	private boolean forward = false;
+	private final boolean forward;
 	
-	private boolean music = false;
+	private final boolean music;
 			
 	/**
 	 * Byte used to determine the volume level, out of 100.
 	 */
-	private byte volume = 0; 
+	private final byte volume; 
 			
 	/**
 	 * Long used to determine the total length of the current media in milliseconds.
 	 */
-	private long length = 0L; 
+	private final long length; 
 			
 	/**
 	 * Long used to determine the current time of the selected media in milliseconds.
 	 */
-	private long time = 0L; 
+	private final long time; 
 	
 			
 	/**
@@ -57,55 +61,76 @@ public final class NetworkInfo implements Serializable
 	 * on the clients play-list the 67th file down must be highlighted as playing. Also used to determine
 	 * the name of the media currently playing on the client side. 
 	 */
-	private int index = 0;
+	private final int index;
 	
 	/**
-	 * Only constructor, requires initial media length and current time. 
+	 * Creates info with only the media length and current time, paused with nothing else set. 
 	 * @param long media_length - Total length/time of media.
 	 * @param long media_time - current time of media.
 	 */
 	public NetworkInfo(final long media_length, final long media_time)
 	{
-		// Set total length.
-		this.setLength(media_length);
-		// Set current length.
-		this.setTime(media_time);
+		this(media_length, media_time, false, false, false, (byte) 0, 0);
 	}
 	
 	/**
-	 * Retrieves total length(In milliseconds).
-	 * @return Long - Total length of current media.
+	 * Creates info with every field set.
+	 * @param Long media_length - Total length of media in milliseconds.
+	 * @param Long media_time - Current time of media in milliseconds.
+	 * @param Boolean media_playing - Play/pause status.
+	 * @param Boolean media_forward - Fast forward status.
+	 * @param Boolean media_music - Music mode.
+	 * @param Byte media_volume - Volume level, out of 100.
+	 * @param Integer media_index - Play-list index of the playing media file.
+	 */
+	public NetworkInfo(final long media_length, final long media_time, final boolean media_playing, final boolean media_forward,
+			final boolean media_music, final byte media_volume, final int media_index)
+	{
+		this.length = media_length;
+		this.time = media_time;
+		this.playing = media_playing;
+		this.forward = media_forward;
+		this.music = media_music;
+		this.volume = media_volume;
+		this.index = media_index;
+	}
+	
+	/**
+	 * Copies the info with the play/pause status changed.
+	 * @param Boolean media_playing - Play/pause status.
+	 * @return {@link NetworkInfo} - Copy with the status.
 	 */
-	public long getLength()
+	public NetworkInfo withPlaying(final boolean media_playing)
 	{
-		return length;
+		return new NetworkInfo(length, time, media_playing, forward, music, volume, index);
 	}
-
+	
 	/**
-	 * Sets total length(In milliseconds) of current media. 
-	 * @param Long length - Total length of media in milliseconds. 
+	 * Copies the info with the current time changed.
+	 * @param Long media_time - Current time of the media, in milliseconds.
+	 * @return {@link NetworkInfo} - Copy with the time, this info if the time is the same.
 	 */
-	public void setLength(long length)
+	public NetworkInfo withTime(final long media_time)
 	{
-		this.length = length;
+		return (media_time == time) ? this : new NetworkInfo(length, media_time, playing, forward, music, volume, index);
 	}
-
+	
 	/**
-	 * Retrieves current length(In milliseconds).
-	 * @return Long - Current length of playing media.
+	 * Retrieves total length(In milliseconds).
+	 * @return Long - Total length of current media.
 	 */
-	public long getTime()
+	public long getLength()
 	{
-		return time;
+		return length;
 	}
 
 	/**
-	 * Sets current length(In milliseconds) of current media.
-	 * @param time - Current length of media in milliseconds. 
+	 * Retrieves current length(In milliseconds).
+	 * @return Long - Current length of playing media.
 	 */
-	public void setTime(long time) 
+	public long getTime()
 	{
-		this.time = time;
+		return time;
 	}
 
 	/**
@@ -117,15 +142,6 @@ public final class NetworkInfo implements Serializable
 		return playing;
 	}
 
-	/**
-	 * Determines play/pause status of media.
-	 * @param playing - Boolean used to determine the /play/pause status
-	 */
-	public void setPlaying(boolean playing) 
-	{
-		this.playing = playing;
-	}
-
 	/**
 	 * Determines fast forward status of media.
 	 * @return Boolean - Boolean used to determine the fast forward status. 
@@ -135,15 +151,6 @@ public final class NetworkInfo implements Serializable
 		return forward;
 	}
 
-	/**
-	 * Determines fast forward status of media.
-	 * @param boolean forward - Boolean used to determine the fast forward status of media.
-	 */
-	public void setForward(boolean forward) 
-	{
-		this.forward = forward;
-	}
-
 	/**
 	 * Byte used to determine volume level. (MAX: 100%)
 	 * @return Byte - byte used for volume level.
@@ -153,15 +160,6 @@ public final class NetworkInfo implements Serializable
 		return volume;
 	}
 
-	/**
-	 * Must be byte integer. Used to determine volume level. (MAX: 100%)
-	 * @param Byte volume - byte integer, used for volume control.
-	 */
-	public void setVolume(byte volume)
-	{
-		this.volume = volume;
-	}
-
 	/**
 	 * Short used to determine the index of the playing media file on each play-list.
 	 * This is useful for highlighting the selected playing media on the client side as
@@ -173,22 +171,65 @@ public final class NetworkInfo implements Serializable
 		return index;
 	}
 
+	public boolean isMusic() {
+		return music;
+	}
 	
 	/**
-	 * Short used to determine the index of the playing media file on each play-list.
-	 * This is useful for highlighting the selected playing media on the client side.
-	 * @param Short index - Short used for media highlighting.
+	 * Mutable form of the info, updated field by field as status frames are decoded. See StatusFrame.decode().
 	 */
-	public void setIndex(int index) 
+	public static final class Builder
 	{
-		this.index = index;
-	}
-
-	public boolean isMusic() {
-		return music;
-	}
-
-	public void setMusic(boolean music) {
-		this.music = music;
+		private boolean playing = false, forward = false, music = false;
+		
+		private byte volume = 0;
+		
+		private long length = 0L, time = 0L;
+		
+		private int index = 0;
+		
+		public void setPlaying(boolean playing)
+		{
+			this.playing = playing;
+		}
+		
+		public void setForward(boolean forward)
+		{
+			this.forward = forward;
+		}
+		
+		public void setMusic(boolean music)
+		{
+			this.music = music;
+		}
+		
+		public void setVolume(byte volume)
+		{
+			this.volume = volume;
+		}
+		
+		public void setLength(long length)
+		{
+			this.length = length;
+		}
+		
+		public void setTime(long time)
+		{
+			this.time = time;
+		}
+		
+		public void setIndex(int index)
+		{
+			this.index = index;
+		}
+		
+		/**
+		 * Creates an immutable snapshot of the state built up so far.
+		 * @return {@link NetworkInfo} - Snapshot.
+		 */
+		public NetworkInfo build()
+		{
+			return new NetworkInfo(length, time, playing, forward, music, volume, index);
+		}
 	}
 }
@@ -0,0 +1,211 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.eureka.couchcast.library.LibraryEntry;
+import net.eureka.couchcast.library.MediaLibrary;
+import net.eureka.couchcast.metrics.Metrics;
+import net.eureka.couchcast.player.Playlist;
+import net.eureka.couchcast.player.Static;
+
+/**
+ * A decoded client command waiting to run on the media player. Holds its own copy of the opcode, path and index so the
+ * decoder can carry on reading while the command is queued on the {@link CommandExecutor}.
+ * <br>
+ * Seek (98) and volume (99) commands are coalescable, a run of them collapses to the latest. The commands they replace
+ * are chained on through superseded so they can still be acknowledged.
+ *
+ * @see CommandExecutor
+ * @see CommandDecoder
+ */
+final class PlayerCommand
+{
+	/**
+	 * First opcode byte of the seek and volume commands, the second byte is the percentage.
+	 */
+	static final byte SKIP_COMMAND = 98, VOLUME_COMMAND = 99;
+
+	private final BridgeConnection connection;
+
+	private final byte[] command;
+
+	private final String path;
+
+	private final int index;
+
+	/**
+	 * Media files of a QUEUE_FILES_SEQUENCE, empty for other commands.
+	 */
+	private final List<Playlist.Item> queue;
+
+	/**
+	 * Library entry of a PLAY_LIBRARY_SEQUENCE, null for other commands or an unknown id.
+	 */
+	private final LibraryEntry entry;
+
+	private final boolean framed;
+
+	private final int requestId;
+
+	/**
+	 * System.nanoTime() the command was received at, for the queue wait metric.
+	 */
+	private final long received = System.nanoTime();
+
+	/**
+	 * Last framed command this one replaced, which in turn may have replaced another. Legacy commands are left out of
+	 * the chain as they are never acknowledged.
+	 */
+	private PlayerCommand superseded = null;
+
+	/**
+	 * Result of running the command, set by the executor before it is handed back to the bridge.
+	 */
+	private boolean success = false;
+
+	/**
+	 * Copies the last decoded command and the connection's current media file.
+	 * @param {@link BridgeConnection} connection - Client the command was received from.
+	 */
+	PlayerCommand(BridgeConnection connection)
+	{
+		CommandDecoder decoder = connection.getDecoder();
+		this.connection = connection;
+		this.command = decoder.getCommand().clone();
+		this.path = connection.getPath();
+		this.index = connection.getIndex();
+		this.queue = decoder.isCommand(Bridge.BridgeIO.QUEUE_FILES_SEQUENCE) ? decoder.getQueue() : Collections.<Playlist.Item>emptyList();
+		// Resolved against the current snapshot, allocates nothing.
+		this.entry = decoder.isCommand(Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE) ? MediaLibrary.getIndex().get(decoder.getLibraryId()) : null;
+		this.framed = decoder.isFramed();
+		this.requestId = decoder.getRequestId();
+	}
+
+	/**
+	 * Checks if the command was the passed sequence.
+	 * @param byte[] sequence - Two byte opcode.
+	 * @return Boolean - True if matching.
+	 */
+	boolean isCommand(byte[] sequence)
+	{
+		return Static.compareBytes(command, sequence);
+	}
+
+	/**
+	 * Checks if a later command can replace this one, true for seek and volume commands.
+	 * @return Boolean - True if coalescable.
+	 */
+	boolean isCoalescable()
+	{
+		return command[0] == SKIP_COMMAND || command[0] == VOLUME_COMMAND;
+	}
+
+	/**
+	 * Replaces an earlier command of the same kind.
+	 * @param {@link PlayerCommand} earlier - Queued command to replace.
+	 * @return Boolean - True if replaced, false if the commands are not the same coalescable kind.
+	 */
+	boolean supersede(PlayerCommand earlier)
+	{
+		if(!isCoalescable() || earlier.command[0] != command[0])
+			return false;
+		superseded = earlier.framed ? earlier : earlier.superseded;
+		return true;
+	}
+
+	/**
+	 * Retrieves the name of the command's latency histogram in {@link Metrics}.
+	 * @return String - Metric name, "command.unknown" for an unrecognised opcode.
+	 */
+	String getMetricName()
+	{
+		if(command[0] == SKIP_COMMAND)
+			return "command.skip";
+		if(command[0] == VOLUME_COMMAND)
+			return "command.volume";
+		if(isCommand(Bridge.BridgeIO.PLAY_FILE_SEQUENCE))
+			return "command.play_file";
+		if(isCommand(Bridge.BridgeIO.RESUME_FILE_SEQUENCE))
+			return "command.resume_file";
+		if(isCommand(Bridge.BridgeIO.PLAY_TUBE_SEQUENCE))
+			return "command.play_tube";
+		if(isCommand(Bridge.BridgeIO.QUEUE_FILES_SEQUENCE))
+			return "command.queue_files";
+		if(isCommand(Bridge.BridgeIO.PLAY_LIBRARY_SEQUENCE))
+			return "command.play_library";
+		if(isCommand(Bridge.BridgeIO.PLAY_PAUSE_SEQUENCE))
+			return "command.play_pause";
+		if(isCommand(Bridge.BridgeIO.STOP_FILE_SEQUENCE))
+			return "command.stop";
+		if(isCommand(Bridge.BridgeIO.FAST_FORWARD_SEQUENCE))
+			return "command.fast_forward";
+		if(isCommand(Bridge.BridgeIO.FAST_REWIND_SEQUENCE))
+			return "command.fast_rewind";
+		if(isCommand(Bridge.BridgeIO.SHOW_FRAME_SEQUENCE))
+			return "command.show_frame";
+		if(isCommand(Bridge.BridgeIO.HIDE_FRAME_SEQUENCE))
+			return "command.hide_frame";
+		return "command.unknown";
+	}
+
+	BridgeConnection getConnection()
+	{
+		return connection;
+	}
+
+	byte[] getCommand()
+	{
+		return command;
+	}
+
+	String getPath()
+	{
+		return path;
+	}
+
+	int getIndex()
+	{
+		return index;
+	}
+
+	List<Playlist.Item> getQueue()
+	{
+		return queue;
+	}
+
+	LibraryEntry getEntry()
+	{
+		return entry;
+	}
+
+	boolean isFramed()
+	{
+		return framed;
+	}
+
+	int getRequestId()
+	{
+		return requestId;
+	}
+
+	long getReceived()
+	{
+		return received;
+	}
+
+	PlayerCommand getSuperseded()
+	{
+		return superseded;
+	}
+
+	boolean isSuccess()
+	{
+		return success;
+	}
+
+	void setSuccess(boolean success)
+	{
+		this.success = success;
+	}
+}
@@ -0,0 +1,99 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.nio.ByteBuffer;
+
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * Encodes each status snapshot once for every connected client. Every state change gets a new generation with a
+ * keyframe and a delta against the previous generation, both held in read-only buffers. A {@link BridgeConnection}
+ * queues a duplicate view of one of them, so adding clients adds no encoding and no copying, only a few bytes of
+ * buffer view per client.
+ * <br>
+ * A client that was sent the previous generation gets the delta. A client that missed it, because it has just connected,
+ * or its frame was replaced before it was written, or its keyframe interval is up, gets the keyframe. The buffers of a
+ * generation are never written to again, a client still part way through writing an older generation keeps its own
+ * view of it. Only used from the bridge selector thread.
+ *
+ * @see StatusFrame
+ * @see BridgeConnection
+ */
+final class StatusBroadcast
+{
+	private static final LatencyHistogram encodeLatency = Metrics.histogram("status.encode");
+
+	/**
+	 * Snapshot of the media info last encoded, deltas are encoded against it. Null until the first generation.
+	 */
+	private NetworkInfo lastEncoded = null;
+
+	/**
+	 * Reused buffer the delta is encoded into, so finding that nothing changed allocates nothing.
+	 */
+	private final ByteBuffer scratch = ByteBuffer.allocate(StatusFrame.MAXIMUM_FRAME_SIZE);
+
+	/**
+	 * Frames of the current generation, read-only. The delta is null for the first generation.
+	 */
+	private ByteBuffer keyframe = null, delta = null;
+
+	/**
+	 * Current generation, zero until the first snapshot is encoded.
+	 */
+	private long generation = 0L;
+
+	/**
+	 * Encodes the media info as a new generation, unless it hasn't changed since the current one.
+	 * @param {@link NetworkInfo} info - Media info to encode.
+	 * @return Boolean - True if a new generation was encoded.
+	 */
+	boolean update(NetworkInfo info)
+	{
+		// Snapshots are never changed once published, so the same one means nothing changed.
+		if(info == lastEncoded)
+			return false;
+		final long start = System.nanoTime();
+		ByteBuffer new_delta = null;
+		if(generation > 0)
+		{
+			// Nothing changed since the current generation.
+			if(!StatusFrame.encodeDelta(info, lastEncoded, scratch))
+				return false;
+			// Only a new generation gets buffers of its own.
+			new_delta = ByteBuffer.allocate(scratch.remaining());
+			new_delta.put(scratch).flip();
+		}
+		ByteBuffer new_keyframe = ByteBuffer.allocate(StatusFrame.FRAME_SIZE);
+		StatusFrame.encode(info, new_keyframe);
+		lastEncoded = info;
+		keyframe = new_keyframe.asReadOnlyBuffer();
+		delta = (new_delta == null) ? null : new_delta.asReadOnlyBuffer();
+		generation ++;
+		encodeLatency.recordSince(start);
+		return true;
+	}
+
+	long getGeneration()
+	{
+		return generation;
+	}
+
+	/**
+	 * Retrieves a view of the current keyframe for one client.
+	 * @return {@link ByteBuffer} - Read-only view, ready to be written.
+	 */
+	ByteBuffer getKeyframe()
+	{
+		return keyframe.duplicate();
+	}
+
+	/**
+	 * Retrieves a view of the current delta for one client.
+	 * @return {@link ByteBuffer} - Read-only view ready to be written, null if the current generation is the first.
+	 */
+	ByteBuffer getDelta()
+	{
+		return (delta == null) ? null : delta.duplicate();
+	}
+}
@@ -0,0 +1,377 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import net.eureka.couchcast.library.LibraryIndex;
+
+/**
+ * Fixed layout binary encoding of the {@link NetworkInfo} object. Replaces the Java serialization of the info object
+ * for every status push, which resent the class descriptor each time (output.reset()) and allocated a whole object graph
+ * per frame. Encoding itself writes straight into the passed {@link ByteBuffer} and allocates nothing. The status loop
+ * still allocates a few small objects per change: the player's new {@link NetworkInfo} snapshot and the buffers of each
+ * new generation in {@link StatusBroadcast}, plus a buffer view per client.
+ * <br>
+ * Two frame types exist. A keyframe (TYPE_STATUS) carries every field. A delta (TYPE_DELTA) is encoded against the last
+ * snapshot sent to that client and only carries the fields that changed, during playback that is usually just the time.
+ * <br>
+ * <pre>
+ * <h2>KEYFRAME LAYOUT (Big endian, 25 bytes):</h2>
+ *
+ * 		[0]		MAGIC		- Always 67 ('C'), lets the client detect a binary frame.
+ * 		[1]		VERSION		- Layout version, bumped whenever the layout changes.
+ * 		[2]		TYPE		- Frame type, TYPE_STATUS.
+ * 		[3]		FLAGS		- Bit 0 playing, bit 1 fast forward, bit 2 music mode.
+ * 		[4]		VOLUME		- Volume level out of 100.
+ * 		[5-12]	LENGTH		- Total length of the media in milliseconds.
+ * 		[13-20]	TIME		- Current time of the media in milliseconds.
+ * 		[21-24]	INDEX		- Play-list index of the media.
+ *
+ * <h2>DELTA LAYOUT (Big endian, 4 to 26 bytes):</h2>
+ *
+ * 		[0-2]	HEADER		- MAGIC, VERSION and TYPE_DELTA.
+ * 		[3]		CHANGED		- Bit mask of the fields that follow, see FIELD_FLAGS to FIELD_INDEX.
+ * 		[4-]	FIELDS		- Each changed field, in keyframe order and with keyframe sizes.
+ *
+ * <h2>ACKNOWLEDGEMENT LAYOUT (Big endian, 9 bytes):</h2>
+ *
+ * 		[0-2]	HEADER		- MAGIC, VERSION and TYPE_ACK.
+ * 		[3-6]	REQUEST ID	- Request id of the framed command, see {@link CommandDecoder}.
+ * 		[7-8]	RESULT		- PLAYER_SUCCESS_SEQUENCE or PLAYER_FAILURE_SEQUENCE.
+ *
+ * <h2>METRICS LAYOUT (Big endian, 11 bytes and the report):</h2>
+ *
+ * 		[0-2]	HEADER		- MAGIC, VERSION and TYPE_METRICS.
+ * 		[3-6]	REQUEST ID	- Request id of the metrics command.
+ * 		[7-10]	LENGTH		- Length of the report.
+ * 		[11-]	REPORT		- UTF-8 text of Metrics.report().
+ *
+ * <h2>LIBRARY LAYOUT (Big endian, 36 bytes and the changes):</h2>
+ *
+ * 		[0-2]	HEADER		- MAGIC, VERSION and TYPE_LIBRARY.
+ * 		[3-6]	REQUEST ID	- Request id of the library sync command.
+ * 		[7]		FLAGS		- Bit 0 reset, drop the whole table first. Bit 1 more, sync again to get the rest.
+ * 		[8-15]	EPOCH		- Epoch of the table, sent back with the next sync.
+ * 		[16-23]	GENERATION	- Generation of the table, sent back with the next sync.
+ * 		[24-27]	NEXT ID		- Id to sync from next time.
+ * 		[28-31]	REMOVED		- Count of the removed ids that follow, 4 bytes each.
+ * 		[-]		ADDED		- Count of the added paths that follow, 4 bytes.
+ * 		[-]		PATHS		- Per path: id (4 bytes), UTF-8 length (2 bytes) and the UTF-8 bytes.
+ * </pre>
+ *
+ * @see NetworkInfo
+ * @see Bridge
+ * @see net.eureka.couchcast.metrics.Metrics
+ * @see LibraryIndex
+ */
+public final class StatusFrame
+{
+	/**
+	 * First byte of every binary frame.
+	 */
+	public static final byte MAGIC = 67;
+
+	/**
+	 * Current version of the frame layout.
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Frame type of a full status frame (keyframe).
+	 */
+	public static final byte TYPE_STATUS = 1;
+
+	/**
+	 * Frame type of a delta status frame.
+	 */
+	public static final byte TYPE_DELTA = 2;
+
+	/**
+	 * Frame type of a command acknowledgement.
+	 */
+	public static final byte TYPE_ACK = 3;
+
+	/**
+	 * Frame type of a metrics report.
+	 */
+	public static final byte TYPE_METRICS = 4;
+
+	/**
+	 * Frame type of a library path table sync.
+	 */
+	public static final byte TYPE_LIBRARY = 5;
+
+	/**
+	 * Flag bits of a library frame.
+	 */
+	public static final byte LIBRARY_RESET = 1, LIBRARY_MORE = 2;
+
+	/**
+	 * Bits of the delta CHANGED mask.
+	 */
+	public static final byte FIELD_FLAGS = 1, FIELD_VOLUME = 2, FIELD_LENGTH = 4, FIELD_TIME = 8, FIELD_INDEX = 16;
+
+	/**
+	 * Flag bits packed into the FLAGS byte.
+	 */
+	public static final byte FLAG_PLAYING = 1, FLAG_FORWARD = 2, FLAG_MUSIC = 4;
+
+	/**
+	 * Size of the frame header (MAGIC, VERSION, TYPE) in bytes.
+	 */
+	public static final int HEADER_SIZE = 3;
+
+	/**
+	 * Total size of a status frame in bytes.
+	 */
+	public static final int FRAME_SIZE = HEADER_SIZE + 1 + 1 + 8 + 8 + 4;
+
+	/**
+	 * Largest frame of any type, a delta with every field changed.
+	 */
+	public static final int MAXIMUM_FRAME_SIZE = FRAME_SIZE + 1;
+
+	/**
+	 * Size of an acknowledgement frame in bytes.
+	 */
+	public static final int ACK_SIZE = HEADER_SIZE + 4 + 2;
+
+	/**
+	 * Size of a metrics frame before its report, in bytes.
+	 */
+	public static final int METRICS_HEADER_SIZE = HEADER_SIZE + 4 + 4;
+
+	/**
+	 * Size of a library frame before its removed ids, in bytes.
+	 */
+	public static final int LIBRARY_HEADER_SIZE = HEADER_SIZE + 4 + 1 + 8 + 8 + 4 + 4;
+
+	/**
+	 * Most path bytes sent in one library frame, a larger table is sent over several syncs.
+	 */
+	static final int MAXIMUM_LIBRARY_PATHS = 64 * 1024;
+
+	private StatusFrame()
+	{
+	}
+
+	/**
+	 * Encodes the passed info into the buffer. The buffer is cleared first and flipped afterwards so it is
+	 * immediately ready to be written to a stream or channel.
+	 * @param {@link NetworkInfo} info - Media info to encode.
+	 * @param {@link ByteBuffer} buffer - Reused buffer of at least FRAME_SIZE bytes.
+	 */
+	public static void encode(final NetworkInfo info, final ByteBuffer buffer)
+	{
+		// Reset buffer for writing.
+		buffer.clear();
+		// Write header.
+		buffer.put(MAGIC).put(VERSION).put(TYPE_STATUS);
+		// Write packed flags.
+		buffer.put(packFlags(info));
+		// Write media fields.
+		buffer.put(info.getVolume());
+		buffer.putLong(info.getLength());
+		buffer.putLong(info.getTime());
+		buffer.putInt(info.getIndex());
+		// Ready buffer for reading.
+		buffer.flip();
+	}
+
+	/**
+	 * Encodes only the fields of the info that differ from the last snapshot sent to the client. Nothing is encoded if
+	 * nothing changed.
+	 * @param {@link NetworkInfo} info - Media info to encode.
+	 * @param {@link NetworkInfo} last_sent - Snapshot of what the client was last sent.
+	 * @param {@link ByteBuffer} buffer - Reused buffer of at least MAXIMUM_FRAME_SIZE bytes.
+	 * @return Boolean - True if a delta was encoded, false if nothing changed and the buffer was left untouched.
+	 */
+	public static boolean encodeDelta(final NetworkInfo info, final NetworkInfo last_sent, final ByteBuffer buffer)
+	{
+		byte flags = packFlags(info);
+		// Work out what changed.
+		int changed = 0;
+		if(flags != packFlags(last_sent))
+			changed |= FIELD_FLAGS;
+		if(info.getVolume() != last_sent.getVolume())
+			changed |= FIELD_VOLUME;
+		if(info.getLength() != last_sent.getLength())
+			changed |= FIELD_LENGTH;
+		if(info.getTime() != last_sent.getTime())
+			changed |= FIELD_TIME;
+		if(info.getIndex() != last_sent.getIndex())
+			changed |= FIELD_INDEX;
+		// Nothing to send.
+		if(changed == 0)
+			return false;
+		// Reset buffer for writing.
+		buffer.clear();
+		// Write header and mask.
+		buffer.put(MAGIC).put(VERSION).put(TYPE_DELTA).put((byte) changed);
+		// Write changed fields only.
+		if((changed & FIELD_FLAGS) != 0)
+			buffer.put(flags);
+		if((changed & FIELD_VOLUME) != 0)
+			buffer.put(info.getVolume());
+		if((changed & FIELD_LENGTH) != 0)
+			buffer.putLong(info.getLength());
+		if((changed & FIELD_TIME) != 0)
+			buffer.putLong(info.getTime());
+		if((changed & FIELD_INDEX) != 0)
+			buffer.putInt(info.getIndex());
+		// Ready buffer for reading.
+		buffer.flip();
+		return true;
+	}
+
+	/**
+	 * Encodes the acknowledgement of a framed command into the buffer.
+	 * @param Integer request_id - Request id of the command.
+	 * @param byte[] result - Two byte result sequence.
+	 * @param {@link ByteBuffer} buffer - Buffer of at least ACK_SIZE bytes.
+	 */
+	public static void encodeAck(final int request_id, final byte[] result, final ByteBuffer buffer)
+	{
+		// Reset buffer for writing.
+		buffer.clear();
+		buffer.put(MAGIC).put(VERSION).put(TYPE_ACK);
+		buffer.putInt(request_id);
+		buffer.put(result, 0, 2);
+		// Ready buffer for reading.
+		buffer.flip();
+	}
+
+	/**
+	 * Encodes a metrics report into a new buffer, ready to be written.
+	 * @param Integer request_id - Request id of the metrics command.
+	 * @param String report - Metrics report.
+	 * @return {@link ByteBuffer} - Encoded frame.
+	 */
+	public static ByteBuffer encodeMetrics(final int request_id, final String report)
+	{
+		byte[] text = report.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(METRICS_HEADER_SIZE + text.length);
+		buffer.put(MAGIC).put(VERSION).put(TYPE_METRICS);
+		buffer.putInt(request_id);
+		buffer.putInt(text.length);
+		buffer.put(text);
+		// Ready buffer for reading.
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes the changes to a client's path table into a new buffer. A client that can be brought up to date is sent
+	 * the ids removed since its generation and the paths with ids from its next id, anyone else is sent the table from
+	 * the start with the reset flag. Paths are copied from the table's arena, at most MAXIMUM_LIBRARY_PATHS bytes of
+	 * them, the more flag is set if any were left out.
+	 * @param Integer request_id - Request id of the library sync command.
+	 * @param {@link LibraryIndex} index - Current library snapshot.
+	 * @param Long epoch - Epoch of the client's table, zero if it has none.
+	 * @param Long generation - Generation of the client's table.
+	 * @param Integer next_id - Next id of the client's table.
+	 * @return {@link ByteBuffer} - Encoded frame, ready for reading.
+	 */
+	public static ByteBuffer encodeLibrary(final int request_id, final LibraryIndex index, final long epoch, final long generation, final int next_id)
+	{
+		final boolean reset = !index.canSync(epoch, generation);
+		final int removed_from = reset ? index.getRemovedCount() : index.getRemovedAfter(generation), from = reset ? 0 : Math.max(0, next_id);
+		// Find how far the paths fit.
+		int to = from, added = 0, path_bytes = 0;
+		for(; to < index.getNextId(); to ++)
+		{
+			final int length = index.getPathLength(to);
+			if(length == 0)
+				continue;
+			if(path_bytes + length > MAXIMUM_LIBRARY_PATHS && added > 0)
+				break;
+			path_bytes += 4 + 2 + length;
+			added ++;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(LIBRARY_HEADER_SIZE + 4 * (index.getRemovedCount() - removed_from) + 4 + path_bytes);
+		buffer.put(MAGIC).put(VERSION).put(TYPE_LIBRARY);
+		buffer.putInt(request_id);
+		buffer.put((byte) ((reset ? LIBRARY_RESET : 0) | (to < index.getNextId() ? LIBRARY_MORE : 0)));
+		buffer.putLong(index.getEpoch());
+		buffer.putLong(index.getGeneration());
+		buffer.putInt(to);
+		buffer.putInt(index.getRemovedCount() - removed_from);
+		for(int i = removed_from; i < index.getRemovedCount(); i ++)
+			buffer.putInt(index.getRemovedId(i));
+		buffer.putInt(added);
+		for(int id = from; id < to; id ++)
+		{
+			final int length = index.getPathLength(id);
+			if(length == 0)
+				continue;
+			buffer.putInt(id);
+			buffer.putShort((short) length);
+			index.copyPath(id, buffer);
+		}
+		// Ready buffer for reading.
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decodes a keyframe or delta from the buffer into the passed info builder. A delta only updates the fields it
+	 * carries, so the builder must hold the state built up from the previous frames. The buffer position is advanced past
+	 * the frame.
+	 * @param {@link ByteBuffer} buffer - Buffer positioned at the start of a frame.
+	 * @param {@link NetworkInfo.Builder} info - Info builder to update.
+	 * @return {@link NetworkInfo.Builder} - The updated info builder.
+	 * @throws IllegalArgumentException - If the frame header is not a recognised status frame.
+	 * @throws BufferUnderflowException - If the buffer does not hold a whole frame.
+	 */
+	public static NetworkInfo.Builder decode(final ByteBuffer buffer, final NetworkInfo.Builder info)
+	{
+		// Verify header.
+		if(buffer.get() != MAGIC || buffer.get() != VERSION)
+			throw new IllegalArgumentException("Not a status frame.");
+		byte type = buffer.get();
+		int changed;
+		// Keyframe carries everything.
+		if(type == TYPE_STATUS)
+			changed = FIELD_FLAGS | FIELD_VOLUME | FIELD_LENGTH | FIELD_TIME | FIELD_INDEX;
+		else if(type == TYPE_DELTA)
+			changed = buffer.get();
+		else
+			throw new IllegalArgumentException("Not a status frame.");
+		if((changed & FIELD_FLAGS) != 0)
+		{
+			// Unpack flags.
+			byte flags = buffer.get();
+			info.setPlaying((flags & FLAG_PLAYING) != 0);
+			info.setForward((flags & FLAG_FORWARD) != 0);
+			info.setMusic((flags & FLAG_MUSIC) != 0);
+		}
+		// Read media fields.
+		if((changed & FIELD_VOLUME) != 0)
+			info.setVolume(buffer.get());
+		if((changed & FIELD_LENGTH) != 0)
+			info.setLength(buffer.getLong());
+		if((changed & FIELD_TIME) != 0)
+			info.setTime(buffer.getLong());
+		if((changed & FIELD_INDEX) != 0)
+			info.setIndex(buffer.getInt());
+		return info;
+	}
+
+	/**
+	 * Packs the boolean fields of the info object into a single byte.
+	 * @param {@link NetworkInfo} info - Media info to pack.
+	 * @return Byte - Packed flags.
+	 */
+	static byte packFlags(final NetworkInfo info)
+	{
+		int flags = 0;
+		if(info.isPlaying())
+			flags |= FLAG_PLAYING;
+		if(info.isForward())
+			flags |= FLAG_FORWARD;
+		if(info.isMusic())
+			flags |= FLAG_MUSIC;
+		return (byte) flags;
+	}
+}
@@ -0,0 +1,457 @@
+package net.eureka.couchcast.mediaserver;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.eureka.couchcast.Logger;
+
+/**
+ * Binary trace of the bridge's traffic, written with the --capture=file launch argument. Every client connecting and
+ * disconnecting, every command exactly as decoded and every frame exactly as written to the socket is recorded with the
+ * nanoseconds since the record before it, so a real phone session can be fed back into a bridge later by the traffic
+ * replay driver.
+ * <br>
+ * Legacy commands sent through an object stream are recorded without their block data headers, they replay as raw
+ * commands which the {@link CommandDecoder} accepts the same. Records are gathered in memory and handed to the capture
+ * writer thread once BUFFER_SIZE fills, when a client disconnects and when the process exits, which swaps in a spare
+ * buffer. Capturing costs the selector thread a copy per frame and it never waits on the disk. Frames are kept to their
+ * first StatusFrame.MAXIMUM_FRAME_SIZE bytes, every status, delta and acknowledgement whole but only the start of
+ * metrics reports and library syncs, which keeps a trace small enough to be checked in as a fixture.
+ * <br>
+ * <pre>
+ * <h2>TRACE LAYOUT (Big endian):</h2>
+ *
+ * 		[0-3]	MAGIC		- TRACE_MAGIC, "CCTR".
+ * 		[4]		VERSION		- TRACE_VERSION.
+ * 		[5-12]	STARTED		- Wall clock time the capture started, in milliseconds.
+ *
+ * 		Per record:
+ * 		TYPE		- RECORD_CONNECT, RECORD_DISCONNECT, RECORD_COMMAND or RECORD_FRAME, 1 byte.
+ * 		CONNECTION	- Connection number, varint.
+ * 		ELAPSED		- Nanoseconds since the record before, varint.
+ * 		LENGTH		- Length of the command or frame, varint. Commands and frames only.
+ * 		DATA		- Command bytes, or the first LENGTH bytes of a frame up to StatusFrame.MAXIMUM_FRAME_SIZE.
+ * </pre>
+ * Varints hold 7 bits per byte, least significant first, with the top bit set on every byte but the last.
+ *
+ * @see Bridge
+ * @see BridgeConnection
+ */
+final class TrafficCapture
+{
+	/**
+	 * Identifies a trace file, "CCTR".
+	 */
+	static final int TRACE_MAGIC = 0x43435452;
+
+	static final byte TRACE_VERSION = 1;
+
+	/**
+	 * Record types.
+	 */
+	static final byte RECORD_CONNECT = 1, RECORD_DISCONNECT = 2, RECORD_COMMAND = 3, RECORD_FRAME = 4;
+
+	/**
+	 * Bytes gathered before they are written out.
+	 */
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Largest record header, a type and three varints.
+	 */
+	private static final int MAXIMUM_HEADER_SIZE = 1 + 5 + 10 + 5;
+
+	/**
+	 * Written buffers kept for reuse. More are allocated while the disk falls behind and dropped once it catches up.
+	 */
+	private static final int SPARE_BUFFERS = 4;
+
+	/**
+	 * Queued after the last buffer to stop the writer thread.
+	 */
+	private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+	private final FileChannel channel;
+
+	/**
+	 * Buffers handed over for the writer thread to write, in order.
+	 */
+	private final LinkedBlockingQueue<ByteBuffer> pending = new LinkedBlockingQueue<ByteBuffer>();
+
+	/**
+	 * Written buffers, cleared and ready to gather records again.
+	 */
+	private final ArrayBlockingQueue<ByteBuffer> spare = new ArrayBlockingQueue<ByteBuffer>(SPARE_BUFFERS);
+
+	private final Thread writer;
+
+	/**
+	 * Buffer records are gathered in.
+	 */
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * True once closed, records after are dropped.
+	 */
+	private boolean closed = false;
+
+	/**
+	 * System.nanoTime() of the last record.
+	 */
+	private long lastRecord = System.nanoTime();
+
+	/**
+	 * Creates the trace file, writes its header and starts the writer thread.
+	 * @param {@link File} file - Trace file, replaced if it exists.
+	 * @throws IOException - If the file can't be created.
+	 */
+	TrafficCapture(File file) throws IOException
+	{
+		channel = new FileOutputStream(file).getChannel();
+		buffer.putInt(TRACE_MAGIC);
+		buffer.put(TRACE_VERSION);
+		buffer.putLong(System.currentTimeMillis());
+		writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while(true)
+				{
+					try
+					{
+						ByteBuffer data = pending.take();
+						if(data == CLOSED)
+							return;
+						write(data);
+						// Records too big to gather come in buffers of their own, those aren't kept.
+						if(data.capacity() == BUFFER_SIZE)
+						{
+							data.clear();
+							spare.offer(data);
+						}
+					}
+					catch (InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "Capture Writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Records a client connecting.
+	 * @param Integer connection - Connection number.
+	 */
+	synchronized void recordConnect(int connection)
+	{
+		putHeader(RECORD_CONNECT, connection);
+	}
+
+	/**
+	 * Records a client disconnecting and hands over what has been gathered, so the trace holds every whole session.
+	 * @param Integer connection - Connection number.
+	 */
+	synchronized void recordDisconnect(int connection)
+	{
+		putHeader(RECORD_DISCONNECT, connection);
+		flush();
+	}
+
+	/**
+	 * Records a decoded command.
+	 * @param Integer connection - Connection number.
+	 * @param {@link ByteBuffer} source - Buffer holding the command, left untouched.
+	 * @param Integer offset - Position of the command in the buffer.
+	 * @param Integer length - Length of the command.
+	 */
+	synchronized void recordCommand(int connection, ByteBuffer source, int offset, int length)
+	{
+		putData(RECORD_COMMAND, connection, source, offset, length, length);
+	}
+
+	/**
+	 * Records a frame about to be written to a client.
+	 * @param Integer connection - Connection number.
+	 * @param {@link ByteBuffer} frame - Frame, from its position to its limit, left untouched.
+	 */
+	synchronized void recordFrame(int connection, ByteBuffer frame)
+	{
+		putData(RECORD_FRAME, connection, frame, frame.position(), frame.remaining(), keptOf(RECORD_FRAME, frame.remaining()));
+	}
+
+	/**
+	 * Writes the type, connection and elapsed time of a record.
+	 * @param Byte type - Record type.
+	 * @param Integer connection - Connection number.
+	 */
+	private void putHeader(byte type, int connection)
+	{
+		if(buffer.remaining() < MAXIMUM_HEADER_SIZE)
+			flush();
+		final long now = System.nanoTime();
+		buffer.put(type);
+		putVarint(buffer, connection);
+		putVarint(buffer, now - lastRecord);
+		lastRecord = now;
+	}
+
+	/**
+	 * Writes a record carrying data.
+	 * @param Byte type - Record type.
+	 * @param Integer connection - Connection number.
+	 * @param {@link ByteBuffer} source - Buffer holding the data, left untouched.
+	 * @param Integer offset - Position of the data in the buffer.
+	 * @param Integer length - Length of the command or frame.
+	 * @param Integer kept - Bytes of it kept in the trace.
+	 */
+	private void putData(byte type, int connection, ByteBuffer source, int offset, int length, int kept)
+	{
+		if(buffer.remaining() < MAXIMUM_HEADER_SIZE + kept)
+			flush();
+		putHeader(type, connection);
+		putVarint(buffer, length);
+		ByteBuffer data = source.duplicate();
+		data.limit(offset + kept).position(offset);
+		// Too big to gather, hand it over in a buffer of its own.
+		if(kept > buffer.remaining())
+		{
+			ByteBuffer record = ByteBuffer.allocate(kept);
+			record.put(data).flip();
+			flush();
+			if(!closed)
+				pending.offer(record);
+		}
+		else
+			buffer.put(data);
+	}
+
+	/**
+	 * Works out how many bytes of a command or frame are kept in the trace.
+	 * @param Byte type - RECORD_COMMAND or RECORD_FRAME.
+	 * @param Integer length - Length of the command or frame.
+	 * @return Integer - Bytes kept.
+	 */
+	private static int keptOf(byte type, int length)
+	{
+		return (type == RECORD_FRAME) ? Math.min(length, StatusFrame.MAXIMUM_FRAME_SIZE) : length;
+	}
+
+	/**
+	 * Hands every record gathered so far to the writer thread and carries on in a spare buffer.
+	 */
+	synchronized void flush()
+	{
+		if(closed)
+		{
+			buffer.clear();
+			return;
+		}
+		if(buffer.position() == 0)
+			return;
+		buffer.flip();
+		pending.offer(buffer);
+		buffer = spare.poll();
+		// Disk has fallen behind, gather in a new buffer rather than wait on it.
+		if(buffer == null)
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes a buffer to the trace file. Runs on the writer thread. A failed write is logged and the bytes dropped,
+	 * capturing must never take the bridge down.
+	 * @param {@link ByteBuffer} data - Bytes to write.
+	 */
+	private void write(ByteBuffer data)
+	{
+		try
+		{
+			while(data.hasRemaining())
+				channel.write(data);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Hands over every record gathered, waits for the writer thread to write them out and closes the trace file.
+	 */
+	synchronized void close()
+	{
+		if(closed)
+			return;
+		flush();
+		closed = true;
+		pending.offer(CLOSED);
+		try
+		{
+			writer.join();
+		}
+		catch (InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Writes an unsigned varint.
+	 * @param {@link ByteBuffer} to - Buffer to write to.
+	 * @param Long value - Value, not negative.
+	 */
+	private static void putVarint(ByteBuffer to, long value)
+	{
+		while((value & ~0x7FL) != 0)
+		{
+			to.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		to.put((byte) value);
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 * @param {@link DataInputStream} input - Trace stream.
+	 * @return Long - Value.
+	 * @throws IOException - If the trace ends or the varint is too long.
+	 */
+	static long readVarint(DataInputStream input) throws IOException
+	{
+		long value = 0L;
+		for(int shift = 0; shift < 64; shift += 7)
+		{
+			final int next = input.readUnsignedByte();
+			value |= (long) (next & 0x7F) << shift;
+			if((next & 0x80) == 0)
+				return value;
+		}
+		throw new StreamCorruptedException("Varint too long.");
+	}
+
+	/**
+	 * Reads and checks the header of a trace file.
+	 * @param {@link DataInputStream} input - Trace stream at its start.
+	 * @return Long - Wall clock time the capture started, in milliseconds.
+	 * @throws IOException - If the stream is not a trace of this version.
+	 */
+	static long readHeader(DataInputStream input) throws IOException
+	{
+		if(input.readInt() != TRACE_MAGIC || input.readByte() != TRACE_VERSION)
+			throw new StreamCorruptedException("Not a bridge trace.");
+		return input.readLong();
+	}
+
+	/**
+	 * Reads the next record of a trace.
+	 * @param {@link DataInputStream} input - Trace stream past its header.
+	 * @param Long time - Time of the record before, in nanoseconds since the capture started.
+	 * @return {@link Record} - Record, null at the end of the trace.
+	 * @throws IOException - If the trace is corrupt.
+	 */
+	static Record readRecord(DataInputStream input, long time) throws IOException
+	{
+		final int type = input.read();
+		if(type < 0)
+			return null;
+		try
+		{
+			final int connection = (int) readVarint(input);
+			final long elapsed = readVarint(input);
+			int length = 0;
+			byte[] data = null;
+			if(type == RECORD_COMMAND || type == RECORD_FRAME)
+			{
+				length = (int) readVarint(input);
+				data = new byte[keptOf((byte) type, length)];
+				input.readFully(data);
+			}
+			else if(type != RECORD_CONNECT && type != RECORD_DISCONNECT)
+				throw new StreamCorruptedException("Unknown trace record: "+type);
+			return new Record((byte) type, connection, time + elapsed, length, data);
+		}
+		catch (EOFException e)
+		{
+			// Process ended part way through writing, the whole records before still count.
+			return null;
+		}
+	}
+
+	/**
+	 * A record read back from a trace.
+	 */
+	static final class Record
+	{
+		private final byte type;
+
+		private final int connection;
+
+		private final long time;
+
+		private final int length;
+
+		private final byte[] data;
+
+		/**
+		 * @param Byte type - Record type.
+		 * @param Integer connection - Connection number.
+		 * @param Long time - Nanoseconds since the capture started.
+		 * @param Integer length - Length of the command or frame, zero for other records.
+		 * @param byte[] data - Command or frame bytes as kept, null for other records.
+		 */
+		Record(byte type, int connection, long time, int length, byte[] data)
+		{
+			this.type = type;
+			this.connection = connection;
+			this.time = time;
+			this.length = length;
+			this.data = data;
+		}
+
+		byte getType()
+		{
+			return type;
+		}
+
+		int getConnection()
+		{
+			return connection;
+		}
+
+		long getTime()
+		{
+			return time;
+		}
+
+		int getLength()
+		{
+			return length;
+		}
+
+		byte[] getData()
+		{
+			return data;
+		}
+	}
+}
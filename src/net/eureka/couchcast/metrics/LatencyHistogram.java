@@ -0,0 +1,146 @@
+package net.eureka.couchcast.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the style of an HDR histogram. Each power of two range of
+ * nanoseconds is split into SUB_BUCKETS linear buckets, so any recorded value is known to within about 6% while the
+ * whole range up to hundreds of years fits in under a thousand counters. Recording is a couple of bit operations and
+ * an atomic increment, cheap enough to leave on around every command and socket write.
+ *
+ * @see Metrics
+ */
+public final class LatencyHistogram
+{
+	/**
+	 * Linear buckets per power of two, as a bit count.
+	 */
+	private static final int SUB_BUCKET_BITS = 4, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Buckets covering every positive long.
+	 */
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String name;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Total of every latency recorded, for the mean. The count is summed from the buckets on read.
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	private final AtomicLong max = new AtomicLong(0L);
+
+	LatencyHistogram(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Records the time elapsed since a System.nanoTime() reading.
+	 * @param Long start - System.nanoTime() at the start of the measured work.
+	 */
+	public void recordSince(long start)
+	{
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records a latency.
+	 * @param Long nanos - Latency in nanoseconds, negative values count as zero.
+	 */
+	public void record(long nanos)
+	{
+		if(nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		sum.add(nanos);
+		long current;
+		while(nanos > (current = max.get()))
+			if(max.compareAndSet(current, nanos))
+				break;
+	}
+
+	/**
+	 * @return Long - Number of latencies recorded.
+	 */
+	public long getCount()
+	{
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i ++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * @return Long - Mean latency in nanoseconds.
+	 */
+	public long getMean()
+	{
+		long recorded = getCount();
+		return (recorded == 0) ? 0L : sum.sum() / recorded;
+	}
+
+	/**
+	 * @return Long - Largest latency recorded in nanoseconds.
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Retrieves the latency below which a fraction of the recorded latencies fall.
+	 * @param Double fraction - Fraction between 0 and 1, e.g 0.99.
+	 * @return Long - Latency in nanoseconds, to within the bucket resolution.
+	 */
+	public long getPercentile(double fraction)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i ++)
+			total += (snapshot[i] = counts.get(i));
+		if(total == 0)
+			return 0L;
+		long target = Math.max(1L, (long) Math.ceil(total * fraction)), seen = 0;
+		for(int i = 0; i < BUCKETS; i ++)
+			if((seen += snapshot[i]) >= target)
+				return Math.min(valueOf(i), getMax());
+		return getMax();
+	}
+
+	/**
+	 * Maps a value to its bucket.
+	 * @param Long value - Non negative value.
+	 * @return Integer - Bucket index.
+	 */
+	private static int bucketOf(long value)
+	{
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		final int exponent = 63 - Long.numberOfLeadingZeros(value), shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Maps a bucket to the highest value it holds.
+	 * @param Integer bucket - Bucket index.
+	 * @return Long - Highest value of the bucket.
+	 */
+	private static long valueOf(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS, sub_bucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub_bucket + 1) << shift) - 1;
+	}
+}
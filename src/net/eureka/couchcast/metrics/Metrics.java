@@ -0,0 +1,248 @@
+package net.eureka.couchcast.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import net.eureka.couchcast.Logger;
+
+/**
+ * Registry of the server's built-in metrics: {@link LatencyHistogram}s, counters and gauges, each found by a dotted name
+ * such as "command.play" or "socket.write". Everything recorded is lock-free, callers look a metric up once and keep it
+ * in a static field, so recording on a hot path costs a couple of System.nanoTime() reads and an atomic increment.
+ * <br>
+ * The metrics can be read three ways: as a text report from report(), over JMX as the attributes of the
+ * OBJECT_NAME MBean (e.g with JConsole), and by clients through the bridge's metrics opcode.
+ * <br>
+ * <pre>
+ * <h2>JMX ATTRIBUTES:</h2>
+ *
+ * 		name.count, name.mean, name.p50, name.p99, name.max	- Each histogram, in nanoseconds.
+ * 		name												- Each counter and gauge.
+ * </pre>
+ *
+ * @see LatencyHistogram
+ */
+public final class Metrics
+{
+	/**
+	 * Name the metrics are registered under with the platform MBean server.
+	 */
+	public static final String OBJECT_NAME = "net.eureka.couchcast:type=Metrics";
+
+	private static final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+	private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+
+	static
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName(OBJECT_NAME));
+		}
+		catch (JMException e)
+		{
+			// Metrics still readable through the bridge.
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	private Metrics()
+	{
+	}
+
+	/**
+	 * Retrieves a latency histogram, creating it on first use.
+	 * @param String name - Name of the histogram.
+	 * @return {@link LatencyHistogram} - Histogram of that name.
+	 */
+	public static LatencyHistogram histogram(String name)
+	{
+		LatencyHistogram histogram = histograms.get(name);
+		if(histogram == null)
+		{
+			LatencyHistogram created = new LatencyHistogram(name);
+			histogram = histograms.putIfAbsent(name, created);
+			if(histogram == null)
+				histogram = created;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Retrieves a counter, creating it on first use.
+	 * @param String name - Name of the counter.
+	 * @return {@link LongAdder} - Counter of that name.
+	 */
+	public static LongAdder counter(String name)
+	{
+		LongAdder counter = counters.get(name);
+		if(counter == null)
+		{
+			LongAdder created = new LongAdder();
+			counter = counters.putIfAbsent(name, created);
+			if(counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Registers a gauge, read whenever the metrics are. Replaces any gauge of the same name.
+	 * @param String name - Name of the gauge.
+	 * @param {@link LongSupplier} gauge - Reads the current value. Called from any thread, must not block.
+	 */
+	public static void gauge(String name, LongSupplier gauge)
+	{
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Writes every metric as a line of text, sorted by name. Histogram values are in nanoseconds.
+	 * @return String - Metrics report.
+	 */
+	public static String report()
+	{
+		StringBuilder report = new StringBuilder(1024);
+		for(LatencyHistogram histogram : new TreeMap<String, LatencyHistogram>(histograms).values())
+			report.append(histogram.getName())
+				  .append(" count=").append(histogram.getCount())
+				  .append(" mean=").append(histogram.getMean())
+				  .append(" p50=").append(histogram.getPercentile(0.5))
+				  .append(" p90=").append(histogram.getPercentile(0.9))
+				  .append(" p99=").append(histogram.getPercentile(0.99))
+				  .append(" max=").append(histogram.getMax()).append('\n');
+		for(Map.Entry<String, Long> value : values().entrySet())
+			report.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+		return report.toString();
+	}
+
+	/**
+	 * Reads every counter and gauge.
+	 * @return TreeMap - Current values sorted by name.
+	 */
+	private static TreeMap<String, Long> values()
+	{
+		TreeMap<String, Long> values = new TreeMap<String, Long>();
+		for(Map.Entry<String, LongAdder> counter : counters.entrySet())
+			values.put(counter.getKey(), counter.getValue().sum());
+		for(Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+			values.put(gauge.getKey(), gauge.getValue().getAsLong());
+		return values;
+	}
+
+	/**
+	 * Reads a single attribute of the MBean.
+	 * @param String attribute - Attribute name, see the JMX ATTRIBUTES above.
+	 * @return Long - Current value.
+	 * @throws AttributeNotFoundException - If no metric has that name.
+	 */
+	private static long read(String attribute) throws AttributeNotFoundException
+	{
+		LongAdder counter = counters.get(attribute);
+		if(counter != null)
+			return counter.sum();
+		LongSupplier gauge = gauges.get(attribute);
+		if(gauge != null)
+			return gauge.getAsLong();
+		final int split = attribute.lastIndexOf('.');
+		LatencyHistogram histogram = (split < 0) ? null : histograms.get(attribute.substring(0, split));
+		if(histogram != null)
+			switch(attribute.substring(split + 1))
+			{
+				case "count":
+					return histogram.getCount();
+				case "mean":
+					return histogram.getMean();
+				case "p50":
+					return histogram.getPercentile(0.5);
+				case "p99":
+					return histogram.getPercentile(0.99);
+				case "max":
+					return histogram.getMax();
+			}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	/**
+	 * Read only MBean over the registry. Its attributes are listed afresh each time a JMX client asks, so metrics created
+	 * after the client connected show up on its next refresh.
+	 */
+	private static final class MetricsBean implements DynamicMBean
+	{
+		private static final String[] HISTOGRAM_FIELDS = new String[] { "count", "mean", "p50", "p99", "max" };
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException
+		{
+			return Long.valueOf(read(attribute));
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes)
+		{
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes)
+				try
+				{
+					list.add(new Attribute(attribute, Long.valueOf(read(attribute))));
+				}
+				catch (AttributeNotFoundException e)
+				{
+					// Left out, as JMX expects.
+				}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+		{
+			throw new AttributeNotFoundException("Metrics are read only.");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes)
+		{
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String action, Object[] params, String[] signature)
+		{
+			// Only operation.
+			return "report".equals(action) ? report() : null;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo()
+		{
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name : new TreeMap<String, LatencyHistogram>(histograms).keySet())
+				for(String field : HISTOGRAM_FIELDS)
+					attributes.add(new MBeanAttributeInfo(name+"."+field, "long", "Latency histogram "+field+", in nanoseconds.", true, false, false));
+			for(String name : values().keySet())
+				attributes.add(new MBeanAttributeInfo(name, "long", "Counter or gauge.", true, false, false));
+			MBeanOperationInfo[] operations = new MBeanOperationInfo[] {
+				new MBeanOperationInfo("report", "Every metric as text.", null, "java.lang.String", MBeanOperationInfo.INFO)
+			};
+			return new MBeanInfo(Metrics.class.getName(), "Couch Cast server metrics.", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+		}
+	}
+}
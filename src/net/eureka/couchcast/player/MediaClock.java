@@ -0,0 +1,163 @@
+package net.eureka.couchcast.player;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Media position clock. Instead of counting timer ticks, the clock keeps an anchor, the media time at a
+ * System.nanoTime() instant along with the playback rate, and works out the position from the elapsed monotonic time
+ * whenever it is read. A late {@link java.util.Timer} or a GC pause no longer drifts the position, and any thread can
+ * read it without a lock since the anchor is immutable and swapped atomically.
+ * <br>
+ * The backend is only asked for its real position through resync(), which re-anchors when the two have drifted apart
+ * by more than DRIFT_TOLERANCE. isResyncDue() limits that to once every RESYNC_INTERVAL, keeping the expensive
+ * EmbeddedMediaPlayer.getTime() off the one second update (see the notes in {@link MediaPlayer}).
+ *
+ * @see MediaPlayer
+ */
+public final class MediaClock
+{
+	/**
+	 * Milliseconds between resyncs with the backend at normal rate.
+	 */
+	public static final long RESYNC_INTERVAL = 5000L;
+
+	/**
+	 * Milliseconds the clock may be out from the backend before it is re-anchored.
+	 */
+	private static final long DRIFT_TOLERANCE = 200L;
+
+	/**
+	 * Immutable position anchor.
+	 */
+	private static final class Anchor
+	{
+		private final long mediaTime, nanoTime;
+
+		private final float rate;
+
+		private final boolean running;
+
+		private Anchor(long media_time, float rate, boolean running)
+		{
+			this.mediaTime = Math.max(0L, media_time);
+			this.nanoTime = System.nanoTime();
+			this.rate = rate;
+			this.running = running;
+		}
+
+		/**
+		 * @param Long now - Current System.nanoTime().
+		 * @return Long - Media time at now, in milliseconds.
+		 */
+		private long timeAt(long now)
+		{
+			if(!running)
+				return mediaTime;
+			return mediaTime + (long) (((now - nanoTime) / 1000000L) * rate);
+		}
+	}
+
+	private final AtomicReference<Anchor> anchor = new AtomicReference<Anchor>(new Anchor(0L, 1f, false));
+
+	/**
+	 * Monotonic time of the last resync with the backend.
+	 */
+	private volatile long lastResync = System.nanoTime();
+
+	/**
+	 * Retrieves the current media position. Lock-free, never touches the backend.
+	 * @return Long - Time in milliseconds.
+	 */
+	public long getTime()
+	{
+		return anchor.get().timeAt(System.nanoTime());
+	}
+
+	/**
+	 * Retrieves if the clock is advancing.
+	 * @return Boolean - True if running, false if paused or stopped.
+	 */
+	public boolean isRunning()
+	{
+		return anchor.get().running;
+	}
+
+	/**
+	 * Anchors the clock to a position reported by the backend, e.g after a seek or rewind.
+	 * @param Long media_time - Media time in milliseconds.
+	 */
+	public void setTime(long media_time)
+	{
+		Anchor current = anchor.get();
+		anchor.set(new Anchor(media_time, current.rate, current.running));
+		lastResync = System.nanoTime();
+	}
+
+	/**
+	 * Starts or stops the clock at the current position.
+	 * @param Boolean running - True while the media is playing.
+	 */
+	public void setRunning(boolean running)
+	{
+		Anchor current;
+		do
+		{
+			current = anchor.get();
+			if(current.running == running)
+				return;
+		}
+		while(!anchor.compareAndSet(current, new Anchor(current.timeAt(System.nanoTime()), current.rate, running)));
+	}
+
+	/**
+	 * Changes the playback rate from the current position.
+	 * @param Float rate - Playback rate, 1 for normal speed.
+	 */
+	public void setRate(float rate)
+	{
+		Anchor current;
+		do
+		{
+			current = anchor.get();
+			if(current.rate == rate)
+				return;
+		}
+		while(!anchor.compareAndSet(current, new Anchor(current.timeAt(System.nanoTime()), rate, current.running)));
+	}
+
+	/**
+	 * Stops the clock at zero for new media.
+	 */
+	public void reset()
+	{
+		anchor.set(new Anchor(0L, 1f, false));
+		lastResync = System.nanoTime();
+	}
+
+	/**
+	 * Checks if the next resync with the backend is due. Outside normal rate, where the backend's progress is
+	 * unpredictable, a resync is always due.
+	 * @return Boolean - True if resync() should be called with the backend's time.
+	 */
+	public boolean isResyncDue()
+	{
+		Anchor current = anchor.get();
+		return current.running && (current.rate != 1f || System.nanoTime() - lastResync >= RESYNC_INTERVAL * 1000000L);
+	}
+
+	/**
+	 * Compares the clock with the backend's time and re-anchors if they have drifted apart.
+	 * @param Long backend_time - Time reported by the backend in milliseconds.
+	 * @return Long - Drift corrected in milliseconds, zero if within tolerance.
+	 */
+	public long resync(long backend_time)
+	{
+		lastResync = System.nanoTime();
+		Anchor current = anchor.get();
+		final long drift = backend_time - current.timeAt(System.nanoTime());
+		if(Math.abs(drift) <= DRIFT_TOLERANCE)
+			return 0L;
+		anchor.compareAndSet(current, new Anchor(backend_time, current.rate, current.running));
+		return drift;
+	}
+}
@@ -0,0 +1,48 @@
+package net.eureka.couchcast.player;
+
+/**
+ * Immutable metadata of one media file or stream, as cached by {@link MediaMetadataCache}. Files also carry the size
+ * and modification time they had when the metadata was read, so a changed file is never matched to stale metadata.
+ *
+ * @see MediaMetadataCache
+ */
+public final class MediaMetadata
+{
+	private final long length, size, modified;
+
+	private final String title;
+
+	/**
+	 * @param Long length - Length of the media in milliseconds.
+	 * @param String title - Title of the media.
+	 * @param Long size - Size of the media file, -1 for streams.
+	 * @param Long modified - Modification time of the media file, -1 for streams.
+	 */
+	MediaMetadata(long length, String title, long size, long modified)
+	{
+		this.length = length;
+		this.title = (title == null) ? "" : title;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	public long getLength()
+	{
+		return length;
+	}
+
+	public String getTitle()
+	{
+		return title;
+	}
+
+	long getSize()
+	{
+		return size;
+	}
+
+	long getModified()
+	{
+		return modified;
+	}
+}
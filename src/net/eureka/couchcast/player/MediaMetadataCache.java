@@ -0,0 +1,313 @@
+package net.eureka.couchcast.player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.foundation.init.ApplicationGlobals;
+import net.eureka.couchcast.library.MediaLibrary;
+
+/**
+ * Cache of {@link MediaMetadata} keyed by file path or MRL. The {@link MediaPlayer} fills it once per media when VLC
+ * reports the length, and reads the length from it for the rest of the playback instead of creating a native
+ * MediaMeta every second.
+ * <br>
+ * Entries for local files are kept in a compact index file within the application directory, so the length of a file
+ * played in an earlier session is known before its first frame decodes. An entry is only used while the file still has
+ * the size and modification time it was indexed with. Streams are only cached in memory. The least recently used
+ * entries are dropped past MAXIMUM_ENTRIES.
+ * <br>
+ * The index file is read and written by one daemon thread, started with the bridge, so the media player never waits on
+ * the disk and never holds the cache lock while it is read. Entries cached before it has been read are kept over the
+ * file's. New entries are written SAVE_DELAY after the first of them, so a burst of them is written once.
+ *
+ * @see MediaMetadata
+ * @see MediaPlayer
+ */
+public final class MediaMetadataCache
+{
+	/**
+	 * Name of the index file.
+	 */
+	private static final String INDEX_FILE = "media_index.dat";
+
+	/**
+	 * Identifies an index file, "CCMI".
+	 */
+	private static final int INDEX_MAGIC = 0x43434D49;
+
+	private static final byte INDEX_VERSION = 1;
+
+	/**
+	 * Most entries kept, in memory and on disk.
+	 */
+	private static final int MAXIMUM_ENTRIES = 4096;
+
+	/**
+	 * Milliseconds new entries are gathered for before the index file is written.
+	 */
+	private static final long SAVE_DELAY = 2000L;
+
+	/**
+	 * Cached metadata in least recently used order, guarded by itself.
+	 */
+	private static final LinkedHashMap<String, MediaMetadata> entries = new LinkedHashMap<String, MediaMetadata>(64, 0.75f, true)
+	{
+		private static final long serialVersionUID = -2797004733915434620L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MediaMetadata> eldest)
+		{
+			return size() > MAXIMUM_ENTRIES;
+		}
+	};
+
+	/**
+	 * True once the index file has been read, or found missing or unreadable.
+	 */
+	private static volatile boolean loaded = false;
+
+	/**
+	 * True while there are file entries the index file doesn't have yet.
+	 */
+	private static final AtomicBoolean dirty = new AtomicBoolean(false);
+
+	/**
+	 * Set once the index thread has been started.
+	 */
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	private static volatile Thread writer = null;
+
+	/**
+	 * Starts the daemon thread that reads the index file, then writes it whenever new entries are cached. Called at
+	 * start up so the index is read before the first media is played, and on first use otherwise. Never blocks.
+	 */
+	public static void start()
+	{
+		if(started.get() || !started.compareAndSet(false, true))
+			return;
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				load();
+				while(true)
+				{
+					// Wait for a new entry, then for the rest of its burst.
+					while(!dirty.get())
+						LockSupport.park();
+					LockSupport.parkNanos(SAVE_DELAY * 1000000L);
+					dirty.set(false);
+					save();
+				}
+			}
+		}, "Media Index");
+		thread.setDaemon(true);
+		writer = thread;
+		thread.start();
+		// Daemon thread dies with System.exit(), write the entries it was still gathering.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(loaded && dirty.getAndSet(false))
+					save();
+			}
+		}, "Media Index Shutdown"));
+	}
+
+	/**
+	 * Retrieves the cached metadata of a media file or stream.
+	 * @param String key - Path of the file or MRL of the stream.
+	 * @return {@link MediaMetadata} - Cached metadata, null if unknown or the file has changed.
+	 */
+	public static MediaMetadata get(String key)
+	{
+		start();
+		MediaMetadata metadata;
+		synchronized (entries)
+		{
+			metadata = entries.get(key);
+		}
+		if(metadata == null || metadata.getSize() < 0)
+			return metadata;
+		// File changed since it was indexed.
+		File file = new File(key);
+		if(file.length() != metadata.getSize() || file.lastModified() != metadata.getModified())
+		{
+			synchronized (entries)
+			{
+				entries.remove(key);
+			}
+			return null;
+		}
+		return metadata;
+	}
+
+	/**
+	 * Caches the metadata of a media file or stream. Local files are also written to the index file.
+	 * @param String key - Path of the file or MRL of the stream.
+	 * @param Long length - Length of the media in milliseconds.
+	 * @param String title - Title of the media.
+	 * @return {@link MediaMetadata} - Cached metadata.
+	 */
+	public static MediaMetadata put(String key, long length, String title)
+	{
+		File file = new File(key);
+		final boolean is_file = file.isFile();
+		MediaMetadata metadata = new MediaMetadata(length, title, is_file ? file.length() : -1L, is_file ? file.lastModified() : -1L);
+		start();
+		synchronized (entries)
+		{
+			entries.put(key, metadata);
+		}
+		if(is_file)
+		{
+			// Only the first entry of a burst needs to wake the index thread.
+			if(dirty.compareAndSet(false, true))
+				LockSupport.unpark(writer);
+			// Fill in the duration of the library entry.
+			MediaLibrary.setDuration(key, length);
+		}
+		return metadata;
+	}
+
+	/**
+	 * Reads the index file without the cache lock, then adds its entries behind the ones cached since start up. Runs
+	 * on the index thread.
+	 */
+	private static void load()
+	{
+		LinkedHashMap<String, MediaMetadata> read = new LinkedHashMap<String, MediaMetadata>();
+		File index = getIndexFile();
+		if(index.exists())
+			read(index, read);
+		synchronized (entries)
+		{
+			// Entries cached since start up are newer, keep them and their order after the file's.
+			read.putAll(entries);
+			entries.clear();
+			entries.putAll(read);
+		}
+		loaded = true;
+	}
+
+	/**
+	 * Reads every entry of the index file.
+	 * @param {@link File} index - Index file.
+	 * @param LinkedHashMap read - Map to add the entries to, in the file's order.
+	 */
+	private static void read(File index, LinkedHashMap<String, MediaMetadata> read)
+	{
+		try
+		{
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+			try
+			{
+				// Ignore unknown or older formats, they are rewritten on the next save.
+				if(input.readInt() != INDEX_MAGIC || input.readByte() != INDEX_VERSION)
+					return;
+				final int count = input.readInt();
+				for(int i = 0; i < count; i ++)
+				{
+					String key = input.readUTF();
+					long size = input.readLong(), modified = input.readLong(), length = input.readLong();
+					String title = input.readUTF();
+					read.put(key, new MediaMetadata(length, title, size, modified));
+				}
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Writes every file entry to a temporary file, then replaces the index file with it. Run by the index thread, and
+	 * by the shutdown hook.
+	 */
+	private static synchronized void save()
+	{
+		ArrayList<Map.Entry<String, MediaMetadata>> snapshot;
+		synchronized (entries)
+		{
+			snapshot = new ArrayList<Map.Entry<String, MediaMetadata>>(entries.entrySet());
+		}
+		File index = getIndexFile(), temporary = new File(index.getPath()+".tmp");
+		try
+		{
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try
+			{
+				int count = 0;
+				for(Map.Entry<String, MediaMetadata> entry : snapshot)
+					if(entry.getValue().getSize() >= 0)
+						count ++;
+				output.writeInt(INDEX_MAGIC);
+				output.writeByte(INDEX_VERSION);
+				output.writeInt(count);
+				for(Map.Entry<String, MediaMetadata> entry : snapshot)
+				{
+					MediaMetadata metadata = entry.getValue();
+					// Streams aren't indexed.
+					if(metadata.getSize() < 0)
+						continue;
+					output.writeUTF(entry.getKey());
+					output.writeLong(metadata.getSize());
+					output.writeLong(metadata.getModified());
+					output.writeLong(metadata.getLength());
+					output.writeUTF(metadata.getTitle());
+				}
+			}
+			finally
+			{
+				output.close();
+			}
+			Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Retrieves the index file from the application directory.
+	 * @return File - Media index file.
+	 */
+	private static File getIndexFile()
+	{
+		// Retrieve the system drive directory.
+		String system_drive = System.getenv("SYSTEMDRIVE"),
+			   // Retrieve the default home path.
+			   home_path = System.getenv("HOME");
+		// If home path is null, try the updated renamed home path.
+		home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
+
+		// Create default home/download directory path.
+		return new File(system_drive+home_path+File.separator+ApplicationGlobals.getName()+File.separator+INDEX_FILE);
+	}
+}
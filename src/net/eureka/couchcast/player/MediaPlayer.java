@@ -13,20 +13,37 @@ import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
 import java.awt.event.WindowListener;
 import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.Properties;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
 
+import net.eureka.couchcast.Logger;
 import net.eureka.couchcast.foundation.init.ApplicationGlobals;
+import net.eureka.couchcast.library.LibraryEntry;
 import net.eureka.couchcast.mediaserver.NetworkInfo;
+import net.eureka.couchcast.metrics.LatencyHistogram;
+import net.eureka.couchcast.metrics.Metrics;
 import net.eureka.couchcast.player.control.ActivateWindow;
 import net.eureka.couchcast.player.control.DesktopControl;
 import uk.co.caprica.vlcj.binding.internal.libvlc_state_t;
+import uk.co.caprica.vlcj.player.MediaMeta;
 import uk.co.caprica.vlcj.player.MediaPlayerEventAdapter;
 import uk.co.caprica.vlcj.player.MediaPlayerFactory;
 import uk.co.caprica.vlcj.player.embedded.EmbeddedMediaPlayer;
@@ -59,10 +76,10 @@ import uk.co.caprica.vlcj.player.embedded.windows.Win32FullScreenStrategy;
  *		current time-stamp within certain media formats. (So far only found within some MKV files.) This bug
  *		would delay the retrieval of a time-stamp (for up to ten seconds at times); thus making real time 
  *		updating useless. The delay seems to build up over each time-stamp call, so maybe it's a work flow block. 
- *		This timer is updated every second from the TimerTask updateMediaInfo method. Whenever a VLCJ
- *		function is used that has to do with time manipulation, on that action the current media player time is
- *		refreshed with the current media time-stamp. From the refreshed time, the timer continues at that point
- *		provided no buffering is needed.
+ *		This timer is now a {@link MediaClock}, which interpolates the time from System.nanoTime() rather than
+ *		counting ticks. Whenever a VLCJ function is used that has to do with time manipulation, on that action the
+ *		clock is re-anchored with the current media time-stamp, and the updateMediaInfo method resyncs it at a
+ *		bounded rate. From the anchor, the clock continues at that point provided no buffering is needed.
  *		(Time-stamp call = EmbeddedMediaPlayer.getTime())
  *
  *		To ensure that the media player frame/canvas is the focused window; A number of functions were created
@@ -94,9 +111,10 @@ import uk.co.caprica.vlcj.player.embedded.windows.Win32FullScreenStrategy;
  * @see ActivateWindow
  * @see DesktopControl
  * @see WindowSearcher 
+ * @see PlayerBackend
  *
  */
-public final class MediaPlayer extends TimerTask
+public final class MediaPlayer extends TimerTask implements PlayerBackend
 {
 	/** STATIC BLOCK **
 	 * Used to load the libVLC libraries at compilation of this class. Uses JNA in combination with VLCJ to
@@ -122,6 +140,62 @@ public final class MediaPlayer extends TimerTask
 	 */
 	private static final String ICON_PATH = ApplicationGlobals.getInstallPath()+"logo.png";
 	
+	/**
+	 * Milliseconds between recordings of the playing media's position in the {@link ResumeJournal}.
+	 */
+	private static final long RESUME_INTERVAL = 5000L;
+	
+	/**
+	 * Time spent in VLC startMedia(), in minimizing the desktop and in each buffering stall. See {@link Metrics}.
+	 */
+	private static final LatencyHistogram startLatency = Metrics.histogram("player.start_media"),
+										  minimizeLatency = Metrics.histogram("player.minimize"),
+										  bufferingLatency = Metrics.histogram("player.buffering");
+	
+	/**
+	 * Number of buffering stalls.
+	 */
+	private static final LongAdder bufferingStalls = Metrics.counter("player.buffering_stalls");
+	
+	/**
+	 * Number of VLC state events replaced in the mailbox before they were applied.
+	 */
+	private static final LongAdder coalescedEvents = Metrics.counter("player.events_coalesced");
+	
+	/**
+	 * Playing states posted by the VLC event callbacks. STATE_BUFFERED means buffering has finished, playing if VLC is.
+	 */
+	private static final int STATE_NONE = -1, STATE_PAUSED = 0, STATE_PLAYING = 1, STATE_BUFFERED = 2;
+	
+	/**
+	 * Shortest time between two posted states being applied, in milliseconds.
+	 */
+	private static final long STATE_INTERVAL = 100L;
+	
+	/**
+	 * Bytes of the next queued media file read ahead of time, enough for VLC to open and start demuxing it from the
+	 * file system cache.
+	 */
+	private static final int PRELOAD_SIZE = 1024 * 1024;
+	
+	private static final LatencyHistogram advanceLatency = Metrics.histogram("player.queue_advance");
+	
+	private static final LongAdder preloads = Metrics.counter("player.preloads");
+	
+	/**
+	 * Daemon thread that preloads the next queued media file, so a slow disk never holds up playback or exit.
+	 */
+	private static final ExecutorService PRELOADER = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "Playlist Preloader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
 	/**
 	 * Library options for libVLC. Any preferences can be set here that are to do with base library functions. e.g
 	 * Video/Audio output modules.
@@ -153,7 +227,8 @@ public final class MediaPlayer extends TimerTask
 	
 	/**
 	 * VLCJ event listener, handles media player events/reactions such as when to change {@link NetworkInfo} in response to video
-	 * buffering for example.
+	 * buffering for example. The playing state callbacks run on libVLC's event thread, so they only post the new state, see
+	 * postState().
 	 */
 	private MediaPlayerEventAdapter eventListener = new MediaPlayerEventAdapter()
     {	
@@ -164,7 +239,7 @@ public final class MediaPlayer extends TimerTask
 		public final void mediaChanged(uk.co.caprica.vlcj.player.MediaPlayer mediaPlayer, uk.co.caprica.vlcj.binding.internal.libvlc_media_t media, String mrl) 
 		{
 			// Set media info paused.
-			setPaused();
+			postState(STATE_PAUSED);
 		};
 		
 		/**
@@ -179,12 +254,27 @@ public final class MediaPlayer extends TimerTask
 			//System.out.println("Buffering:"+ new_cache_percentage_completed);
 			// If the new percentage buffered is less than 100%...
         	if(new_cache_percentage_completed < 100.0f)
+        	{
+        		// Note the start of a stall.
+        		if(bufferingStart == 0L)
+        		{
+        			bufferingStart = System.nanoTime();
+        			bufferingStalls.increment();
+        		}
         		// Set media info paused.
-				setPaused();
-        	// If media player is playing ....
-			else if(ourMediaPlayer.isPlaying())
-				// Set media info playing.
-				setPlaying();
+				postState(STATE_PAUSED);
+        	}
+        	else
+        	{
+        		// Stall over.
+        		if(bufferingStart != 0L)
+        		{
+        			bufferingLatency.recordSince(bufferingStart);
+        			bufferingStart = 0L;
+        		}
+        		// Set media info playing, if the media player is.
+        		postState(STATE_BUFFERED);
+        	}
 		};
         
 		/**
@@ -216,7 +306,7 @@ public final class MediaPlayer extends TimerTask
         public final void seekableChanged(uk.co.caprica.vlcj.player.MediaPlayer mediaPlayer, int newSeekable) 
         {
         	// Set media info to pause state.
-        	setPaused();
+        	postState(STATE_PAUSED);
         };
         
         /**
@@ -236,22 +326,41 @@ public final class MediaPlayer extends TimerTask
         	// If the new media player state is paused...
         	if(new_media_state == libvlc_state_t.libvlc_Paused.intValue())
         		// Set media info paused.
-        		setPaused();
+        		postState(STATE_PAUSED);
         	// If the new media player state is playing...
 			else if(new_media_state == libvlc_state_t.libvlc_Playing.intValue())
 				// Set media info playing.
-				setPlaying();
+				postState(STATE_PLAYING);
         	// If the new media player state is ended...
 			else if(new_media_state == libvlc_state_t.libvlc_Ended.intValue() && !streaming_preparing)
 			{
 				System.out.println("ENDED.");
-				// Stop and hide media player
-				stop();
-				// Set media info paused.
-	        	setPaused();
+				// Played to the end, nothing to resume.
+				ResumeJournal.clear(mediaKey);
+				// Queued media follows straight on, otherwise the player stops. Either way it is left to the state
+				// thread, as libVLC can't be called back from here.
+				endedAt = System.nanoTime();
+				advancePending.set(true);
+				LockSupport.unpark(stateThread);
 			}
         }
         
+        /**
+         * Once VLC knows the length of the media, it is posted to the state thread, which caches it for the rest of
+         * the playback and indexes it for the next time the same media is played. See applyLength().
+         * 
+         * @param mediaPlayer - Current Media player object.
+         * @param Long new_length - Length of the media in milliseconds.
+         */
+        public void lengthChanged(uk.co.caprica.vlcj.player.MediaPlayer mediaPlayer, long new_length) 
+        {
+        	if(new_length <= 0 || new_length == mediaLength)
+        		return;
+        	// Only the latest length matters, wake the state thread if the slot was empty.
+        	if(pendingLength.getAndSet(new_length) == 0L)
+        		LockSupport.unpark(stateThread);
+        };
+        
         public void mediaSubItemAdded(uk.co.caprica.vlcj.player.MediaPlayer mediaPlayer, uk.co.caprica.vlcj.binding.internal.libvlc_media_t subItem) 
         {
         	System.out.println("Sub item added: "+mediaPlayer.mrl(subItem));
@@ -271,7 +380,11 @@ public final class MediaPlayer extends TimerTask
         		List<String> subItems = ourMediaPlayer.subItems();
         		if(subItems != null && !subItems.isEmpty())
         		{
+        			// Skip the page next time this link is played.
+        			StreamResolutionCache.put(lastStreamingLink, subItems);
+        			final long start = System.nanoTime();
         			ourMediaPlayer.startMedia(subItems.get(0));
+        			startLatency.recordSince(start);
         			// Check for minimize option.
     				checkMinimizeFrames();
     				// Check if frame is visible & to front.
@@ -285,6 +398,9 @@ public final class MediaPlayer extends TimerTask
         public void error(uk.co.caprica.vlcj.player.MediaPlayer mediaPlayer) 
         {
         	System.out.println("Detected error.");
+        	// Resolved link may have expired, resolve it again next time.
+        	if(wasLastMediaStreaming)
+        		StreamResolutionCache.invalidate(lastStreamingLink);
         };
         
     };
@@ -376,9 +492,15 @@ public final class MediaPlayer extends TimerTask
 	
 	/**
 	 * {@link NetworkInfo} object. Contains all the relevant media info that needs to be transported to the Android 
-	 * client via the {@link MediaBroadcaster}. 
+	 * client via the {@link MediaBroadcaster}. Each state is a new snapshot swapped in whole, a published snapshot is never
+	 * changed, so readers never lock. Null once the media player has been released.
+	 */
+	private static final AtomicReference<NetworkInfo> info = new AtomicReference<NetworkInfo>(new NetworkInfo(0, 0));
+	
+	/**
+	 * Listeners notified whenever the media player state changes. See {@link MediaStateListener}.
 	 */
-	private static NetworkInfo info = new NetworkInfo(0, 0);
+	private final CopyOnWriteArrayList<MediaStateListener> stateListeners = new CopyOnWriteArrayList<MediaStateListener>();
 	
 	/**
 	 * {@link Timer} that manages this media players TimerTask. Used to update media info every one second.
@@ -391,14 +513,14 @@ public final class MediaPlayer extends TimerTask
 	private String lastStreamingLink = "";
 	
 	/**
-	 * Current time elapsed by the currently playing media.
+	 * Current time elapsed by the currently playing media, interpolated from the last anchor. See {@link MediaClock}.
 	 */
-	private long time = 0L;
+	private final MediaClock clock = new MediaClock();
 	
 	/**
-	 * Media player pause flag. Indicates whether the media is paused or not.
+	 * Media player pause flag. Indicates whether the media is paused or not. Written by the command, state and VLC threads.
 	 */
-	private boolean paused = false;
+	private volatile boolean paused = false;
 	
 	/**
 	 * Media preparation flag. Used to indicate whether the media player is still loading the file it needs to play.
@@ -428,10 +550,61 @@ public final class MediaPlayer extends TimerTask
 	
 	private boolean wasLastMediaStreaming = false;
 	
+	/**
+	 * System.nanoTime() the current buffering stall started at, zero while not buffering. Only touched by VLC's event thread.
+	 */
+	private long bufferingStart = 0L;
+	
 	private int mediaIndex = -1;
 	
 	private String mediaTitle = "";
 	
+	/**
+	 * Path or MRL of the current media, the key of its {@link MediaMetadataCache} entry.
+	 */
+	private volatile String mediaKey = "";
+	
+	/**
+	 * Length of the current media, from the {@link MediaMetadataCache} or VLC's length changed event. Zero until known.
+	 */
+	private volatile long mediaLength = 0L;
+	
+	/**
+	 * Next time the position of the playing media is recorded in the {@link ResumeJournal}.
+	 */
+	private long nextResumeRecord = 0L;
+	
+	/**
+	 * Single slot mailbox of the latest playing state posted by VLC's event thread, STATE_NONE when empty. Each post
+	 * replaces the last, so a buffering storm collapses to its final state.
+	 */
+	private final AtomicInteger pendingState = new AtomicInteger(STATE_NONE);
+	
+	/**
+	 * Single slot mailbox of the latest media length posted by VLC's event thread, zero when empty.
+	 */
+	private final AtomicLong pendingLength = new AtomicLong(0L);
+	
+	/**
+	 * Thread that applies the posted states, see applyPostedStates().
+	 */
+	private Thread stateThread = null;
+	
+	/**
+	 * Server play queue, see {@link Playlist}.
+	 */
+	private final Playlist playlist = new Playlist();
+	
+	/**
+	 * Set by VLC's event thread when media ends, the state thread then moves on to the next queued item or stops.
+	 */
+	private final AtomicBoolean advancePending = new AtomicBoolean(false);
+	
+	/**
+	 * System.nanoTime() the last media ended at.
+	 */
+	private volatile long endedAt = 0L;
+	
 	/**
 	 * Background image for the video frame if no video is playing.
 	 */
@@ -451,12 +624,137 @@ public final class MediaPlayer extends TimerTask
 		initialiseFullscreen();
 		// Create the media player object.
 		initialiseMediaPlayer();
+		// Apply VLC's state events off its event thread.
+		initialiseStateThread();
 		// Instantiate timer.
 		timer = new Timer();
 		// Schedule TimerTask to be updated every one second.
 		timer.scheduleAtFixedRate(this, 1000, 1000);
 	}
 	
+	/**
+	 * Starts the daemon thread that applies the playing states posted by the VLC event callbacks.
+	 */
+	private void initialiseStateThread()
+	{
+		stateThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				applyPostedStates();
+			}
+		}, "Player State");
+		stateThread.setDaemon(true);
+		stateThread.start();
+	}
+	
+	/**
+	 * Posts a playing state from a VLC event callback. Never blocks, libVLC's event thread only swaps the mailbox slot
+	 * and, if it was empty, wakes the state thread.
+	 * @param Integer state - STATE_PAUSED, STATE_PLAYING or STATE_BUFFERED.
+	 */
+	private void postState(int state)
+	{
+		final int replaced = pendingState.getAndSet(state);
+		if(replaced == STATE_NONE)
+			LockSupport.unpark(stateThread);
+		else
+			coalescedEvents.increment();
+	}
+	
+	/**
+	 * State thread loop. Takes the latest posted state at most once every STATE_INTERVAL and applies it if it differs
+	 * from what is shown, so the clients see one clean buffering to playing change rather than every flicker in between.
+	 * Moving on through the play queue comes first and is never held back, then a posted media length.
+	 */
+	private void applyPostedStates()
+	{
+		long last_applied = 0L;
+		while(true)
+		{
+			if(advancePending.getAndSet(false))
+			{
+				advance();
+				continue;
+			}
+			final long length = pendingLength.getAndSet(0L);
+			if(length > 0L)
+			{
+				applyLength(length);
+				continue;
+			}
+			// Wait for a post.
+			if(pendingState.get() == STATE_NONE)
+			{
+				LockSupport.park(this);
+				continue;
+			}
+			// Let the rest of a storm land in the slot.
+			long wait;
+			while((wait = last_applied + STATE_INTERVAL - System.currentTimeMillis()) > 0)
+				LockSupport.parkNanos(this, wait * 1000000L);
+			final int state = pendingState.getAndSet(STATE_NONE);
+			last_applied = System.currentTimeMillis();
+			try
+			{
+				// Buffered only means playing if VLC is.
+				final boolean playing = (state == STATE_PLAYING) || (state == STATE_BUFFERED && ourMediaPlayer != null && ourMediaPlayer.isPlaying());
+				if(state == STATE_BUFFERED && !playing)
+					continue;
+				// Already showing it.
+				if(playing == !paused)
+					continue;
+				if(playing)
+					setPlaying();
+				else
+					setPaused();
+			}
+			catch (RuntimeException e)
+			{
+				// A failed update must not stop the thread.
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+			}
+		}
+	}
+	
+	/**
+	 * Caches a media length posted by VLC, with the title, in the {@link MediaMetadataCache} and publishes it. Runs on
+	 * the state thread, as the metadata read is native and the cache stats the file on disk.
+	 * @param Long length - Length of the media in milliseconds.
+	 */
+	private void applyLength(long length)
+	{
+		if(length == mediaLength)
+			return;
+		mediaLength = length;
+		try
+		{
+			// Only native metadata read of the playback.
+			String title = "";
+			if(ourMediaPlayer != null)
+			{
+				MediaMeta meta = ourMediaPlayer.getMediaMeta();
+				if(meta != null)
+				{
+					if(meta.getTitle() != null)
+						title = meta.getTitle();
+					meta.release();
+				}
+			}
+			MediaMetadataCache.put(mediaKey, length, title);
+			// Publish new length.
+			publishState();
+		}
+		catch (RuntimeException e)
+		{
+			// A failed update must not stop the thread.
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+	
 	/**
 	 * Creates the {@link JFrame} that will contain the video {@link Canvas}. The frame is set to undecorated so it will be
 	 * invisible. An Icon is set to represent the media player. The frame component is set to visible. A {@link WindowFocusListener}
@@ -599,10 +897,68 @@ public final class MediaPlayer extends TimerTask
 	
 	
 	/**
-	 * Used to play a {@link MediaFile} on LibVLC. File does not play until it is fully prepared.
+	 * Used to play a {@link MediaFile} on LibVLC. File does not play until it is fully prepared. Clears the play queue.
 	 * @param {@link MediaFile} file_to_play - Media file that is to be played.
 	 */
 	public void play(char[] path, int index)
+	{
+		playlist.clear();
+		this.startFile(new String(path), index, true);
+	}
+	
+	/**
+	 * Plays a media file of the library. The path held by the library is passed straight to LibVLC. Clears the play
+	 * queue.
+	 * @param {@link LibraryEntry} entry - Library entry of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 */
+	public void play(LibraryEntry entry, int index)
+	{
+		playlist.clear();
+		this.startFile(entry.getPath(), index, true);
+	}
+	
+	/**
+	 * Replaces the play queue and plays its first media file, see {@link Playlist}.
+	 * @param List items - Media files in play order.
+	 */
+	public void queue(List<Playlist.Item> items)
+	{
+		playlist.load(items);
+		Playlist.Item first = playlist.next();
+		if(first != null)
+			this.startFile(first.getPath(), first.getIndex(), true);
+	}
+	
+	/**
+	 * Moves on to the next queued media file once the current one has ended, on the state thread. Unlike a play from
+	 * the client the player is not stopped and the volume is kept, so the next file follows on with no gap but its
+	 * own start. With nothing queued the player is stopped and hidden, as it can't be from VLC's event thread.
+	 */
+	private void advance()
+	{
+		synchronized (this) {
+			Playlist.Item next = playlist.next();
+			if(next != null)
+			{
+				this.startFile(next.getPath(), next.getIndex(), false);
+				advanceLatency.recordSince(endedAt);
+				return;
+			}
+			finished = true;
+			this.stop();
+			pendingState.set(STATE_NONE);
+			this.setPaused();
+		}
+	}
+	
+	/**
+	 * Starts a media file on LibVLC, then preloads the queued media file after it.
+	 * @param String path_string - Path of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 * @param Boolean reset_volume - False when moving on through the play queue, which keeps the volume.
+	 */
+	private void startFile(final String path_string, int index, boolean reset_volume)
 	{
 		//Native.getDirectBufferPointer()
 		checkMediaPlayerCreated();
@@ -617,17 +973,20 @@ public final class MediaPlayer extends TimerTask
 			streaming = false;
 			try
 			{ 
-				// Store file path as string.
-				final String path_string = new String(path);
 				// Store name retrieved from path.
 				mediaTitle = path_string.substring(path_string.lastIndexOf("\\")+1);
+				// Use the indexed length until VLC reports it.
+				this.loadMetadata(path_string);
 				// Set title of the JFrame to the media title.
 				ourFrame.setTitle(mediaTitle);
-				this.volume(25);
+				if(reset_volume)
+					this.volume(25);
 				// Wait until the media file is prepared to play...
+				final long start = System.nanoTime();
 				ourMediaPlayer.startMedia(path_string);
+				startLatency.recordSince(start);
 				// Reset media player time.
-				time = 0;
+				clock.reset();
 				// Reset finished state.
 				finished = false;
 				if(!ApplicationGlobals.isMusicMode())
@@ -650,11 +1009,75 @@ public final class MediaPlayer extends TimerTask
 				// Finished preparing.
 				preparing = false;
 			}
+			// Publish new media index.
+			this.publishState();
+			// Get the next queued file ready while this one plays.
+			this.preloadNext();
 		}
 	}
 	
+	/**
+	 * Preloads the queued media file after the current one on the preloader thread. Its metadata is parsed into the
+	 * {@link MediaMetadataCache}, so the length is known the moment it starts, and its first PRELOAD_SIZE bytes are read
+	 * so the file system has them cached when VLC opens it.
+	 */
+	private void preloadNext()
+	{
+		final Playlist.Item next = playlist.peekNext();
+		if(next == null)
+			return;
+		final MediaPlayerFactory factory = mediaPlayerFactory;
+		PRELOADER.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final String path = next.getPath();
+				try
+				{
+					if(MediaMetadataCache.get(path) == null && factory != null)
+					{
+						MediaMeta meta = factory.getMediaMeta(path, true);
+						if(meta != null)
+						{
+							long length = meta.getLength();
+							String title = meta.getTitle();
+							meta.release();
+							if(length > 0)
+								MediaMetadataCache.put(path, length, title);
+						}
+					}
+					FileInputStream input = new FileInputStream(path);
+					try
+					{
+						byte[] buffer = new byte[64 * 1024];
+						int total = 0, read;
+						while(total < PRELOAD_SIZE && (read = input.read(buffer)) > 0)
+							total += read;
+					}
+					finally
+					{
+						input.close();
+					}
+					preloads.increment();
+				}
+				catch (IOException | RuntimeException e)
+				{
+					// Only a head start, the file is still played without it.
+					Logger.append(new StringBuffer(e.toString()));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Plays media at the given link. Intended for YouTube. A link played before starts its resolved stream straight
+	 * away, see {@link StreamResolutionCache}.
+	 * @param String mrl - MRL of the media.
+	 */
 	public void play(String mrl)
 	{
+		playlist.clear();
 		checkMediaPlayerCreated();
 		// If a media file is not already being prepared...
 		System.out.println("Starting mrl:"+mrl);
@@ -662,20 +1085,37 @@ public final class MediaPlayer extends TimerTask
 		{
 			lastStreamingLink = mrl;
 			ourFrame.setTitle(lastStreamingLink);
+			// Use the cached length until VLC reports it.
+			this.loadMetadata(mrl);
 			// Start preparing media.
 			preparing = true;
 			streaming_preparing = true;
 			try
 			{
-				time = 0;
+				clock.reset();
 				// Reset finished state.
 				finished = false;
 				// Start media streaming.
 				streaming = true;
 				System.out.println("Starting mrl:"+mrl);
 				this.volume(25);
-				// Play media file.
-				ourMediaPlayer.startMedia(mrl);
+				// Link resolved before, play its stream straight away.
+				List<String> resolved = StreamResolutionCache.get(mrl);
+				final long start = System.nanoTime();
+				if(resolved != null && ourMediaPlayer.startMedia(resolved.get(0)))
+				{
+					streaming_preparing = false;
+					wasLastMediaStreaming = true;
+				}
+				else
+				{
+					// Resolved stream has expired, resolve the link again.
+					if(resolved != null)
+						StreamResolutionCache.invalidate(mrl);
+					// Play media file.
+					ourMediaPlayer.startMedia(mrl);
+				}
+				startLatency.recordSince(start);
 				// Check for minimize option.
 				this.checkMinimizeFrames();
 				// Check if frame is visible & to front.
@@ -691,9 +1131,55 @@ public final class MediaPlayer extends TimerTask
 				// Finished preparing.
 				preparing = false;
 			}
+			// Publish streaming index.
+			this.publishState();
 		}
 	}
 	
+	/**
+	 * Plays a media file from the position it was last stopped or paused at, as recorded by the {@link ResumeJournal}.
+	 * @param char[] path - Path of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 */
+	public void resume(char[] path, int index)
+	{
+		// Read before playing, the position timer records the new file from the start as soon as it plays.
+		long position = ResumeJournal.getPosition(new String(path));
+		this.play(path, index);
+		// Seek straight to the recorded position.
+		if(position > 0 && ourMediaPlayer.isPlayable())
+		{
+			ourMediaPlayer.setTime(position);
+			clock.setTime(position);
+			// Publish new time.
+			this.publishState();
+		}
+	}
+	
+	/**
+	 * Records the position of the current media file in the {@link ResumeJournal}. Streams and finished media are not
+	 * recorded.
+	 */
+	private void recordPosition()
+	{
+		nextResumeRecord = System.currentTimeMillis() + RESUME_INTERVAL;
+		if(!streaming && !finished)
+			ResumeJournal.record(mediaKey, clock.getTime());
+	}
+	
+	/**
+	 * Sets the current media and its length as known by the {@link MediaMetadataCache}.
+	 * @param String key - Path or MRL of the media.
+	 */
+	private void loadMetadata(String key)
+	{
+		mediaKey = key;
+		// A length posted for the last media is not this one's.
+		pendingLength.set(0L);
+		MediaMetadata metadata = MediaMetadataCache.get(key);
+		mediaLength = (metadata == null) ? 0L : metadata.getLength();
+	}
+	
 	/**
 	 * Updates media info every one second. First it updates the media time, then updates the {@link NetworkInfo} object.
 	 * Which is sent to Android client by the {@link MediaBroadcaster}.
@@ -718,46 +1204,30 @@ public final class MediaPlayer extends TimerTask
 	{
 		try
 		{
-			synchronized (info) 
+			short index;
+			if(!streaming)
 			{
-				// If the media info object is equal to null...
-				if(info == null)
-					// Create a new media info object with initial length, current length and name.
-					info = new NetworkInfo(ourMediaPlayer.getMediaMeta().getLength(), time);
-				// If the media info object is already created...
-				else
-				{
-					//System.out.println("Updating time...");
-					// Update length of the media.
-					info.setLength(ourMediaPlayer.getMediaMeta().getLength());
-					// Update current length of the media.
-					info.setTime(time);
-				}
-				short index;
-				if(!streaming)
-				{
-					// Check if the media player is finished. If so reset the index to -1 (Signalling nothing is playing).
-					// If not update the media index.
-					index = (short) ((finished) ? -1 : mediaIndex);
-				}
-				else
-					// I believe this was for the experimental YouTube streaming state.
-					index = -2;
-					
-				// Set media index.
-				info.setIndex(index);
-				// Update media fast forward.
-				info.setForward(isFastFoward());
-				// Update media playing.
-				info.setPlaying(isPlaying());
-				// Update current volume.
-				info.setVolume((byte)(ourMediaPlayer.getVolume()/2));
-				if(ApplicationGlobals.isMusicMode())
-					info.setMusic(true);
-				else
-					info.setMusic(false);
+				// Check if the media player is finished. If so reset the index to -1 (Signalling nothing is playing).
+				// If not update the media index.
+				index = (short) ((finished) ? -1 : mediaIndex);
+			}
+			else
+				// I believe this was for the experimental YouTube streaming state.
+				index = -2;
 				
+			// Read the media player once, it is only changed along with a publish of its own.
+			final boolean forward = isFastFoward();
+			final byte volume = (byte)(ourMediaPlayer.getVolume()/2);
+			final boolean music = ApplicationGlobals.isMusicMode();
+			NetworkInfo current_info, snapshot;
+			do
+			{
+				// The published info is read before the pause flag, so a pause published in between fails the swap and
+				// is read again rather than overwritten.
+				current_info = info.get();
+				snapshot = new NetworkInfo(mediaLength, clock.getTime(), isPlaying(), forward, music, volume, index);
 			}
+			while(!info.compareAndSet(current_info, snapshot));
 		}
 		catch(Exception e)
 		{
@@ -766,31 +1236,28 @@ public final class MediaPlayer extends TimerTask
 	}
 	
 	/**
-	 * Handles the updating of time while the media player is playing. Updates it every second.
-	 * If the media player function fast forward is enabled, then the time-stamp is taken instead
-	 * because the rate of length is unpredictable with formats that don't support fast forward as 
-	 * well. 
+	 * Handles the updating of time while the media player is playing. Runs every second.
+	 * The {@link MediaClock} works the time out on its own, the time-stamp is only taken when a resync
+	 * is due. In fast forward that is every second because the rate of length is unpredictable with
+	 * formats that don't support fast forward as well. 
 	 */
 	private void handleTime()
 	{
 		// If the media player is not paused and not finished... 
 		if(!paused && !finished)
 		{
-			// if the media player is not in fast forward...
-			if(!isFastFoward())
-				// progress time normally every one second.
-				time += 1000;
-			// If the media player is in fast forward...
-			else
+			// If the clock is due a check against the media player...
+			if(clock.isResyncDue())
 				// retrieve the time-stamp from the media player.
-				time = this.ourMediaPlayer.getTime();
+				clock.resync(this.ourMediaPlayer.getTime());
+			// Keep the resume position up to date.
+			if(System.currentTimeMillis() >= nextResumeRecord)
+				this.recordPosition();
 			
 			
-			synchronized (info)
-			{
-				if(streaming && info != null && !preparing && !streaming_preparing && (time >= info.getLength()))
-					this.stop();
-			}
+			NetworkInfo current_info = info.get();
+			if(streaming && current_info != null && !preparing && !streaming_preparing && (clock.getTime() >= current_info.getLength()))
+				this.stop();
 				
 		}
 	}
@@ -812,6 +1279,11 @@ public final class MediaPlayer extends TimerTask
 			ourMediaPlayer.pause();
 			// Set the pause flag.
 			paused = true;
+			clock.setRunning(false);
+			// Keep the position to resume from.
+			this.recordPosition();
+			// Publish pause.
+			this.publishState();
 		}
 		// If the media player is pause...
 		else
@@ -826,8 +1298,11 @@ public final class MediaPlayer extends TimerTask
 	{
 		// If the media player rate is > 1....
 		if(isFastFoward())
+		{
 			// Reset the media player rate.
 			ourMediaPlayer.setRate(1);
+			clock.setRate(1f);
+		}
 	}
 	
 	/**
@@ -856,10 +1331,12 @@ public final class MediaPlayer extends TimerTask
 		// If the frame is not focused or the media player is preparing a file...
 		if(ApplicationGlobals.isMinimizeWindows() && (!focused || preparing))
 		{
+			final long start = System.nanoTime();
 			// Minimize all desktop windows.
 			DesktopControl.minimizeAll();
 			// Wait 250ms.
 			this.waitForABit();
+			minimizeLatency.recordSince(start);
 		}
 	}
 	
@@ -912,8 +1389,12 @@ public final class MediaPlayer extends TimerTask
 	public void stop()
 	{
 		System.out.println("Stopped!");
+		// Stopping ends the play queue.
+		playlist.clear();
 		if(ourMediaPlayer != null)
 		{
+			// Keep the position to resume from.
+			this.recordPosition();
 			// Close the JFrame.
 			this.closeVideoView();
 			// Check if paused and pause it.
@@ -946,13 +1427,14 @@ public final class MediaPlayer extends TimerTask
 	}
 	
 	/**
-	 * Resets media player time, sets finished flag to true and {@link NetworkInfo}. Also signals
-	 * Garbage Collection to make a pass(Not guaranteed).
+	 * Resets media player time, sets finished flag to true and {@link NetworkInfo}. When the player is persistent only
+	 * the per-media state is reset, the factory, video surface and frame are kept warm for the next play. Otherwise
+	 * VLC is released and the OOP player exits.
 	 */
 	private void signalMediaReset()
 	{
 		// Reset time.
-		time = 0;
+		clock.reset();
 		// If player is in fast forward...
 		if(isFastFoward())
 			// Reset player rate.
@@ -962,11 +1444,25 @@ public final class MediaPlayer extends TimerTask
 		// Set streaming finished.
 		streaming = false;
 		streaming_preparing = false;
-		// Nullify current media info.
-		synchronized (info) 
+		if(ApplicationGlobals.isPersistent())
 		{
-			info = null;
+			// Stop the media, keep the media player.
+			ourMediaPlayer.stop();
+			paused = true;
+			mediaIndex = -1;
+			mediaLength = 0L;
+			// Show nothing playing.
+			NetworkInfo current_info = info.get();
+			info.set(new NetworkInfo(0L, 0L, false, false, ApplicationGlobals.isMusicMode(),
+					(current_info == null) ? 0 : current_info.getVolume(), -1));
+			// Publish stop.
+			this.publishState();
+			return;
 		}
+		// Publish stop.
+		this.publishState();
+		// Nullify current media info.
+		info.set(null);
 		// Reset VLCJ resources.
 		ourMediaPlayer.removeMediaPlayerEventListener(eventListener);
 		ourMediaPlayer.setVideoSurface(null);
@@ -989,12 +1485,20 @@ public final class MediaPlayer extends TimerTask
 		{
 			// If not fast forward enabled...
 			if(ourMediaPlayer.getRate() == 1f)
+			{
 				// Enable fast forward.
 				ourMediaPlayer.setRate(2);
+				clock.setRate(2f);
+			}
 			// If fast forward enabled...
 			else if(ourMediaPlayer.getRate() == 2f)
+			{
 				// Disable fast forward.
 				ourMediaPlayer.setRate(1);
+				clock.setRate(1f);
+			}
+			// Publish fast forward change.
+			this.publishState();
 		}
 	}
 	
@@ -1009,7 +1513,9 @@ public final class MediaPlayer extends TimerTask
 			ourMediaPlayer.skip(-5000);
 			// time = time - 5000;
 			// Re-sync time. 
-			time = this.ourMediaPlayer.getTime();
+			clock.setTime(this.ourMediaPlayer.getTime());
+			// Publish new time.
+			this.publishState();
 		}
 	}
 	
@@ -1027,6 +1533,8 @@ public final class MediaPlayer extends TimerTask
 			long percentage_position = getPositionFromPercentage(percentage_to_skip);
 			// Set new time-stamp.
 			ourMediaPlayer.setTime(percentage_position);
+			// Publish new time.
+			this.publishState();
 		}
 	}
 	
@@ -1037,11 +1545,11 @@ public final class MediaPlayer extends TimerTask
 	{
 		// Set status to paused.
 		paused = true;
-		synchronized (info) 
-		{
-			// Update media info.
-			info.setPlaying(paused);
-		}
+		clock.setRunning(false);
+		// Update media info.
+		this.publishPlaying(false);
+		// Publish pause.
+		this.publishState();
 	}
 	
 	/**
@@ -1051,11 +1559,30 @@ public final class MediaPlayer extends TimerTask
 	{
 		// Set status to playing.
 		paused = false;
-		synchronized (info) 
+		clock.setRunning(true);
+		// Update media info.
+		this.publishPlaying(true);
+		// Publish play.
+		this.publishState();
+	}
+	
+	/**
+	 * Swaps in a copy of the current {@link NetworkInfo} with only the playing state changed. Retries if another thread
+	 * published in between, so neither change is lost.
+	 * @param Boolean playing - True if playing.
+	 */
+	private void publishPlaying(boolean playing)
+	{
+		NetworkInfo current_info, snapshot;
+		do
 		{
-			// Update media info.
-			info.setPlaying(paused);
+			current_info = info.get();
+			// Released, or already showing it.
+			if(current_info == null || current_info.isPlaying() == playing)
+				return;
+			snapshot = current_info.withPlaying(playing);
 		}
+		while(!info.compareAndSet(current_info, snapshot));
 	}
 	
 	/**
@@ -1067,8 +1594,34 @@ public final class MediaPlayer extends TimerTask
 	{
 		// If the media player is playable...
 		if(ourMediaPlayer != null && ourMediaPlayer.isPlayable())
+		{
 			// Set the current volume of the media player.
 			ourMediaPlayer.setVolume(volume_level*2);
+			// Publish new volume.
+			this.publishState();
+		}
+	}
+	
+	/**
+	 * Adds a listener to be notified whenever the media player state changes.
+	 * @param {@link MediaStateListener} listener - Listener to add.
+	 */
+	public void addStateListener(MediaStateListener listener)
+	{
+		stateListeners.add(listener);
+	}
+	
+	/**
+	 * Refreshes the {@link NetworkInfo} straight away and notifies every {@link MediaStateListener}, so state changes
+	 * don't wait for the next one second update.
+	 */
+	private void publishState()
+	{
+		// Refresh media info if there is media loaded.
+		if(ourMediaPlayer != null && ourMediaPlayer.isPlayable())
+			handleInfo();
+		for(MediaStateListener listener : stateListeners)
+			listener.mediaStateChanged();
 	}
 	
 	/**
@@ -1080,6 +1633,26 @@ public final class MediaPlayer extends TimerTask
 		return !paused;
 	}
 	
+	/**
+	 * Retrieves the current time of the media, as tracked by the {@link MediaClock}. Doesn't query VLC and takes no
+	 * lock, the bridge stamps every status it pushes with it so clients see the position between the one second updates.
+	 * @return Long - Time in milliseconds.
+	 */
+	public long getTime()
+	{
+		return clock.getTime();
+	}
+	
+	/**
+	 * Retrieves the total length of the current media from the media info.
+	 * @return Long - Length in milliseconds, zero if the media info has been reset.
+	 */
+	public long getLength()
+	{
+		NetworkInfo current_info = info.get();
+		return (current_info == null) ? 0L : current_info.getLength();
+	}
+	
 	/**
 	 * Retrieves if the media player is in fast forward.
 	 * @return Boolean - True if fast forward, false otherwise.
@@ -1097,9 +1670,9 @@ public final class MediaPlayer extends TimerTask
     private final long getPositionFromPercentage(int current_percentage)
     {
     	// Retrieve time in milliseconds by multiplying the current percentage with the total length and dividing by 100.
-    	long time_from_percentage = (current_percentage * ourMediaPlayer.getMediaMeta().getLength())/100;
+    	long time_from_percentage = (current_percentage * mediaLength)/100;
     	// Sync time status.
-    	time = time_from_percentage;
+    	clock.setTime(time_from_percentage);
     	// Return translated time.
         return time_from_percentage;
     }
@@ -1116,16 +1689,22 @@ public final class MediaPlayer extends TimerTask
     }
     
     /**
-     * Retrieves the media info.
+     * Retrieves the media info. Wait-free, the snapshot returned is never changed.
      * Used by the {@link MediaBroadcaster}.
-     * @return {@link NetworkInfo} - Media info representing the status of the media player.
+     * @return {@link NetworkInfo} - Media info representing the status of the media player, null once released.
      */
     public static NetworkInfo getMediaInfo()
     {
-		synchronized (info) 
-		{
-			return info;
-		}
+		return info.get();
+    }
+    
+    /**
+     * Retrieves the media info, see getMediaInfo().
+     * @return {@link NetworkInfo} - Media info representing the status of the media player.
+     */
+    public NetworkInfo getNetworkInfo()
+    {
+    	return getMediaInfo();
     }
     
     /**
@@ -0,0 +1,20 @@
+package net.eureka.couchcast.player;
+
+import net.eureka.couchcast.mediaserver.NetworkInfo;
+
+/**
+ * Notified by the {@link MediaPlayer} whenever its state changes (play, pause, volume, seek, index change, stop...). The
+ * {@link NetworkInfo} has already been refreshed when this is called, so listeners can push it straight away.
+ * <br>
+ * Called from whichever thread made the change, including the libVLC event thread. Implementations must return quickly
+ * and never block.
+ *
+ * @see MediaPlayer
+ */
+public interface MediaStateListener
+{
+	/**
+	 * Called after the media player state has changed.
+	 */
+	void mediaStateChanged();
+}
@@ -0,0 +1,126 @@
+package net.eureka.couchcast.player;
+
+import java.util.List;
+
+import net.eureka.couchcast.library.LibraryEntry;
+import net.eureka.couchcast.mediaserver.NetworkInfo;
+
+/**
+ * Operations the {@link Bridge} needs from a media player. {@link MediaPlayer} is the VLC implementation used in
+ * production, {@link SimulatedPlayer} is a headless implementation with a virtual clock so the bridge and status
+ * pipeline can be benchmarked and soak tested without libVLC, Win32 or a display.
+ *
+ * @see MediaPlayer
+ * @see SimulatedPlayer
+ * @see MediaStateListener
+ */
+public interface PlayerBackend
+{
+	/**
+	 * Plays a media file.
+	 * @param char[] path - Path of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 */
+	void play(char[] path, int index);
+
+	/**
+	 * Plays a media file from the position it was last stopped or paused at.
+	 * @param char[] path - Path of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 */
+	void resume(char[] path, int index);
+
+	/**
+	 * Plays a media file of the library, from the start. Clears the play queue.
+	 * @param {@link LibraryEntry} entry - Library entry of the media file.
+	 * @param Integer index - Play-list index of the media file on the client.
+	 */
+	void play(LibraryEntry entry, int index);
+
+	/**
+	 * Replaces the play queue and plays its first media file. The player moves on to the next file by itself each time
+	 * one ends.
+	 * @param List items - Media files in play order, see {@link Playlist}.
+	 */
+	void queue(List<Playlist.Item> items);
+
+	/**
+	 * Plays media at the given link. Intended for YouTube.
+	 * @param String mrl - MRL of the media.
+	 */
+	void play(String mrl);
+
+	/**
+	 * Pauses playing media, or plays paused media.
+	 */
+	void pauseOrPlay();
+
+	/**
+	 * Stops the current media.
+	 */
+	void stop();
+
+	/**
+	 * Enables/Disables fast forward.
+	 */
+	void forward();
+
+	/**
+	 * Rewinds the current media by five seconds.
+	 */
+	void rewind();
+
+	/**
+	 * Skips to a percentage of the current media.
+	 * @param Integer percentage_to_skip - Percentage of the time to skip to. (MAX:100%)
+	 */
+	void skip(int percentage_to_skip);
+
+	/**
+	 * Adjusts the volume.
+	 * @param Integer volume_level - Volume up to 100%.
+	 */
+	void volume(int volume_level);
+
+	/**
+	 * Makes the video frame visible and focused.
+	 */
+	void setFrameActive();
+
+	/**
+	 * Hides the video frame.
+	 */
+	void setFrameInvisible();
+
+	/**
+	 * Retrieves if media is playing.
+	 * @return Boolean - True if playing, false otherwise.
+	 */
+	boolean isPlaying();
+
+	/**
+	 * Retrieves the current time of the media, worked out at the moment of the call rather than at the last state
+	 * change. Called by the bridge selector for every status push, so it must never block or lock.
+	 * @return Long - Time in milliseconds.
+	 */
+	long getTime();
+
+	/**
+	 * Retrieves the total length of the media.
+	 * @return Long - Length in milliseconds.
+	 */
+	long getLength();
+
+	/**
+	 * Retrieves the media info sent to the clients. The snapshot returned is never changed, a new one is published for
+	 * every state change, so it can be read without locking.
+	 * @return {@link NetworkInfo} - Media info, null if it has been reset.
+	 */
+	NetworkInfo getNetworkInfo();
+
+	/**
+	 * Adds a listener to be notified whenever the player state changes.
+	 * @param {@link MediaStateListener} listener - Listener to add.
+	 */
+	void addStateListener(MediaStateListener listener);
+}
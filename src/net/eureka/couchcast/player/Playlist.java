@@ -0,0 +1,108 @@
+package net.eureka.couchcast.player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Server side play queue. A client loads a whole list of media files once with the bridge's QUEUE_FILES_SEQUENCE and
+ * the player moves on to the next item by itself when one ends, rather than stopping and waiting for the phone to send
+ * the next PLAY_FILE_SEQUENCE. The item after the current one is known ahead of time so the player can preload it.
+ * <br>
+ * Playing a single file or stopping clears the queue. Thread safe.
+ *
+ * @see MediaPlayer
+ * @see SimulatedPlayer
+ */
+public final class Playlist
+{
+	/**
+	 * Most items accepted in one queue.
+	 */
+	public static final int MAXIMUM_ITEMS = 4096;
+
+	/**
+	 * A queued media file.
+	 */
+	public static final class Item
+	{
+		private final String path;
+
+		private final int index;
+
+		/**
+		 * @param String path - Path of the media file.
+		 * @param Integer index - Play-list index of the media file on the client.
+		 */
+		public Item(String path, int index)
+		{
+			this.path = path;
+			this.index = index;
+		}
+
+		public String getPath()
+		{
+			return path;
+		}
+
+		public int getIndex()
+		{
+			return index;
+		}
+	}
+
+	private List<Item> items = Collections.emptyList();
+
+	/**
+	 * Position of the current item, -1 before the first.
+	 */
+	private int position = -1;
+
+	/**
+	 * Replaces the queue. The first item is taken with next().
+	 * @param List items - Media files in play order.
+	 */
+	public synchronized void load(List<Item> items)
+	{
+		this.items = Collections.unmodifiableList(new ArrayList<Item>(items));
+		this.position = -1;
+	}
+
+	/**
+	 * Moves on to the next item.
+	 * @return {@link Item} - Next item, null at the end of the queue.
+	 */
+	public synchronized Item next()
+	{
+		if(position + 1 >= items.size())
+			return null;
+		return items.get(++ position);
+	}
+
+	/**
+	 * Retrieves the item after the current one without moving on.
+	 * @return {@link Item} - Next item, null at the end of the queue.
+	 */
+	public synchronized Item peekNext()
+	{
+		return (position + 1 < items.size()) ? items.get(position + 1) : null;
+	}
+
+	/**
+	 * Checks if there is an item after the current one.
+	 * @return Boolean - True if the player should move on when the current item ends.
+	 */
+	public synchronized boolean hasNext()
+	{
+		return position + 1 < items.size();
+	}
+
+	/**
+	 * Empties the queue.
+	 */
+	public synchronized void clear()
+	{
+		items = Collections.emptyList();
+		position = -1;
+	}
+}
@@ -0,0 +1,388 @@
+package net.eureka.couchcast.player;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.foundation.init.ApplicationGlobals;
+
+/**
+ * Server side store of the last position of each media file, so a film can be resumed to the millisecond instead of the
+ * client's one percent skip.
+ * <br>
+ * Positions are appended to a memory-mapped journal in the application directory and mirrored in a hash map, so a
+ * lookup at play time is a single map read however many files have been played. The journal is opened, replayed and
+ * written by its own daemon thread, started with the bridge, so the media player never waits on the disk. Positions
+ * recorded before the replay has finished are kept over the replayed ones, and cleared positions stay in the map as
+ * CLEARED until the next compaction, so the replay can't bring them back. A lookup made while the journal is still
+ * being replayed waits up to REPLAY_TIMEOUT for it. Once the mapping is full
+ * the journal is compacted in place down to the latest position of each file, and grown if that is still more than half
+ * of it.
+ * <br>
+ * <pre>
+ * <h2>JOURNAL (Big endian):</h2>
+ *
+ * 		[0-3]	MAGIC		- "CCRJ".
+ * 		Then records, up to the first zero key length:
+ * 		[0-1]	KEY LENGTH	- Length of the UTF-8 path.
+ * 		[2-]	KEY			- UTF-8 path of the media file.
+ * 		[+8]	POSITION	- Milliseconds, -1 when the position was cleared.
+ * </pre>
+ *
+ * @see MediaPlayer
+ */
+public final class ResumeJournal
+{
+	/**
+	 * Name of the journal file.
+	 */
+	private static final String JOURNAL_FILE = "resume.journal";
+
+	private static final int JOURNAL_MAGIC = 0x4343524A;
+
+	/**
+	 * Smallest size of the mapped journal.
+	 */
+	private static final int INITIAL_CAPACITY = 256 * 1024;
+
+	/**
+	 * Most milliseconds a lookup waits for the journal to be replayed.
+	 */
+	private static final long REPLAY_TIMEOUT = 2000L;
+
+	/**
+	 * Position that marks a cleared record.
+	 */
+	private static final long CLEARED = -1L;
+
+	/**
+	 * Latest position of each media file, CLEARED if it was cleared since the last compaction.
+	 */
+	private static final ConcurrentHashMap<String, Long> positions = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * Positions waiting to be appended, in order.
+	 */
+	private static final LinkedBlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+
+	private static FileChannel channel = null;
+
+	/**
+	 * Mapped journal, null if it could not be opened. Its position is only moved with the class lock held.
+	 */
+	private static volatile MappedByteBuffer journal = null;
+
+	/**
+	 * True once the journal has been opened, or has failed to open.
+	 */
+	private static volatile boolean opened = false;
+
+	/**
+	 * Released once the journal has been opened and replayed, or has failed to open.
+	 */
+	private static final CountDownLatch ready = new CountDownLatch(1);
+
+	/**
+	 * Set once the journal thread has been started.
+	 */
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * Queued position of a media file.
+	 */
+	private static final class Record
+	{
+		private final String key;
+
+		private final long position;
+
+		private Record(String key, long position)
+		{
+			this.key = key;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * Retrieves the last recorded position of a media file. Waits up to REPLAY_TIMEOUT if the journal is still being
+	 * replayed.
+	 * @param String path - Path of the media file.
+	 * @return Long - Position in milliseconds, zero if none was recorded or the journal is not yet replayed.
+	 */
+	public static long getPosition(String path)
+	{
+		start();
+		if(!opened)
+		{
+			try
+			{
+				if(!ready.await(REPLAY_TIMEOUT, TimeUnit.MILLISECONDS))
+					Logger.append(new StringBuffer("Resume journal still replaying, position of "+path+" not yet known"));
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		Long position = positions.get(path);
+		return (position == null || position.longValue() == CLEARED) ? 0L : position.longValue();
+	}
+
+	/**
+	 * Records the position of a media file. Returns straight away, the journal is written in the background.
+	 * @param String path - Path of the media file.
+	 * @param Long position - Position in milliseconds.
+	 */
+	public static void record(String path, long position)
+	{
+		if(path == null || path.isEmpty() || position < 0)
+			return;
+		start();
+		positions.put(path, position);
+		// Written once the journal is open, dropped if it failed to.
+		if(!opened || journal != null)
+			queue.offer(new Record(path, position));
+	}
+
+	/**
+	 * Forgets the position of a media file, e.g once it has played to the end.
+	 * @param String path - Path of the media file.
+	 */
+	public static void clear(String path)
+	{
+		if(path == null || path.isEmpty())
+			return;
+		start();
+		final Long previous = positions.put(path, CLEARED);
+		// Until the journal is replayed it may hold a position the map doesn't.
+		if(!opened || (journal != null && previous != null && previous.longValue() != CLEARED))
+			queue.offer(new Record(path, CLEARED));
+	}
+
+	/**
+	 * Starts the daemon thread that opens and replays the journal, then appends queued records. Called at start up so
+	 * the journal is ready before the first media is played, and on first use otherwise. Never blocks.
+	 */
+	public static void start()
+	{
+		if(started.get() || !started.compareAndSet(false, true))
+			return;
+		Thread writer = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(!open())
+					return;
+				while(true)
+				{
+					try
+					{
+						write(queue.take());
+					}
+					catch (InterruptedException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}, "Resume Journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Maps and replays the journal. Runs on the journal thread.
+	 * @return Boolean - True if the journal was opened.
+	 */
+	private static boolean open()
+	{
+		synchronized (ResumeJournal.class)
+		{
+			try
+			{
+				channel = FileChannel.open(getJournalFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, channel.size()));
+				replay();
+				// Daemon thread dies with System.exit(), write what it had not got to yet.
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						write(null);
+					}
+				}, "Resume Journal Shutdown"));
+			}
+			catch (IOException e)
+			{
+				// No journal, positions only last for this session.
+				e.printStackTrace();
+				Logger.append(new StringBuffer(e.toString()));
+				journal = null;
+			}
+			opened = true;
+			ready.countDown();
+			if(journal == null)
+				queue.clear();
+			return journal != null;
+		}
+	}
+
+	/**
+	 * Reads every record of the journal, leaving it positioned after the last one, and adds the latest position of
+	 * each file to the position map unless it was recorded or cleared since start up.
+	 */
+	private static void replay()
+	{
+		// New or foreign file, start over.
+		if(journal.getInt(0) != JOURNAL_MAGIC)
+		{
+			journal.putInt(0, JOURNAL_MAGIC);
+			journal.putShort(4, (short) 0);
+			journal.position(4);
+			return;
+		}
+		journal.position(4);
+		HashMap<String, Long> replayed = new HashMap<String, Long>();
+		while(journal.remaining() >= 2)
+		{
+			final int start = journal.position(), key_length = journal.getShort(start);
+			// End of the records, or a record cut short by a crash.
+			if(key_length <= 0 || journal.remaining() < 2 + key_length + 8)
+				break;
+			byte[] key = new byte[key_length];
+			journal.position(start + 2);
+			journal.get(key);
+			final long position = journal.getLong();
+			final String path = new String(key, StandardCharsets.UTF_8);
+			if(position == CLEARED)
+				replayed.remove(path);
+			else
+				replayed.put(path, position);
+		}
+		for(Map.Entry<String, Long> entry : replayed.entrySet())
+			positions.putIfAbsent(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Appends a batch of records and syncs the journal.
+	 * @param {@link Record} first - First record of the batch, null to write only what is queued.
+	 */
+	private static synchronized void write(Record first)
+	{
+		if(journal == null)
+			return;
+		try
+		{
+			if(first != null)
+				append(first);
+			// Write the rest of the batch before syncing.
+			Record record;
+			while((record = queue.poll()) != null)
+				append(record);
+			journal.force();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			Logger.append(new StringBuffer(e.toString()));
+		}
+	}
+
+	/**
+	 * Appends a record to the journal, compacting it first if it is full. Called with the class lock held.
+	 * @param {@link Record} record - Record to append.
+	 * @throws IOException - Journal could not be grown.
+	 */
+	private static void append(Record record) throws IOException
+	{
+		byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+		if(key.length > Short.MAX_VALUE)
+			return;
+		final int size = 2 + key.length + 8;
+		// Keep room for the end marker.
+		if(journal.remaining() < size + 2)
+			compact(size + 2);
+		journal.putShort((short) key.length).put(key).putLong(record.position);
+		// Mark the end of the records.
+		if(journal.remaining() >= 2)
+			journal.putShort(journal.position(), (short) 0);
+	}
+
+	/**
+	 * Rewrites the journal in place with only the latest position of each file, growing it if the live records would
+	 * fill more than half of it. Called with the class lock held.
+	 * @param Integer extra - Bytes that must be free after compaction.
+	 * @throws IOException - Journal could not be grown.
+	 */
+	private static void compact(int extra) throws IOException
+	{
+		// Take the live records once, positions recorded after are still queued and appended after compaction.
+		HashMap<String, byte[]> live = new HashMap<String, byte[]>();
+		HashMap<String, Long> live_positions = new HashMap<String, Long>(positions);
+		int size = 4;
+		for(Map.Entry<String, Long> entry : live_positions.entrySet())
+		{
+			// Cleared files are left out, and forgotten unless recorded again since.
+			if(entry.getValue().longValue() == CLEARED)
+			{
+				positions.remove(entry.getKey(), entry.getValue());
+				continue;
+			}
+			byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			if(key.length > Short.MAX_VALUE)
+				continue;
+			live.put(entry.getKey(), key);
+			size += 2 + key.length + 8;
+		}
+		// Encode the live records.
+		ByteBuffer compacted = ByteBuffer.allocate(size);
+		compacted.putInt(JOURNAL_MAGIC);
+		for(Map.Entry<String, byte[]> entry : live.entrySet())
+			compacted.putShort((short) entry.getValue().length).put(entry.getValue()).putLong(live_positions.get(entry.getKey()).longValue());
+		compacted.flip();
+		final int stale_end = journal.position();
+		// Grow the journal if compaction alone won't keep it from filling up again straight away.
+		int capacity = journal.capacity();
+		while(capacity < (compacted.limit() + extra) * 2)
+			capacity *= 2;
+		if(capacity != journal.capacity())
+			journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		journal.clear();
+		journal.put(compacted);
+		final int end = journal.position();
+		// Clear the stale records left behind.
+		for(int i = end; i < stale_end; i ++)
+			journal.put(i, (byte) 0);
+	}
+
+	/**
+	 * Retrieves the journal file from the application directory.
+	 * @return File - Resume journal file.
+	 */
+	private static File getJournalFile()
+	{
+		// Retrieve the system drive directory.
+		String system_drive = System.getenv("SYSTEMDRIVE"),
+			   // Retrieve the default home path.
+			   home_path = System.getenv("HOME");
+		// If home path is null, try the updated renamed home path.
+		home_path = ((home_path == null) ? System.getenv("HOMEPATH") : home_path);
+
+		// Create default home/download directory path.
+		return new File(system_drive+home_path+File.separator+ApplicationGlobals.getName()+File.separator+JOURNAL_FILE);
+	}
+}
@@ -0,0 +1,339 @@
+package net.eureka.couchcast.player;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.eureka.couchcast.library.LibraryEntry;
+import net.eureka.couchcast.mediaserver.NetworkInfo;
+
+/**
+ * Headless {@link PlayerBackend} with a virtual clock. Behaves like the VLC {@link MediaPlayer} as far as the
+ * {@link NetworkInfo} and state events are concerned, but no media is decoded and no window, libVLC or Win32 call is
+ * ever made, so it runs anywhere (Linux CI, benchmarks, soak tests).
+ * <br>
+ * Time only moves when the clock is advanced, either by calling advance() directly, which keeps runs fully
+ * deterministic, or by startClock() which advances it from a {@link Timer} like the real player's one second update.
+ * Every media file has the same simulated length.
+ *
+ * @see PlayerBackend
+ * @see MediaPlayer
+ */
+public final class SimulatedPlayer implements PlayerBackend
+{
+	/**
+	 * Simulated length of every media file, ninety minutes.
+	 */
+	public static final long DEFAULT_LENGTH = 90L * 60L * 1000L;
+
+	/**
+	 * Rewind step, same as the VLC player.
+	 */
+	private static final long REWIND_STEP = 5000L;
+
+	/**
+	 * Latest media info snapshot, replaced whole and never changed once published. Written with the player's lock held,
+	 * read without it.
+	 */
+	private volatile NetworkInfo info = new NetworkInfo(0, 0);
+
+	private final CopyOnWriteArrayList<MediaStateListener> stateListeners = new CopyOnWriteArrayList<MediaStateListener>();
+
+	/**
+	 * Resume positions by path. Kept in memory rather than in the {@link ResumeJournal} so runs stay self contained.
+	 */
+	private final HashMap<String, Long> positions = new HashMap<String, Long>();
+
+	/**
+	 * Server play queue, moved on by the clock when media ends.
+	 */
+	private final Playlist playlist = new Playlist();
+
+	private String mediaPath = null;
+
+	private final long length;
+
+	private Timer timer = null;
+
+	/**
+	 * Media time, only changed with the player lock held but read without it by the bridge selector.
+	 */
+	private volatile long time = 0L;
+
+	private float rate = 1f;
+
+	private int volume = 0;
+
+	private int mediaIndex = -1;
+
+	private boolean paused = true;
+
+	private boolean finished = true;
+
+	private boolean streaming = false;
+
+	/**
+	 * Creates a simulated player where every media file is DEFAULT_LENGTH long.
+	 */
+	public SimulatedPlayer()
+	{
+		this(DEFAULT_LENGTH);
+	}
+
+	/**
+	 * Creates a simulated player.
+	 * @param Long media_length - Simulated length of every media file in milliseconds.
+	 */
+	public SimulatedPlayer(long media_length)
+	{
+		this.length = media_length;
+	}
+
+	/**
+	 * Advances the virtual clock from a {@link Timer}, like the one second update of the VLC player.
+	 * @param Long tick - Milliseconds between clock ticks, also the amount of virtual time each tick adds.
+	 */
+	public synchronized void startClock(final long tick)
+	{
+		if(timer != null)
+			return;
+		timer = new Timer("Simulated Player", true);
+		timer.scheduleAtFixedRate(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				advance(tick);
+			}
+		}, tick, tick);
+	}
+
+	/**
+	 * Moves the virtual clock forward. Media time only progresses while playing, at the current rate. Media that
+	 * reaches its length ends and stops, as it would on VLC, unless the play queue has another file to move on to.
+	 * @param Long elapsed - Virtual milliseconds elapsed.
+	 */
+	public synchronized void advance(long elapsed)
+	{
+		if(paused || finished)
+			return;
+		time += (long) (elapsed * rate);
+		if(time >= length)
+		{
+			Playlist.Item next = playlist.next();
+			if(next != null)
+				startFile(next.getPath(), next.getIndex(), false);
+			else
+				stop();
+		}
+		else
+			updateInfo();
+	}
+
+	@Override
+	public synchronized void play(char[] path, int index)
+	{
+		playlist.clear();
+		startFile(new String(path), index, true);
+	}
+
+	@Override
+	public synchronized void play(LibraryEntry entry, int index)
+	{
+		playlist.clear();
+		startFile(entry.getPath(), index, true);
+	}
+
+	@Override
+	public synchronized void queue(List<Playlist.Item> items)
+	{
+		playlist.load(items);
+		Playlist.Item first = playlist.next();
+		if(first != null)
+			startFile(first.getPath(), first.getIndex(), true);
+	}
+
+	/**
+	 * Starts a media file from the beginning.
+	 * @param String path - Path of the media file.
+	 * @param Integer index - Play-list index of the file.
+	 * @param Boolean reset_volume - False when moving on through the play queue, which keeps the volume.
+	 */
+	private void startFile(String path, int index, boolean reset_volume)
+	{
+		mediaIndex = index;
+		mediaPath = path;
+		streaming = false;
+		start(reset_volume);
+	}
+
+	@Override
+	public synchronized void resume(char[] path, int index)
+	{
+		play(path, index);
+		Long position = positions.get(mediaPath);
+		if(position != null && position.longValue() < length)
+		{
+			time = position.longValue();
+			publishState();
+		}
+	}
+
+	@Override
+	public synchronized void play(String mrl)
+	{
+		playlist.clear();
+		mediaPath = null;
+		streaming = true;
+		start(true);
+	}
+
+	/**
+	 * Starts the media from the beginning.
+	 * @param Boolean reset_volume - True to reset the volume as the VLC player does for new media.
+	 */
+	private void start(boolean reset_volume)
+	{
+		time = 0L;
+		rate = 1f;
+		if(reset_volume)
+			volume = 25;
+		finished = false;
+		paused = false;
+		publishState();
+	}
+
+	@Override
+	public synchronized void pauseOrPlay()
+	{
+		// Fast forward is reset by play/pause.
+		rate = 1f;
+		// Replay finished media.
+		if(finished)
+		{
+			finished = false;
+			time = 0L;
+		}
+		paused = !paused;
+		publishState();
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		playlist.clear();
+		// Keep the position to resume from, media that played to the end starts over.
+		if(mediaPath != null && !streaming && !finished)
+		{
+			if(time < length)
+				positions.put(mediaPath, time);
+			else
+				positions.remove(mediaPath);
+		}
+		time = 0L;
+		rate = 1f;
+		paused = true;
+		finished = true;
+		streaming = false;
+		publishState();
+	}
+
+	@Override
+	public synchronized void forward()
+	{
+		if(paused || finished)
+			return;
+		rate = (rate == 1f) ? 2f : 1f;
+		publishState();
+	}
+
+	@Override
+	public synchronized void rewind()
+	{
+		if(finished)
+			return;
+		time = Math.max(0L, time - REWIND_STEP);
+		publishState();
+	}
+
+	@Override
+	public synchronized void skip(int percentage_to_skip)
+	{
+		if(finished)
+			return;
+		time = (percentage_to_skip * length) / 100;
+		publishState();
+	}
+
+	@Override
+	public synchronized void volume(int volume_level)
+	{
+		if(finished)
+			return;
+		volume = volume_level;
+		publishState();
+	}
+
+	@Override
+	public void setFrameActive()
+	{
+		// No frame to show.
+	}
+
+	@Override
+	public void setFrameInvisible()
+	{
+		// No frame to hide.
+	}
+
+	@Override
+	public synchronized boolean isPlaying()
+	{
+		return !paused;
+	}
+
+	@Override
+	public long getTime()
+	{
+		return time;
+	}
+
+	@Override
+	public long getLength()
+	{
+		return length;
+	}
+
+	@Override
+	public NetworkInfo getNetworkInfo()
+	{
+		return info;
+	}
+
+	@Override
+	public void addStateListener(MediaStateListener listener)
+	{
+		stateListeners.add(listener);
+	}
+
+	/**
+	 * Publishes a {@link NetworkInfo} snapshot of the simulated state, in the same way the VLC player's handleInfo() does.
+	 */
+	private void updateInfo()
+	{
+		info = new NetworkInfo(finished ? 0L : length, time, !paused, rate > 1f, false, (byte) volume,
+				streaming ? -2 : (finished ? -1 : mediaIndex));
+	}
+
+	/**
+	 * Refreshes the {@link NetworkInfo} and notifies every {@link MediaStateListener}.
+	 */
+	private void publishState()
+	{
+		updateInfo();
+		for(MediaStateListener listener : stateListeners)
+			listener.mediaStateChanged();
+	}
+}
@@ -7,6 +7,14 @@ import java.net.NetworkInterface;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Contains useful methods that could be common to the whole media server.
@@ -17,7 +25,29 @@ import java.util.Collections;
 public final class Static 
 {
 	
+	/**
+	 * Names of the interfaces last returned by getInetAddresses(), in the same order. Guarded by itself.
+	 */
 	private static final ArrayList<String> INTERFACES = new ArrayList<String>();
+
+	/**
+	 * Milliseconds all reachability probes of one search share.
+	 */
+	private static final long PROBE_DEADLINE = 1000L;
+
+	/**
+	 * Daemon threads for the reachability probes, so a hung probe never holds up exit.
+	 */
+	private static final ThreadFactory PROBE_THREADS = new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "Interface Probe");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
 	
 	/**
 	 * Used to determine if the computer O.S is 64 or 32 bit. 
@@ -62,65 +92,146 @@ public final class Static
 	}
 	
 	/**
-	 * Retrieves particular network interface address by the passed parameter name.
-	 * @param name - Name of network interface.
+	 * Retrieves particular network interface address by the passed parameter name. The interface named in the
+	 * configuration is looked up directly with no probing, the parallel reachability search is only the fallback.
+	 * @param name - Name of network interface, as "name (display name)".
 	 * @return {@link InetAddress} - Found network address, null if none was found.
 	 */
 	public static InetAddress getInetAddressFromName(String name)
 	{
-		if(!name.isEmpty())
+		if(name == null || name.isEmpty())
+			return null;
+		// Bind straight to the configured interface if it is up.
+		InetAddress address = getDirectAddress(name);
+		if(address == null)
 		{
 			ArrayList<InetAddress> valid_addresses = getInetAddresses();
-			
+
 			System.out.println("Valid addresses:"+ valid_addresses.size());
-			
-			for(int i = 0; i < valid_addresses.size(); i ++)
-				if(INTERFACES.get(i).equals(name))
-					return valid_addresses.get(i);
+
+			synchronized (INTERFACES)
+			{
+				for(int i = 0; i < valid_addresses.size(); i ++)
+					if(INTERFACES.get(i).equals(name))
+						address = valid_addresses.get(i);
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Looks the interface up by its name and returns its first IPv4 address, without any reachability probe.
+	 * @param name - Name of network interface, as "name (display name)".
+	 * @return {@link InetAddress} - Address of the interface, null if it is missing, down or has no IPv4 address.
+	 */
+	private static InetAddress getDirectAddress(String name)
+	{
+		try
+		{
+			// Interface names are stored as "name (display name)".
+			final int display_name = name.indexOf(" (");
+			NetworkInterface net_interface = NetworkInterface.getByName((display_name == -1) ? name : name.substring(0, display_name));
+			if(net_interface == null || !net_interface.isUp())
+				return null;
+			for(InetAddress address : Collections.list(net_interface.getInetAddresses()))
+				if(!(address instanceof Inet6Address))
+					return address;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
 		}
 		return null;
 	}
-	
+
 	/**
-	 * Searches through available network interfaces and creates a list of bindable address to return.
+	 * Searches through available network interfaces and creates a list of bindable address to return. Every IPv4
+	 * address is probed in parallel, interfaces whose address does not answer within PROBE_DEADLINE are left out.
 	 * @return {@link ArrayList} - List of network interface addresses of type {@link InetAddress}.
 	 */
 	public static ArrayList<InetAddress> getInetAddresses()
 	{
 		ArrayList<InetAddress> valid_addresses = new ArrayList<>();
-		
+		ArrayList<String> valid_names = new ArrayList<>();
+		// Probes of each candidate interface, in interface order.
+		ArrayList<Callable<InetAddress>> probes = new ArrayList<>();
+		ArrayList<String> probe_names = new ArrayList<>();
 		try 
 		{
 			ArrayList<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
 			
 			for (NetworkInterface net_interface : interfaces) 
-				if(!INTERFACES.contains(net_interface.toString().split(":")[1]) && net_interface.isUp() && !net_interface.isVirtual() && !net_interface.isLoopback() && net_interface.supportsMulticast())
+				if(net_interface.isUp() && !net_interface.isVirtual() && !net_interface.isLoopback() && net_interface.supportsMulticast())
 				{
-					// iterate over the addresses associated with the interface
-					ArrayList<InetAddress> addresses = Collections.list(net_interface.getInetAddresses());
-					for (int i = 0; i < addresses.size(); i ++)
+					// look only for ipv4 addresses
+					final ArrayList<InetAddress> addresses = new ArrayList<>();
+					for(InetAddress address : Collections.list(net_interface.getInetAddresses()))
+						if (!(address instanceof Inet6Address))
+							addresses.add(address);
+					if(addresses.isEmpty())
+						continue;
+					probes.add(new Callable<InetAddress>()
 					{
-						InetAddress address = addresses.get(i);
-						
-						// look only for ipv4 addresses
-						if (!(address instanceof Inet6Address) && address.isReachable(3000))
+						@Override
+						public InetAddress call() throws IOException
 						{
-							String name = net_interface.toString(), parsed = name.split(":")[1];
-							System.out.format("["+i+"] ni: %s\n", name);
-							valid_addresses.add(address);
-							// Add name to interface name list
-							INTERFACES.add(parsed);
-							// Make i the size limit to exit loop.
-							i = addresses.size();
+							// First reachable address of the interface.
+							for(InetAddress address : addresses)
+								if(address.isReachable((int) PROBE_DEADLINE))
+									return address;
+							return null;
 						}
-					}
+					});
+					probe_names.add(net_interface.toString().split(":")[1]);
 				}
 		}
 		catch (IOException e) 
 		{
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		if(!probes.isEmpty())
+		{
+			ExecutorService probe_pool = Executors.newFixedThreadPool(probes.size(), PROBE_THREADS);
+			try
+			{
+				// Every probe shares the one deadline, unfinished probes are cancelled.
+				List<Future<InetAddress>> results = probe_pool.invokeAll(probes, PROBE_DEADLINE, TimeUnit.MILLISECONDS);
+				for (int i = 0; i < results.size(); i ++)
+				{
+					Future<InetAddress> result = results.get(i);
+					if(result.isCancelled())
+						continue;
+					try
+					{
+						InetAddress address = result.get();
+						if(address != null)
+						{
+							System.out.format("["+i+"] ni: %s\n", probe_names.get(i));
+							valid_addresses.add(address);
+							valid_names.add(probe_names.get(i));
+						}
+					}
+					catch (ExecutionException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				probe_pool.shutdownNow();
+			}
+		}
+		// Names line up with the returned addresses.
+		synchronized (INTERFACES)
+		{
+			INTERFACES.clear();
+			INTERFACES.addAll(valid_names);
+		}
 		return valid_addresses;
 	}
 }
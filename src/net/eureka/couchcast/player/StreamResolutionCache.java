@@ -0,0 +1,130 @@
+package net.eureka.couchcast.player;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.eureka.couchcast.Logger;
+import net.eureka.couchcast.metrics.Metrics;
+
+/**
+ * Cache of the sub-item MRLs VLC resolves a streaming page MRL (e.g a YouTube link) to. Playing a link normally starts
+ * the page MRL, waits for it to finish and only then starts its first sub-item, which costs several seconds. The
+ * {@link MediaPlayer} records each resolution here and on a replay or resume of the same link starts the resolved
+ * sub-item straight away.
+ * <br>
+ * Resolved MRLs are usually signed and expire, so entries are only used for TIME_TO_LIVE and are dropped as soon as
+ * one fails to play. The least recently used entries are dropped past MAXIMUM_ENTRIES. Hits and misses are counted in
+ * {@link Metrics}.
+ *
+ * @see MediaPlayer
+ */
+public final class StreamResolutionCache
+{
+	/**
+	 * Milliseconds a resolution is used for, well within the expiry of the signed stream links.
+	 */
+	private static final long TIME_TO_LIVE = 30L * 60L * 1000L;
+
+	/**
+	 * Most resolutions kept.
+	 */
+	private static final int MAXIMUM_ENTRIES = 64;
+
+	private static final LongAdder hits = Metrics.counter("stream.cache_hits"),
+								   misses = Metrics.counter("stream.cache_misses");
+
+	/**
+	 * Resolutions in least recently used order, guarded by itself.
+	 */
+	private static final LinkedHashMap<String, Resolution> entries = new LinkedHashMap<String, Resolution>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 4415470263305328316L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Resolution> eldest)
+		{
+			return size() > MAXIMUM_ENTRIES;
+		}
+	};
+
+	/**
+	 * Sub-items of a page MRL and when they stop being used.
+	 */
+	private static final class Resolution
+	{
+		private final List<String> subItems;
+
+		private final long expires;
+
+		private Resolution(List<String> sub_items, long expires)
+		{
+			this.subItems = sub_items;
+			this.expires = expires;
+		}
+	}
+
+	private StreamResolutionCache()
+	{
+	}
+
+	/**
+	 * Retrieves the sub-items a page MRL was resolved to.
+	 * @param String mrl - Page MRL sent by the client.
+	 * @return List - Resolved sub-item MRLs, null if unknown or expired.
+	 */
+	public static List<String> get(String mrl)
+	{
+		Resolution resolution;
+		synchronized (entries)
+		{
+			resolution = entries.get(mrl);
+			// Expired, resolve again.
+			if(resolution != null && System.currentTimeMillis() >= resolution.expires)
+			{
+				entries.remove(mrl);
+				resolution = null;
+			}
+		}
+		if(resolution == null)
+		{
+			misses.increment();
+			Logger.append(new StringBuffer("Stream resolution miss: "+mrl));
+			return null;
+		}
+		hits.increment();
+		Logger.append(new StringBuffer("Stream resolution hit: "+mrl));
+		return resolution.subItems;
+	}
+
+	/**
+	 * Caches the sub-items a page MRL was resolved to.
+	 * @param String mrl - Page MRL sent by the client.
+	 * @param List sub_items - Sub-item MRLs reported by VLC, ignored if empty.
+	 */
+	public static void put(String mrl, List<String> sub_items)
+	{
+		if(mrl == null || sub_items == null || sub_items.isEmpty())
+			return;
+		Resolution resolution = new Resolution(Collections.unmodifiableList(new ArrayList<String>(sub_items)), System.currentTimeMillis() + TIME_TO_LIVE);
+		synchronized (entries)
+		{
+			entries.put(mrl, resolution);
+		}
+	}
+
+	/**
+	 * Forgets the resolution of a page MRL, e.g once its sub-item has failed to play.
+	 * @param String mrl - Page MRL sent by the client.
+	 */
+	public static void invalidate(String mrl)
+	{
+		synchronized (entries)
+		{
+			entries.remove(mrl);
+		}
+	}
+}